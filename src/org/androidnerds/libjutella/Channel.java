@@ -14,6 +14,9 @@
  */
 package org.androidnerds.libjutella;
 
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.ArrayList;
 import java.util.List;
@@ -22,7 +25,11 @@ public class Channel {
 	
 	private String name;
 	private String topic;
-	private List<String> users;
+	private String topicSetBy;
+	private long topicTime;
+	private String topicDate;
+	private ChannelModes modes;
+	private volatile List<String> users;
 	private List<Message> messages;
 	private Server server;
 	
@@ -30,6 +37,7 @@ public class Channel {
 		users = Collections.synchronizedList(new ArrayList<String>());
 		messages = Collections.synchronizedList(new ArrayList<Message>());
 		server = s;
+		modes = new ChannelModes();
 	}
 	
 	public void setName(String n) {
@@ -44,6 +52,55 @@ public class Channel {
 		topic = t;
 	}
 	
+	public String getTopic() {
+		return topic;
+	}
+	
+	/**
+	 * records who set the topic and when.
+	 *
+	 * @param who the nickname or mask of the user that set the topic
+	 * @param time when the topic was set, in milliseconds
+	 * @since 1
+	 */
+	public synchronized void setTopicInfo(String who, long time) {
+		topicSetBy = who;
+		topicTime = time;
+		topicDate = null;
+	}
+	
+	public synchronized String getTopicSetBy() {
+		return topicSetBy;
+	}
+	
+	public synchronized long getTopicTime() {
+		return topicTime;
+	}
+	
+	/**
+	 * returns the time the topic was set formatted for display, the text is
+	 * formatted once and reused until the topic changes.
+	 *
+	 * @return the formatted date, or null when the time is unknown
+	 * @since 1
+	 */
+	public synchronized String getTopicDate() {
+		if (topicDate == null && topicTime > 0) {
+			topicDate = TOPIC_DATE_FORMAT.format(Instant.ofEpochMilli(topicTime));
+		}
+		
+		return topicDate;
+	}
+	
+	/**
+	 * returns the modes currently set on the channel
+	 *
+	 * @since 1
+	 */
+	public ChannelModes getModes() {
+		return modes;
+	}
+	
 	public void addUser(String user) {
 		users.add(user);
 	}
@@ -56,11 +113,72 @@ public class Channel {
 		users.remove(user);
 	}
 	
+	/**
+	 * adds or removes a status prefix such as @ or + on a member, keeping
+	 * the prefixes in the order of their rank.
+	 */
+	void updatePrefix(String nick, char prefix, boolean adding) {
+		String order = server != null ? server.getModeSpec().getPrefixes() : "@+";
+		String key = HighlightMatcher.fold(nick);
+		
+		synchronized (users) {
+			for (int i = 0; i < users.size(); i++) {
+				String entry = users.get(i);
+				int start = 0;
+				
+				while (start < entry.length() && order.indexOf(entry.charAt(start)) != -1) {
+					start++;
+				}
+				
+				if (!HighlightMatcher.fold(entry.substring(start)).equals(key)) {
+					continue;
+				}
+				
+				StringBuilder updated = new StringBuilder();
+				
+				for (int j = 0; j < order.length(); j++) {
+					char p = order.charAt(j);
+					boolean has = p == prefix ? adding : entry.lastIndexOf(p, start - 1) != -1;
+					
+					if (has) {
+						updated.append(p);
+					}
+				}
+				
+				users.set(i, updated.append(entry.substring(start)).toString());
+				return;
+			}
+		}
+	}
+	
+	protected void clearUsers() {
+		users.clear();
+	}
+	
+	/**
+	 * replaces the whole member list at once, used when a names reply has
+	 * been fully received.
+	 *
+	 * @param list the new members of the channel
+	 * @since 1
+	 */
+	protected void setUsers(List<String> list) {
+		users = Collections.synchronizedList(list);
+	}
+	
 	public void addMessage(Message msg) {
+		msg.compact();
 		messages.add(msg);
+		
+		if (server != null) {
+			server.getMessageIndex().add(msg, name);
+		}
 	}
 	
 	public List<Message> getMessages() {
 		return messages;
 	}
+	
+	private static final DateTimeFormatter TOPIC_DATE_FORMAT =
+		DateTimeFormatter.ofPattern("MM dd, yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
 }
\ No newline at end of file
@@ -0,0 +1,328 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ChannelModes class holds the modes currently set on a channel. Flag
+ * modes such as +n or +t are kept as bits of a single long, modes with a
+ * parameter such as +k and +l in a small map. List modes (bans, exceptions
+ * and invites) are only tracked once they have been loaded with a MODE
+ * query, after that they are kept up to date from MODE changes as well.
+ *
+ * Which modes take parameters is decided by the server's CHANMODES and
+ * PREFIX settings, see ModeSpec.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ChannelModes {
+	
+	private long flags;
+	private Map<Character, String> params;
+	private Map<Character, List<String>> lists;
+	
+	public ChannelModes() {
+		params = new HashMap<Character, String>(4);
+	}
+	
+	/**
+	 * returns true when the flag mode is set on the channel
+	 *
+	 * @param mode the mode character, for example 'n'
+	 * @since 1
+	 */
+	public synchronized boolean isSet(char mode) {
+		int bit = bit(mode);
+		return bit >= 0 ? (flags & (1L << bit)) != 0 : params.containsKey(mode);
+	}
+	
+	/**
+	 * returns the parameter of a mode such as +k or +l, or null when the
+	 * mode is not set
+	 *
+	 * @param mode the mode character
+	 * @since 1
+	 */
+	public synchronized String getParam(char mode) {
+		return params.get(mode);
+	}
+	
+	/**
+	 * returns the entries of a list mode such as +b, or null if the list has
+	 * not been loaded yet, see Server.loadModeList.
+	 *
+	 * @param mode the list mode character
+	 * @since 1
+	 */
+	public synchronized List<String> getList(char mode) {
+		if (lists == null || !lists.containsKey(mode)) {
+			return null;
+		}
+		
+		return Collections.unmodifiableList(new ArrayList<String>(lists.get(mode)));
+	}
+	
+	/**
+	 * returns the modes as a mode string, for example "+ntk key"
+	 *
+	 * @since 1
+	 */
+	public synchronized String toString() {
+		StringBuilder modes = new StringBuilder("+");
+		StringBuilder args = new StringBuilder();
+		
+		for (int bit = 0; bit < 52; bit++) {
+			if ((flags & (1L << bit)) != 0) {
+				modes.append(bit < 26 ? (char) ('a' + bit) : (char) ('A' + bit - 26));
+			}
+		}
+		
+		for (Map.Entry<Character, String> e : params.entrySet()) {
+			modes.append(e.getKey());
+			args.append(' ').append(e.getValue());
+		}
+		
+		return modes.append(args).toString();
+	}
+	
+	/**
+	 * Applies a mode change to the channel.
+	 *
+	 * @param args the mode string followed by its parameters
+	 * @param spec the server's mode definitions
+	 * @param channel the channel, its member list is updated for prefix modes
+	 */
+	synchronized void apply(List<String> args, ModeSpec spec, Channel channel) {
+		if (args.isEmpty()) {
+			return;
+		}
+		
+		String modes = args.get(0);
+		int next = 1;
+		boolean adding = true;
+		
+		for (int i = 0; i < modes.length(); i++) {
+			char mode = modes.charAt(i);
+			
+			if (mode == '+' || mode == '-') {
+				adding = mode == '+';
+				continue;
+			}
+			
+			switch (spec.type(mode)) {
+			case ModeSpec.PREFIX:
+				if (next < args.size()) {
+					channel.updatePrefix(args.get(next++), spec.prefixFor(mode), adding);
+				}
+				
+				break;
+			case ModeSpec.LIST:
+				if (next < args.size()) {
+					String mask = args.get(next++);
+					List<String> list = lists == null ? null : lists.get(mode);
+					
+					if (list != null) {
+						if (adding) {
+							list.add(mask);
+						} else {
+							list.remove(mask);
+						}
+					}
+				}
+				
+				break;
+			case ModeSpec.ALWAYS_PARAM:
+				if (next < args.size()) {
+					String value = args.get(next++);
+					
+					if (adding) {
+						params.put(mode, value);
+					} else {
+						params.remove(mode);
+					}
+				}
+				
+				break;
+			case ModeSpec.PARAM_WHEN_SET:
+				if (adding) {
+					if (next < args.size()) {
+						params.put(mode, args.get(next++));
+					}
+				} else {
+					params.remove(mode);
+				}
+				
+				break;
+			default:
+				int bit = bit(mode);
+				
+				if (bit >= 0) {
+					flags = adding ? flags | (1L << bit) : flags & ~(1L << bit);
+				}
+				
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * replaces the flag and parameter modes with a complete mode reply.
+	 */
+	synchronized void reset(List<String> args, ModeSpec spec, Channel channel) {
+		flags = 0;
+		params.clear();
+		apply(args, spec, channel);
+	}
+	
+	/**
+	 * starts a fresh list for the mode, entries are added as the server
+	 * replies.
+	 */
+	synchronized void beginList(char mode) {
+		if (lists == null) {
+			lists = new HashMap<Character, List<String>>(4);
+		}
+		
+		lists.put(mode, new ArrayList<String>());
+	}
+	
+	synchronized void addListEntry(char mode, String mask) {
+		if (lists != null && lists.containsKey(mode)) {
+			lists.get(mode).add(mask);
+		}
+	}
+	
+	synchronized long getFlags() {
+		return flags;
+	}
+	
+	synchronized Map<Character, String> getParams() {
+		return new HashMap<Character, String>(params);
+	}
+	
+	/**
+	 * returns a copy of the loaded lists, null when none was loaded.
+	 */
+	synchronized Map<Character, List<String>> getLists() {
+		if (lists == null) {
+			return null;
+		}
+		
+		Map<Character, List<String>> copy = new HashMap<Character, List<String>>(lists.size());
+		
+		for (Map.Entry<Character, List<String>> e : lists.entrySet()) {
+			copy.put(e.getKey(), new ArrayList<String>(e.getValue()));
+		}
+		
+		return copy;
+	}
+	
+	/**
+	 * replaces every mode at once, used when a snapshot is restored.
+	 */
+	synchronized void restore(long f, Map<Character, String> p, Map<Character, List<String>> l) {
+		flags = f;
+		params = p;
+		lists = l;
+	}
+	
+	private static int bit(char mode) {
+		if (mode >= 'a' && mode <= 'z') {
+			return mode - 'a';
+		} else if (mode >= 'A' && mode <= 'Z') {
+			return 26 + mode - 'A';
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * The ModeSpec describes which channel modes take a parameter, taken
+	 * from the CHANMODES and PREFIX tokens of the server's 005 reply. Until
+	 * that arrives the rfc1459 defaults are used.
+	 *
+	 * @since 1
+	 */
+	public static class ModeSpec {
+		
+		static final int FLAG = 0;
+		static final int LIST = 1;
+		static final int ALWAYS_PARAM = 2;
+		static final int PARAM_WHEN_SET = 3;
+		static final int PREFIX = 4;
+		
+		private volatile String listModes = "beI";
+		private volatile String alwaysParam = "k";
+		private volatile String paramWhenSet = "l";
+		private volatile String prefixModes = "ov";
+		private volatile String prefixChars = "@+";
+		
+		int type(char mode) {
+			if (prefixModes.indexOf(mode) != -1) {
+				return PREFIX;
+			} else if (listModes.indexOf(mode) != -1) {
+				return LIST;
+			} else if (alwaysParam.indexOf(mode) != -1) {
+				return ALWAYS_PARAM;
+			} else if (paramWhenSet.indexOf(mode) != -1) {
+				return PARAM_WHEN_SET;
+			}
+			
+			return FLAG;
+		}
+		
+		char prefixFor(char mode) {
+			return prefixChars.charAt(prefixModes.indexOf(mode));
+		}
+		
+		/**
+		 * returns the member prefixes in order of rank, for example "@%+"
+		 *
+		 * @since 1
+		 */
+		public String getPrefixes() {
+			return prefixChars;
+		}
+		
+		/**
+		 * reads a CHANMODES or PREFIX token from a 005 reply, other tokens
+		 * are ignored.
+		 */
+		void parseToken(String token) {
+			if (token.startsWith("CHANMODES=")) {
+				String[] types = token.substring(10).split(",", -1);
+				
+				if (types.length >= 3) {
+					listModes = types[0];
+					alwaysParam = types[1];
+					paramWhenSet = types[2];
+				}
+			} else if (token.startsWith("PREFIX=(")) {
+				int close = token.indexOf(')');
+				
+				if (close != -1 && token.length() - close - 1 == close - 8) {
+					prefixModes = token.substring(8, close);
+					prefixChars = token.substring(close + 1);
+				}
+			}
+		}
+	}
+}
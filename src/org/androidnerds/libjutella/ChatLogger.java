@@ -0,0 +1,537 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The ChatLogger writes the channel and private chat messages of a server
+ * to disk, one file per channel or chat per day. Logging is off until a
+ * directory is set.
+ *
+ * The server only puts each message on a queue, the files are written by a
+ * background thread in batches, so a slow disk never holds up the
+ * connection. The queue is bounded, when the disk falls too far behind new
+ * messages are dropped and counted instead of filling up memory. Files of
+ * days that are over can be compressed with gzip once they are closed.
+ *
+ * Files are named after the day inside a directory per channel or chat,
+ * for example logs/#android/2010-03-14.log.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ChatLogger {
+	
+	//queued messages that wake the writer before its next scheduled pass.
+	private static final int BATCH = 256;
+	private static final long FLUSH_INTERVAL = 200;
+	private static final int MAX_OPEN = 32;
+	
+	private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+	
+	private ConcurrentLinkedQueue<Entry> queue;
+	private AtomicInteger pending;
+	private AtomicLong dropped;
+	private AtomicLong written;
+	private AtomicLong failed;
+	private AtomicLong uncompressed;
+	private volatile int capacity;
+	private volatile boolean compress;
+	private volatile ZoneId zone;
+	private volatile LogWriter writer;
+	
+	public ChatLogger() {
+		queue = new ConcurrentLinkedQueue<Entry>();
+		pending = new AtomicInteger();
+		dropped = new AtomicLong();
+		written = new AtomicLong();
+		failed = new AtomicLong();
+		uncompressed = new AtomicLong();
+		capacity = 10000;
+		zone = ZoneId.systemDefault();
+	}
+	
+	/**
+	 * sets the directory logs are written to and starts logging, null stops
+	 * logging. When logging stops or moves to another directory everything
+	 * already queued is written and the open files are closed first.
+	 *
+	 * @param dir the directory to write logs to, created if missing
+	 * @since 1
+	 */
+	public synchronized void setDirectory(File dir) {
+		LogWriter old = writer;
+		writer = null;
+		
+		if (old != null) {
+			old.finish();
+		}
+		
+		if (dir != null) {
+			writer = new LogWriter(dir);
+			writer.start();
+		}
+	}
+	
+	public synchronized File getDirectory() {
+		LogWriter w = writer;
+		return w == null ? null : w.directory;
+	}
+	
+	/**
+	 * sets the number of messages that may wait for the disk before new
+	 * ones are dropped, 10000 by default.
+	 *
+	 * @param max the number of queued messages
+	 * @since 1
+	 */
+	public void setCapacity(int max) {
+		capacity = Math.max(1, max);
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * sets whether the file of a day is compressed with gzip when it is
+	 * closed after the day is over. Messages arriving late for a compressed
+	 * day are appended to the compressed file.
+	 *
+	 * @param gzip true to compress closed files
+	 * @since 1
+	 */
+	public void setCompress(boolean gzip) {
+		compress = gzip;
+	}
+	
+	public boolean isCompress() {
+		return compress;
+	}
+	
+	/**
+	 * sets the time zone that decides where a day starts, the system time
+	 * zone by default.
+	 *
+	 * @param z the time zone of the log files
+	 * @since 1
+	 */
+	public void setZone(ZoneId z) {
+		zone = z;
+	}
+	
+	public ZoneId getZone() {
+		return zone;
+	}
+	
+	/**
+	 * returns the number of messages waiting to be written
+	 *
+	 * @since 1
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+	
+	/**
+	 * returns the number of messages dropped because too many were waiting
+	 * for the disk
+	 *
+	 * @since 1
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * returns the number of messages lost because their file could not be
+	 * written
+	 *
+	 * @since 1
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+	
+	public long getWrittenCount() {
+		return written.get();
+	}
+	
+	/**
+	 * returns the number of closed files that could not be compressed, those
+	 * are kept as plain files next to the compressed ones
+	 *
+	 * @since 1
+	 */
+	public long getCompressFailedCount() {
+		return uncompressed.get();
+	}
+	
+	/**
+	 * queues a message to be written to the log of a channel or private
+	 * chat. This never blocks, the message is dropped when logging is off or
+	 * the queue is full.
+	 *
+	 * @param msg the message to log
+	 * @param target the channel name or private chat user
+	 * @since 1
+	 */
+	public void log(Message msg, String target) {
+		LogWriter w = writer;
+		
+		if (w == null || target == null) {
+			return;
+		}
+		
+		if (pending.incrementAndGet() > capacity) {
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		
+		queue.offer(new Entry(msg, target));
+		
+		if (pending.get() >= BATCH && w.idle) {
+			LockSupport.unpark(w);
+		}
+	}
+	
+	/**
+	 * returns the line written for a message, without the line ending.
+	 */
+	private static String format(Message msg, ZoneId z) {
+		StringBuilder line = new StringBuilder(64);
+		line.append('[').append(TIME_FORMAT.format(Instant.ofEpochMilli(msg.rawTimestamp()).atZone(z))).append("] ");
+		
+		switch (msg.getCommand()) {
+		case Message.CMD_PRIVMSG:
+			if (msg.isCtcp("ACTION")) {
+				String args = msg.getCtcpArgs();
+				line.append("* ").append(msg.getSender());
+				
+				if (args != null) {
+					line.append(' ').append(args);
+				}
+			} else {
+				line.append('<').append(msg.getSender()).append("> ").append(msg.getText());
+			}
+			
+			break;
+		case Message.CMD_NOTICE:
+			line.append('-').append(msg.getSender()).append("- ").append(msg.getText());
+			break;
+		case Message.CMD_JOIN:
+			line.append("*** ").append(msg.getSender()).append(" has joined ").append(msg.getText() != null ? msg.getText() : msg.param(0));
+			break;
+		case Message.CMD_PART:
+			line.append("*** ").append(msg.getSender()).append(" has left ").append(msg.param(0));
+			reason(line, msg.getText());
+			break;
+		case Message.CMD_QUIT:
+			line.append("*** ").append(msg.getSender()).append(" has quit");
+			reason(line, msg.getText());
+			break;
+		case Message.CMD_KICK:
+			line.append("*** ").append(msg.param(1)).append(" was kicked by ").append(msg.getSender());
+			reason(line, msg.getText());
+			break;
+		case Message.CMD_TOPIC:
+			line.append("*** ").append(msg.getSender()).append(" changes topic to: ").append(msg.getText());
+			break;
+		case Message.CMD_MODE:
+			line.append("*** ").append(msg.getSender()).append(" sets mode");
+			
+			for (int i = 1; i < msg.paramCount(); i++) {
+				line.append(' ').append(msg.param(i));
+			}
+			
+			break;
+		default:
+			line.append("*** ").append(msg.getText());
+			break;
+		}
+		
+		return line.toString();
+	}
+	
+	private static void reason(StringBuilder line, String text) {
+		if (text != null && text.length() > 0) {
+			line.append(" (").append(text).append(')');
+		}
+	}
+	
+	/**
+	 * returns the name of the directory holding the logs of a channel or
+	 * chat, with characters that are not safe in file names replaced.
+	 */
+	static String fileName(String target) {
+		String folded = HighlightMatcher.fold(target);
+		StringBuilder name = new StringBuilder(folded.length());
+		
+		for (int i = 0; i < folded.length(); i++) {
+			char ch = folded.charAt(i);
+			
+			if (Character.isLetterOrDigit(ch) || ch == '#' || ch == '&' || ch == '-' || ch == '_' || (ch == '.' && i > 0)) {
+				name.append(ch);
+			} else {
+				name.append('_');
+			}
+		}
+		
+		return name.toString();
+	}
+	
+	private static class Entry {
+		
+		Message message;
+		String target;
+		
+		Entry(Message m, String t) {
+			message = m;
+			target = t;
+		}
+	}
+	
+	/**
+	 * An open log file, good for messages between start and end.
+	 */
+	private static class LogFile {
+		
+		File file;
+		Writer out;
+		long start;
+		long end;
+	}
+	
+	private class LogWriter extends Thread {
+		
+		File directory;
+		volatile boolean idle;
+		volatile boolean stopping;
+		Map<String, LogFile> files;
+		
+		LogWriter(File dir) {
+			super("libjutella-logger");
+			setDaemon(true);
+			directory = dir;
+			
+			//least recently written first, the oldest is closed when too many are open.
+			files = new LinkedHashMap<String, LogFile>(16, 0.75f, true);
+		}
+		
+		/**
+		 * writes what is queued, closes every file and waits for the thread to
+		 * end.
+		 */
+		void finish() {
+			stopping = true;
+			LockSupport.unpark(this);
+			
+			boolean interrupted = false;
+			
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		public void run() {
+			while (true) {
+				boolean last = stopping;
+				Entry e;
+				
+				while ((e = queue.poll()) != null) {
+					pending.decrementAndGet();
+					write(e);
+				}
+				
+				flush();
+				
+				if (last) {
+					break;
+				}
+				
+				idle = true;
+				
+				if (queue.isEmpty() && !stopping) {
+					LockSupport.parkNanos(FLUSH_INTERVAL * 1000000);
+				}
+				
+				idle = false;
+			}
+			
+			for (LogFile f : files.values()) {
+				close(f);
+			}
+			
+			files.clear();
+		}
+		
+		private void write(Entry e) {
+			long time = e.message.rawTimestamp();
+			String key = fileName(e.target);
+			LogFile f = files.get(key);
+			
+			if (f != null && (time < f.start || time >= f.end)) {
+				files.remove(key);
+				close(f);
+				f = null;
+			}
+			
+			try {
+				if (f == null) {
+					f = open(key, time);
+					files.put(key, f);
+					
+					if (files.size() > MAX_OPEN) {
+						Iterator<LogFile> it = files.values().iterator();
+						close(it.next());
+						it.remove();
+					}
+				}
+				
+				f.out.write(format(e.message, zone));
+				f.out.write('\n');
+				written.incrementAndGet();
+			} catch (IOException ex) {
+				failed.incrementAndGet();
+			}
+		}
+		
+		private LogFile open(String key, long time) throws IOException {
+			ZoneId z = zone;
+			LocalDate day = Instant.ofEpochMilli(time).atZone(z).toLocalDate();
+			File dir = new File(directory, key);
+			
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("cannot create " + dir);
+			}
+			
+			LogFile f = new LogFile();
+			f.file = new File(dir, DAY_FORMAT.format(day) + ".log");
+			f.start = day.atStartOfDay(z).toInstant().toEpochMilli();
+			f.end = day.plusDays(1).atStartOfDay(z).toInstant().toEpochMilli();
+			f.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f.file, true), StandardCharsets.UTF_8));
+			return f;
+		}
+		
+		/**
+		 * flushes every open file and closes those whose day is over, so a
+		 * channel that went quiet at midnight does not keep yesterday open.
+		 */
+		private void flush() {
+			long now = System.currentTimeMillis();
+			List<String> ended = new ArrayList<String>();
+			
+			for (Map.Entry<String, LogFile> entry : files.entrySet()) {
+				LogFile f = entry.getValue();
+				
+				try {
+					f.out.flush();
+				} catch (IOException e) {
+					failed.incrementAndGet();
+				}
+				
+				if (f.end <= now) {
+					ended.add(entry.getKey());
+				}
+			}
+			
+			for (String key : ended) {
+				close(files.remove(key));
+			}
+		}
+		
+		private void close(LogFile f) {
+			try {
+				f.out.close();
+			} catch (IOException e) {
+				failed.incrementAndGet();
+			}
+			
+			if (compress && f.end <= System.currentTimeMillis()) {
+				try {
+					gzip(f.file);
+				} catch (IOException e) {
+					//the plain file is kept.
+					uncompressed.incrementAndGet();
+				}
+			}
+		}
+		
+		/**
+		 * appends the file to its .gz file and deletes it, gzip streams may be
+		 * concatenated so late messages simply add another member.
+		 */
+		private void gzip(File file) throws IOException {
+			if (!file.exists()) {
+				return;
+			}
+			
+			InputStream in = new FileInputStream(file);
+			
+			try {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(new File(file.getPath() + ".gz"), true));
+				
+				try {
+					byte[] buffer = new byte[8192];
+					int n;
+					
+					while ((n = in.read(buffer)) != -1) {
+						out.write(buffer, 0, n);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The CtcpResponder answers CTCP requests such as VERSION, PING, TIME and
+ * CLIENTINFO on behalf of the application. Replies are rate limited per
+ * sending host and overall, so a flood of requests, even from many nicks at
+ * once, cannot fill the outgoing queue and get the client kicked for
+ * flooding. Requests over the limit are silently dropped.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class CtcpResponder {
+	
+	private static final char CTCP = '\u0001';
+	
+	private Server server;
+	private Map<String, String> replies;
+	private Map<String, long[]> senders;
+	private long[] total;
+	private volatile boolean enabled = true;
+	private int senderLimit = 2;
+	private long senderWindow = 10000;
+	private int totalLimit = 6;
+	private long totalWindow = 10000;
+	private volatile long dropped;
+	
+	public CtcpResponder(Server s) {
+		server = s;
+		replies = new HashMap<String, String>();
+		senders = new HashMap<String, long[]>();
+		total = new long[2];
+	}
+	
+	/**
+	 * turns the automatic replies on or off, they are on by default.
+	 *
+	 * @param on whether to answer CTCP requests
+	 * @since 1
+	 */
+	public void setEnabled(boolean on) {
+		enabled = on;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * sets a fixed reply for a CTCP command, for example the VERSION string.
+	 * A null reply stops the command from being answered at all.
+	 *
+	 * @param command the CTCP command
+	 * @param reply the text sent back after the command
+	 * @since 1
+	 */
+	public synchronized void setReply(String command, String reply) {
+		replies.put(command.toUpperCase(), reply);
+	}
+	
+	/**
+	 * goes back to the built in reply for the command, or to no reply for
+	 * commands the library does not know.
+	 *
+	 * @param command the CTCP command
+	 * @since 1
+	 */
+	public synchronized void removeReply(String command) {
+		replies.remove(command.toUpperCase());
+	}
+	
+	/**
+	 * limits the replies sent to any one host to max per window, 2 every
+	 * 10 seconds by default.
+	 *
+	 * @param max the number of replies per window
+	 * @param window the length of the window in milliseconds
+	 * @since 1
+	 */
+	public synchronized void setSenderRateLimit(int max, long window) {
+		senderLimit = max;
+		senderWindow = window;
+		senders.clear();
+	}
+	
+	/**
+	 * limits the replies sent to everybody together to max per window, 6
+	 * every 10 seconds by default.
+	 *
+	 * @param max the number of replies per window
+	 * @param window the length of the window in milliseconds
+	 * @since 1
+	 */
+	public synchronized void setRateLimit(int max, long window) {
+		totalLimit = max;
+		totalWindow = window;
+		total[0] = 0;
+		total[1] = 0;
+	}
+	
+	/**
+	 * returns the number of requests left unanswered because of the rate
+	 * limits
+	 *
+	 * @since 1
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+	
+	/**
+	 * Answers a CTCP request if it is known and within the rate limits.
+	 *
+	 * @param message the request
+	 * @return true if a reply was sent
+	 */
+	boolean respond(Message message) {
+		if (!enabled || message.getSender() == null) {
+			return false;
+		}
+		
+		String command = message.getCtcpCommand();
+		String reply;
+		
+		synchronized (this) {
+			if (replies.containsKey(command)) {
+				reply = replies.get(command);
+			} else {
+				reply = builtIn(command, message.getCtcpArgs());
+			}
+			
+			if (reply == null) {
+				return false;
+			}
+			
+			String host = message.getHost() != null ? message.getHost().toLowerCase() : HighlightMatcher.fold(message.getSender());
+			
+			if (!acquire(host, message.rawTimestamp())) {
+				dropped++;
+				return false;
+			}
+		}
+		
+		Message msg = new Message();
+		msg.setType(Message.TYPE_SERVER);
+		msg.setText("/notice " + message.getSender() + " " + CTCP + command + (reply.length() > 0 ? " " + reply : "") + CTCP);
+		server.sendMessage(msg);
+		return true;
+	}
+	
+	private String builtIn(String command, String args) {
+		if (command.equals("VERSION")) {
+			return "libjutella";
+		} else if (command.equals("PING")) {
+			return args != null ? args : "";
+		} else if (command.equals("TIME")) {
+			return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now());
+		} else if (command.equals("CLIENTINFO")) {
+			TreeSet<String> known = new TreeSet<String>();
+			known.add("ACTION");
+			known.add("CLIENTINFO");
+			known.add("DCC");
+			known.add("PING");
+			known.add("TIME");
+			known.add("VERSION");
+			
+			for (Map.Entry<String, String> e : replies.entrySet()) {
+				if (e.getValue() != null) {
+					known.add(e.getKey());
+				} else {
+					known.remove(e.getKey());
+				}
+			}
+			
+			return String.join(" ", known);
+		}
+		
+		return null;
+	}
+	
+	private boolean acquire(String host, long now) {
+		if (now - total[0] >= totalWindow) {
+			total[0] = now;
+			total[1] = 0;
+		}
+		
+		if (total[1] >= totalLimit) {
+			return false;
+		}
+		
+		long[] window = senders.get(host);
+		
+		if (window == null || now - window[0] >= senderWindow) {
+			if (senders.size() >= 1024) {
+				expire(now);
+			}
+			
+			window = new long[] { now, 0 };
+			senders.put(host, window);
+		}
+		
+		if (window[1] >= senderLimit) {
+			return false;
+		}
+		
+		window[1]++;
+		total[1]++;
+		return true;
+	}
+	
+	private void expire(long now) {
+		Iterator<long[]> windows = senders.values().iterator();
+		
+		while (windows.hasNext()) {
+			if (now - windows.next()[0] >= senderWindow) {
+				windows.remove();
+			}
+		}
+	}
+}
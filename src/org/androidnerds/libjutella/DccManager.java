@@ -0,0 +1,364 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The DccManager negotiates DCC file transfers for a server. Files are
+ * offered to other users with send, offers from other users are passed to
+ * ServerListener.onDccOffer and started with accept. Both sides support
+ * DCC RESUME and ACCEPT to continue a partly received file.
+ *
+ * Other DCC requests, DCC CHAT among them, are not handled here. They reach
+ * the application like any other CTCP request, through
+ * ServerListener.onCtcpRequest.
+ *
+ * The address announced in outgoing offers has to be one the other user
+ * can reach, set it with setLocalAddress when the machine is behind NAT.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class DccManager {
+	
+	private static final char CTCP = '\u0001';
+	
+	private Server server;
+	private InetAddress localAddress;
+	private long timeout = 120000;
+	private List<DccTransfer> transfers;
+	
+	public DccManager(Server s) {
+		server = s;
+		transfers = new ArrayList<DccTransfer>();
+	}
+	
+	/**
+	 * sets the address announced in outgoing offers, the local host address
+	 * is used when none is set.
+	 *
+	 * @param addr the address other users connect to
+	 * @since 1
+	 */
+	public void setLocalAddress(InetAddress addr) {
+		localAddress = addr;
+	}
+	
+	public InetAddress getLocalAddress() {
+		return localAddress;
+	}
+	
+	/**
+	 * sets how long a transfer may go without any activity before it fails,
+	 * including the wait for the other side to connect. 2 minutes by default.
+	 *
+	 * @param millis the timeout in milliseconds, 0 to wait forever
+	 * @since 1
+	 */
+	public synchronized void setTimeout(long millis) {
+		timeout = millis;
+	}
+	
+	/**
+	 * returns the transfers that have been offered, sent or received and are
+	 * not finished yet.
+	 *
+	 * @since 1
+	 */
+	public synchronized List<DccTransfer> getTransfers() {
+		List<DccTransfer> active = new ArrayList<DccTransfer>();
+		
+		for (DccTransfer t : transfers) {
+			if (t.getState() != DccTransfer.STATE_DONE && t.getState() != DccTransfer.STATE_FAILED) {
+				active.add(t);
+			}
+		}
+		
+		return active;
+	}
+	
+	/**
+	 * offers a file to a user. A port is opened for the other side to
+	 * connect to and the offer is sent as a DCC SEND request.
+	 *
+	 * @param nick the user to send the file to
+	 * @param file the file to send
+	 * @return the transfer, its future completes once the file is received
+	 * @throws IOException if the file cannot be read or no port can be opened
+	 * @since 1
+	 */
+	public DccTransfer send(String nick, File file) throws IOException {
+		if (!file.isFile() || !file.canRead()) {
+			throw new IOException("cannot read " + file);
+		}
+		
+		DccTransfer transfer = new DccTransfer(nick, file.getName(), false);
+		long millis;
+		
+		synchronized (this) {
+			millis = timeout;
+		}
+		
+		transfer.listen(file, millis);
+		add(transfer);
+		DccPool.get().submit(transfer);
+		
+		ctcp(nick, "DCC SEND " + quote(file.getName()) + " " + encodeAddress(announcedAddress()) + " "
+				+ transfer.getPort() + " " + transfer.getSize());
+		return transfer;
+	}
+	
+	/**
+	 * starts receiving an offered file. When resume is set and the target
+	 * already holds part of the file the sender is asked to continue from
+	 * there, otherwise the target is overwritten.
+	 *
+	 * @param offer the transfer passed to ServerListener.onDccOffer
+	 * @param target the file to write to
+	 * @param resume whether to continue a partly received file
+	 * @return the transfer's future
+	 * @throws IOException if the transfer cannot be started
+	 * @since 1
+	 */
+	public CompletableFuture<DccTransfer> accept(DccTransfer offer, File target, boolean resume) throws IOException {
+		if (offer.getState() != DccTransfer.STATE_OFFERED) {
+			throw new IllegalStateException("the transfer has already been accepted");
+		}
+		
+		long existing = target.isFile() ? target.length() : 0;
+		long millis;
+		
+		synchronized (this) {
+			millis = timeout;
+		}
+		
+		if (resume && existing > 0 && (offer.getSize() == 0 || existing < offer.getSize())) {
+			//the connection is made once the sender agrees with a DCC ACCEPT.
+			offer.prepare(target, existing, millis);
+			offer.awaitAccept();
+			DccPool.get().submit(offer);
+			ctcp(offer.getNick(), "DCC RESUME " + quote(offer.getFilename()) + " " + offer.getPort() + " " + existing);
+		} else {
+			offer.prepare(target, 0, millis);
+			DccPool.get().submit(offer);
+		}
+		
+		return offer.getFuture();
+	}
+	
+	/**
+	 * Handles a DCC file transfer request received in a private message.
+	 *
+	 * @param message the private message
+	 * @return true if the message was a DCC SEND, RESUME or ACCEPT request,
+	 * false for other DCC requests such as CHAT and anything else
+	 */
+	boolean receive(Message message) {
+		if (!message.isCtcp("DCC")) {
+			return false;
+		}
+		
+		String request = message.getCtcpArgs();
+		List<String> args = split(request != null ? request : "");
+		String type = args.isEmpty() ? "" : args.get(0).toUpperCase();
+		
+		if (!type.equals("SEND") && !type.equals("RESUME") && !type.equals("ACCEPT")) {
+			return false;
+		}
+		
+		if (args.size() < 4) {
+			return true;
+		}
+		
+		try {
+			if (type.equals("SEND")) {
+				offered(message.getSender(), args);
+			} else if (type.equals("RESUME")) {
+				resumeRequested(message.getSender(), args);
+			} else {
+				resumeAccepted(message.getSender(), args);
+			}
+		} catch (NumberFormatException e) {
+			
+		} catch (IOException e) {
+			
+		}
+		
+		return true;
+	}
+	
+	private void offered(String nick, List<String> args) throws IOException {
+		int port = Integer.parseInt(args.get(3));
+		long size = args.size() > 4 ? Long.parseLong(args.get(4)) : 0;
+		
+		//passive offers with port 0 need a reverse connection, not supported.
+		if (port <= 0 || port > 65535) {
+			return;
+		}
+		
+		//never let the sender pick a directory.
+		String name = args.get(1).replace('\\', '/');
+		name = name.substring(name.lastIndexOf('/') + 1);
+		
+		DccTransfer offer = new DccTransfer(nick, name, true);
+		offer.setOffer(new InetSocketAddress(decodeAddress(args.get(2)), port), size);
+		add(offer);
+		server.dccOffered(offer);
+	}
+	
+	private void resumeRequested(String nick, List<String> args) {
+		int port = Integer.parseInt(args.get(2));
+		long position = Long.parseLong(args.get(3));
+		DccTransfer transfer = find(nick, port, false);
+		
+		if (transfer != null && transfer.resumeAt(position)) {
+			ctcp(nick, "DCC ACCEPT " + quote(args.get(1)) + " " + port + " " + position);
+		}
+	}
+	
+	private void resumeAccepted(String nick, List<String> args) {
+		int port = Integer.parseInt(args.get(2));
+		DccTransfer transfer = find(nick, port, true);
+		
+		if (transfer != null && transfer.getState() == DccTransfer.STATE_CONNECTING
+				&& Long.parseLong(args.get(3)) == transfer.getStartPosition()) {
+			transfer.accepted();
+		}
+	}
+	
+	private synchronized void add(DccTransfer transfer) {
+		//forget finished transfers as new ones come in.
+		for (int i = transfers.size() - 1; i >= 0; i--) {
+			int state = transfers.get(i).getState();
+			
+			if (state == DccTransfer.STATE_DONE || state == DccTransfer.STATE_FAILED) {
+				transfers.remove(i);
+			}
+		}
+		
+		transfers.add(transfer);
+	}
+	
+	private synchronized DccTransfer find(String nick, int port, boolean incoming) {
+		for (DccTransfer t : transfers) {
+			if (t.isIncoming() == incoming && t.getPort() == port && t.getNick().equalsIgnoreCase(nick)) {
+				return t;
+			}
+		}
+		
+		return null;
+	}
+	
+	private void ctcp(String nick, String request) {
+		Message msg = new Message();
+		msg.setType(Message.TYPE_SERVER);
+		msg.setText("/msg " + nick + " " + CTCP + request + CTCP);
+		server.sendMessage(msg);
+	}
+	
+	private InetAddress announcedAddress() throws UnknownHostException {
+		InetAddress addr = localAddress;
+		return addr != null ? addr : InetAddress.getLocalHost();
+	}
+	
+	/**
+	 * returns the address in the form used by DCC, a decimal number for IPv4
+	 * and the usual notation for IPv6.
+	 */
+	static String encodeAddress(InetAddress addr) {
+		if (addr instanceof Inet4Address) {
+			byte[] b = addr.getAddress();
+			long value = ((b[0] & 0xffL) << 24) | ((b[1] & 0xffL) << 16) | ((b[2] & 0xffL) << 8) | (b[3] & 0xffL);
+			return Long.toString(value);
+		}
+		
+		return addr.getHostAddress();
+	}
+	
+	/**
+	 * returns the address of an offer. Only numeric addresses are accepted,
+	 * a host name would need a blocking lookup on the connection thread.
+	 */
+	static InetAddress decodeAddress(String addr) throws UnknownHostException {
+		boolean digits = addr.length() > 0;
+		boolean literal = addr.length() > 0;
+		
+		for (int i = 0; i < addr.length(); i++) {
+			char c = addr.charAt(i);
+			digits &= c >= '0' && c <= '9';
+			literal &= c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == '.' || c == ':';
+		}
+		
+		//dotted IPv4 and IPv6 literals are parsed without a lookup.
+		if (!digits) {
+			if (!literal || (addr.indexOf(':') == -1 && !addr.matches("[0-9.]+"))) {
+				throw new UnknownHostException("not a numeric address: " + addr);
+			}
+			
+			return InetAddress.getByName(addr);
+		}
+		
+		long value = Long.parseLong(addr);
+		byte[] b = { (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value };
+		return InetAddress.getByAddress(b);
+	}
+	
+	private static String quote(String name) {
+		return name.indexOf(' ') != -1 ? "\"" + name + "\"" : name;
+	}
+	
+	/**
+	 * splits the request on spaces, keeping a quoted file name together.
+	 */
+	private static List<String> split(String request) {
+		List<String> args = new ArrayList<String>();
+		int i = 0;
+		
+		while (i < request.length()) {
+			if (request.charAt(i) == ' ') {
+				i++;
+			} else if (request.charAt(i) == '"') {
+				int close = request.indexOf('"', i + 1);
+				
+				if (close == -1) {
+					close = request.length();
+				}
+				
+				args.add(request.substring(i + 1, close));
+				i = close + 1;
+			} else {
+				int space = request.indexOf(' ', i);
+				
+				if (space == -1) {
+					space = request.length();
+				}
+				
+				args.add(request.substring(i, space));
+				i = space;
+			}
+		}
+		
+		return args;
+	}
+}
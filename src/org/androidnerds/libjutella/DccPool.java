@@ -0,0 +1,182 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The DccPool runs the socket side of every DCC transfer in the process on
+ * a few selector threads instead of a thread per transfer. Transfers are
+ * spread over the threads round robin and stay on the same thread for their
+ * whole life, so a transfer's state is only ever touched by one thread.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+class DccPool {
+	
+	private static DccPool shared;
+	
+	private Loop[] loops;
+	private AtomicInteger next = new AtomicInteger();
+	
+	DccPool(int threads) {
+		loops = new Loop[threads];
+	}
+	
+	/**
+	 * returns the pool shared by all servers, it is started on first use.
+	 */
+	static synchronized DccPool get() {
+		if (shared == null) {
+			shared = new DccPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
+		}
+		
+		return shared;
+	}
+	
+	/**
+	 * hands the transfer to one of the selector threads, its start method is
+	 * called from that thread.
+	 */
+	void submit(DccTransfer transfer) throws IOException {
+		Loop loop = loop(Math.floorMod(next.getAndIncrement(), loops.length));
+		transfer.setLoop(loop);
+		loop.execute(new Runnable() {
+			public void run() {
+				transfer.start();
+			}
+		});
+	}
+	
+	private synchronized Loop loop(int i) throws IOException {
+		if (loops[i] == null) {
+			loops[i] = new Loop("libjutella-dcc-" + (i + 1));
+		}
+		
+		return loops[i];
+	}
+	
+	/**
+	 * A single selector thread. Work for its transfers from other threads is
+	 * queued and run between selects.
+	 */
+	static class Loop implements Runnable {
+		
+		private Selector selector;
+		private ConcurrentLinkedQueue<Runnable> tasks;
+		private List<DccTransfer> waiting;
+		
+		Loop(String name) throws IOException {
+			selector = Selector.open();
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+			waiting = new ArrayList<DccTransfer>();
+			
+			Thread t = new Thread(this, name);
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+		
+		SelectionKey register(SelectableChannel channel, int ops, DccTransfer transfer) throws IOException {
+			channel.configureBlocking(false);
+			return channel.register(selector, ops, transfer);
+		}
+		
+		/**
+		 * keeps a transfer that has no channel yet in the timeout checks, only
+		 * called on the loop thread.
+		 */
+		void await(DccTransfer transfer) {
+			waiting.add(transfer);
+		}
+		
+		void release(DccTransfer transfer) {
+			waiting.remove(transfer);
+		}
+		
+		public void run() {
+			long lastCheck = System.currentTimeMillis();
+			
+			while (true) {
+				try {
+					selector.select(1000);
+				} catch (IOException e) {
+					continue;
+				}
+				
+				Runnable task;
+				
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						
+					}
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					DccTransfer transfer = (DccTransfer) key.attachment();
+					
+					//a cancelled key or a broken channel only ends its own transfer.
+					try {
+						if (key.isValid()) {
+							transfer.ready(key);
+						}
+					} catch (RuntimeException e) {
+						transfer.fail(e);
+					}
+				}
+				
+				long now = System.currentTimeMillis();
+				
+				if (now - lastCheck >= 1000) {
+					lastCheck = now;
+					List<DccTransfer> check = new ArrayList<DccTransfer>(waiting);
+					
+					for (SelectionKey key : selector.keys()) {
+						if (key.isValid()) {
+							check.add((DccTransfer) key.attachment());
+						}
+					}
+					
+					for (DccTransfer transfer : check) {
+						try {
+							transfer.checkTimeout(now);
+						} catch (RuntimeException e) {
+							transfer.fail(e);
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,573 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A DccTransfer is a single file sent to or received from another user
+ * over DCC. Outgoing transfers listen for the other side to connect, while
+ * incoming transfers connect to the address given in the offer once they
+ * have been accepted with DccManager.accept.
+ *
+ * The file is moved with FileChannel.transferTo and transferFrom so the data
+ * does not pass through the java heap, and all socket work is done by the
+ * shared DCC selector threads. Progress and throughput can be read at any
+ * time from another thread.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class DccTransfer {
+	
+	public static final int STATE_OFFERED = 0;
+	public static final int STATE_WAITING = 1;
+	public static final int STATE_CONNECTING = 2;
+	public static final int STATE_TRANSFERRING = 3;
+	public static final int STATE_DONE = 4;
+	public static final int STATE_FAILED = 5;
+	
+	//the largest slice handed to a single transferTo or transferFrom call.
+	private static final long CHUNK = 256 * 1024;
+	
+	private String nick;
+	private String filename;
+	private boolean incoming;
+	private volatile File file;
+	private volatile long size;
+	private volatile long startPosition;
+	private volatile long position;
+	private volatile int state = STATE_OFFERED;
+	private volatile long startTime;
+	private volatile long endTime;
+	private long timeout;
+	private long lastActivity;
+	private InetSocketAddress address;
+	private int port;
+	private CompletableFuture<DccTransfer> future;
+	
+	private DccPool.Loop loop;
+	private ServerSocketChannel listener;
+	private SocketChannel socket;
+	private FileChannel fileChannel;
+	private SelectionKey key;
+	private ByteBuffer ack = ByteBuffer.allocate(4);
+	private boolean finishing;
+	private long acked;
+	private boolean awaitingAccept;
+	
+	DccTransfer(String nick, String filename, boolean incoming) {
+		this.nick = nick;
+		this.filename = filename;
+		this.incoming = incoming;
+		future = new CompletableFuture<DccTransfer>();
+		
+		//the receiver writes acks from this buffer, it starts with none queued.
+		if (incoming) {
+			ack.limit(0);
+		}
+	}
+	
+	/**
+	 * returns the nickname of the user on the other side
+	 *
+	 * @since 1
+	 */
+	public String getNick() {
+		return nick;
+	}
+	
+	/**
+	 * returns the file name as it is announced in the offer, without any
+	 * directory part
+	 *
+	 * @since 1
+	 */
+	public String getFilename() {
+		return filename;
+	}
+	
+	/**
+	 * returns the local file being sent or written, null for an offer that
+	 * has not been accepted yet
+	 *
+	 * @since 1
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	public boolean isIncoming() {
+		return incoming;
+	}
+	
+	/**
+	 * returns the size of the file in bytes, 0 if the sender did not say
+	 *
+	 * @since 1
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * returns the offset the transfer started from, non zero when resuming
+	 *
+	 * @since 1
+	 */
+	public long getStartPosition() {
+		return startPosition;
+	}
+	
+	/**
+	 * returns the offset in the file reached so far
+	 *
+	 * @since 1
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * returns the number of bytes moved by this transfer, not counting the
+	 * part of a resumed file that was already there
+	 *
+	 * @since 1
+	 */
+	public long getBytesTransferred() {
+		return position - startPosition;
+	}
+	
+	public int getState() {
+		return state;
+	}
+	
+	/**
+	 * returns the time spent moving data in milliseconds, measured from the
+	 * moment the connection was made until it finished or until now
+	 *
+	 * @since 1
+	 */
+	public long getElapsed() {
+		long start = startTime;
+		
+		if (start == 0) {
+			return 0;
+		}
+		
+		long end = endTime;
+		return (end != 0 ? end : System.currentTimeMillis()) - start;
+	}
+	
+	/**
+	 * returns the average throughput of the transfer in bytes per second
+	 *
+	 * @since 1
+	 */
+	public long getBytesPerSecond() {
+		return getBytesTransferred() * 1000 / Math.max(1, getElapsed());
+	}
+	
+	/**
+	 * returns a future completed with this transfer once the whole file has
+	 * been moved, or failed with the IOException that stopped it
+	 *
+	 * @since 1
+	 */
+	public CompletableFuture<DccTransfer> getFuture() {
+		return future;
+	}
+	
+	/**
+	 * stops the transfer and closes its connection, the future is cancelled.
+	 *
+	 * @since 1
+	 */
+	public void cancel() {
+		DccPool.Loop l = loop;
+		
+		if (l == null) {
+			state = STATE_FAILED;
+			future.cancel(false);
+			return;
+		}
+		
+		l.execute(new Runnable() {
+			public void run() {
+				fail(new CancellationException());
+			}
+		});
+	}
+	
+	int getPort() {
+		return port;
+	}
+	
+	InetSocketAddress getAddress() {
+		return address;
+	}
+	
+	void setOffer(InetSocketAddress addr, long length) {
+		address = addr;
+		port = addr.getPort();
+		size = length;
+	}
+	
+	/**
+	 * opens the listening socket of an outgoing transfer, the port is known
+	 * once this returns.
+	 */
+	void listen(File f, long timeoutMillis) throws IOException {
+		file = f;
+		size = f.length();
+		timeout = timeoutMillis;
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(0));
+		port = listener.socket().getLocalPort();
+		state = STATE_WAITING;
+	}
+	
+	/**
+	 * prepares an accepted incoming transfer to write to the file from the
+	 * given offset.
+	 */
+	void prepare(File f, long offset, long timeoutMillis) {
+		file = f;
+		startPosition = offset;
+		position = offset;
+		acked = offset;
+		timeout = timeoutMillis;
+		state = STATE_CONNECTING;
+	}
+	
+	/**
+	 * moves the start of an outgoing transfer that is still waiting for its
+	 * connection, as asked for by a DCC RESUME.
+	 */
+	synchronized boolean resumeAt(long offset) {
+		if (state != STATE_WAITING || offset < 0 || offset > size) {
+			return false;
+		}
+		
+		startPosition = offset;
+		position = offset;
+		return true;
+	}
+	
+	void setLoop(DccPool.Loop l) {
+		loop = l;
+	}
+	
+	/**
+	 * makes an incoming transfer that asked to resume wait for the DCC
+	 * ACCEPT of the sender before connecting, the wait counts toward the
+	 * timeout.
+	 */
+	void awaitAccept() {
+		awaitingAccept = true;
+	}
+	
+	/**
+	 * connects an incoming transfer once the sender accepted the resume.
+	 */
+	void accepted() {
+		loop.execute(new Runnable() {
+			public void run() {
+				if (awaitingAccept && state == STATE_CONNECTING) {
+					awaitingAccept = false;
+					loop.release(DccTransfer.this);
+					start();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * called on the selector thread once the transfer has been submitted.
+	 */
+	void start() {
+		lastActivity = System.currentTimeMillis();
+		
+		if (awaitingAccept) {
+			loop.await(this);
+			return;
+		}
+		
+		try {
+			if (incoming) {
+				fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				
+				if (startPosition == 0) {
+					fileChannel.truncate(0);
+				}
+				
+				socket = SocketChannel.open();
+				socket.configureBlocking(false);
+				
+				if (socket.connect(address)) {
+					connected();
+				} else {
+					key = loop.register(socket, SelectionKey.OP_CONNECT, this);
+				}
+			} else {
+				fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				key = loop.register(listener, SelectionKey.OP_ACCEPT, this);
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * called on the selector thread when one of the transfer's channels is
+	 * ready.
+	 */
+	void ready(SelectionKey k) {
+		lastActivity = System.currentTimeMillis();
+		
+		try {
+			if (k.isAcceptable()) {
+				socket = listener.accept();
+				
+				if (socket == null) {
+					return;
+				}
+				
+				k.cancel();
+				listener.close();
+				listener = null;
+				connected();
+				return;
+			}
+			
+			if (k.isConnectable()) {
+				socket.finishConnect();
+				connected();
+				return;
+			}
+			
+			if (incoming) {
+				if (k.isReadable()) {
+					receive();
+				}
+				
+				if (k.isValid() && k.isWritable()) {
+					flushAck();
+				}
+			} else {
+				if (k.isReadable()) {
+					readAcks();
+				}
+				
+				if (k.isValid() && k.isWritable()) {
+					send();
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * fails the transfer if nothing has happened on it for too long.
+	 */
+	void checkTimeout(long now) {
+		if (timeout > 0 && now - lastActivity > timeout) {
+			fail(new SocketTimeoutException("no activity from " + nick + " for " + timeout + "ms"));
+		}
+	}
+	
+	private void connected() throws IOException {
+		socket.configureBlocking(false);
+		int ops = incoming ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		
+		if (key != null && key.channel() == socket) {
+			key.interestOps(ops);
+		} else {
+			key = loop.register(socket, ops, this);
+		}
+		
+		startTime = System.currentTimeMillis();
+		state = STATE_TRANSFERRING;
+		
+		if (!incoming && position >= size) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+	
+	private void send() throws IOException {
+		long n = fileChannel.transferTo(position, Math.min(CHUNK, size - position), socket);
+		position += n;
+		
+		//everything is out, wait for the receiver to acknowledge it.
+		if (position >= size) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+	
+	private void readAcks() throws IOException {
+		while (true) {
+			int n = socket.read(ack);
+			
+			if (n == -1) {
+				if (position >= size) {
+					finish();
+				} else {
+					throw new IOException(nick + " closed the connection at " + position + " of " + size);
+				}
+				
+				return;
+			}
+			
+			if (ack.hasRemaining()) {
+				return;
+			}
+			
+			//acknowledgements count the bytes received modulo 2^32.
+			ack.flip();
+			long acked = ack.getInt() & 0xffffffffL;
+			ack.clear();
+			
+			if (position >= size && acked == (size & 0xffffffffL)) {
+				finish();
+				return;
+			}
+		}
+	}
+	
+	private void receive() throws IOException {
+		long want = size > 0 ? Math.min(CHUNK, size - position) : CHUNK;
+		long n = fileChannel.transferFrom(socket, position, want);
+		
+		if (n == 0) {
+			//transferFrom cannot tell an empty socket from a closed one.
+			ByteBuffer one = ByteBuffer.allocate(1);
+			int read = socket.read(one);
+			
+			if (read == -1) {
+				if (size > 0 && position < size) {
+					throw new IOException(nick + " closed the connection at " + position + " of " + size);
+				}
+				
+				finish();
+				return;
+			}
+			
+			if (read == 1) {
+				one.flip();
+				fileChannel.write(one, position);
+				n = 1;
+			}
+		}
+		
+		if (n > 0) {
+			position += n;
+			finishing = size > 0 && position >= size;
+			flushAck();
+		}
+	}
+	
+	/**
+	 * writes the acknowledgement of the current position, a partly written
+	 * one is finished first. The transfer is done once the receiver has
+	 * acknowledged the whole file.
+	 */
+	private void flushAck() throws IOException {
+		if (!ack.hasRemaining() && acked != position) {
+			ack.clear();
+			ack.putInt((int) position);
+			ack.flip();
+			acked = position;
+		}
+		
+		while (ack.hasRemaining() && socket.write(ack) > 0) {
+			if (!ack.hasRemaining() && acked != position) {
+				ack.clear();
+				ack.putInt((int) position);
+				ack.flip();
+				acked = position;
+			}
+		}
+		
+		if (ack.hasRemaining()) {
+			key.interestOps(finishing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else if (finishing) {
+			finish();
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+	
+	private void finish() {
+		if (state == STATE_DONE || state == STATE_FAILED) {
+			return;
+		}
+		
+		endTime = System.currentTimeMillis();
+		state = STATE_DONE;
+		close();
+		future.complete(this);
+	}
+	
+	void fail(Throwable t) {
+		if (state == STATE_DONE || state == STATE_FAILED) {
+			return;
+		}
+		
+		if (startTime != 0) {
+			endTime = System.currentTimeMillis();
+		}
+		
+		state = STATE_FAILED;
+		close();
+		future.completeExceptionally(t);
+	}
+	
+	private void close() {
+		if (key != null) {
+			key.cancel();
+		}
+		
+		if (awaitingAccept) {
+			loop.release(this);
+		}
+		
+		closeQuietly(listener);
+		closeQuietly(socket);
+		closeQuietly(fileChannel);
+	}
+	
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				
+			}
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The EventDispatcher runs the listener callbacks of a server. By default
+ * they run on the connection thread as each message is processed. With
+ * worker threads set, callbacks are split into lanes by channel or private
+ * chat: each lane runs its callbacks one at a time in the order the server
+ * sent them, while different lanes run on the workers side by side.
+ *
+ * Callbacks that do not belong to a channel share a lane of their own. A
+ * user changing nick moves their private chat lane to the new nick, so
+ * their messages stay in order across the change.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+class EventDispatcher {
+	
+	//callbacks a lane runs before letting other lanes have the worker.
+	private static final int BATCH = 64;
+	private static final String SERVER_LANE = "";
+	
+	//callbacks queued before the connection thread has to wait for them.
+	private static final int MAX_PENDING = 10000;
+	
+	//set while a lane runs callbacks on the current thread.
+	private static final ThreadLocal<Boolean> IN_CALLBACK = new ThreadLocal<Boolean>();
+	
+	private ExecutorService workers;
+	private Semaphore capacity;
+	private Map<String, Lane> lanes;
+	private int threads;
+	private int queued;
+	private boolean draining;
+	
+	EventDispatcher() {
+		capacity = new Semaphore(MAX_PENDING);
+		lanes = new HashMap<String, Lane>();
+	}
+	
+	/**
+	 * sets the number of worker threads, 0 runs callbacks on the calling
+	 * thread. Callbacks already queued run first, new callbacks wait for
+	 * them, unless the threads are changed from within a callback, which
+	 * cannot wait for itself.
+	 */
+	synchronized void setThreads(int count, String name) {
+		if (workers != null) {
+			workers.shutdown();
+			draining = true;
+			boolean interrupted = false;
+			
+			while (queued > 0 && IN_CALLBACK.get() == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			
+			draining = false;
+			workers = null;
+			notifyAll();
+			
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		threads = count;
+		
+		if (count > 0) {
+			final AtomicInteger n = new AtomicInteger();
+			final String prefix = name;
+			
+			workers = Executors.newFixedThreadPool(count, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, prefix + "-" + n.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+	
+	synchronized int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * runs the callback in the lane of the channel or user, or in the
+	 * server's lane when key is null. The caller waits while too many
+	 * callbacks are queued.
+	 */
+	void dispatch(String key, Runnable callback) {
+		ExecutorService pool;
+		
+		synchronized (this) {
+			boolean interrupted = false;
+			
+			//callbacks queued before a change of threads go first.
+			while (draining && IN_CALLBACK.get() == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			
+			pool = workers;
+		}
+		
+		if (pool == null) {
+			callback.run();
+			return;
+		}
+		
+		capacity.acquireUninterruptibly();
+		String name = key == null ? SERVER_LANE : HighlightMatcher.fold(key);
+		Lane lane;
+		boolean start;
+		
+		synchronized (this) {
+			lane = lanes.get(name);
+			
+			if (lane == null) {
+				lane = new Lane(name);
+				lanes.put(name, lane);
+			}
+			
+			lane.callbacks.add(callback);
+			queued++;
+			start = !lane.running;
+			
+			if (start) {
+				lane.pool = pool;
+				lane.running = true;
+			}
+		}
+		
+		if (start) {
+			try {
+				pool.execute(lane);
+			} catch (RejectedExecutionException e) {
+				//the workers were replaced meanwhile.
+				lane.run();
+			}
+		}
+	}
+	
+	/**
+	 * moves the lane of a user to their new nick, callbacks for the new nick
+	 * then run after the ones still queued for the old one.
+	 */
+	synchronized void rename(String from, String to) {
+		String oldName = HighlightMatcher.fold(from);
+		String newName = HighlightMatcher.fold(to);
+		Lane lane = lanes.get(oldName);
+		
+		if (lane != null && !lanes.containsKey(newName)) {
+			lanes.remove(oldName);
+			lane.name = newName;
+			lanes.put(newName, lane);
+		}
+	}
+	
+	/**
+	 * waits until every callback queued so far has returned.
+	 */
+	synchronized void awaitIdle() throws InterruptedException {
+		while (queued > 0) {
+			wait();
+		}
+	}
+	
+	private class Lane implements Runnable {
+		
+		String name;
+		ExecutorService pool;
+		ArrayDeque<Runnable> callbacks;
+		boolean running;
+		
+		Lane(String n) {
+			name = n;
+			callbacks = new ArrayDeque<Runnable>();
+		}
+		
+		public void run() {
+			boolean nested = IN_CALLBACK.get() != null;
+			IN_CALLBACK.set(Boolean.TRUE);
+			
+			try {
+				runCallbacks();
+			} finally {
+				if (!nested) {
+					IN_CALLBACK.remove();
+				}
+			}
+		}
+		
+		private void runCallbacks() {
+			for (int i = 1; ; i++) {
+				Runnable callback;
+				
+				synchronized (EventDispatcher.this) {
+					callback = callbacks.poll();
+					
+					if (callback == null) {
+						running = false;
+						
+						if (lanes.get(name) == this) {
+							lanes.remove(name);
+						}
+						
+						return;
+					}
+				}
+				
+				try {
+					callback.run();
+				} catch (RuntimeException e) {
+					
+				} finally {
+					capacity.release();
+					
+					synchronized (EventDispatcher.this) {
+						if (--queued == 0) {
+							EventDispatcher.this.notifyAll();
+						}
+					}
+				}
+				
+				//still busy, go to the back of the worker queue.
+				if (i % BATCH == 0) {
+					try {
+						pool.execute(this);
+						return;
+					} catch (RejectedExecutionException e) {
+						//the workers were replaced, finish the lane here.
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HighlightMatcher finds the user's nickname and any number of keywords
+ * in message text. All keywords are compiled into a single Aho-Corasick
+ * automaton so each message is scanned once no matter how many keywords are
+ * configured. Matching follows the rfc1459 casemapping, where {}|^ are the
+ * lower case forms of []\~.
+ *
+ * The automaton is rebuilt lazily the first time a message is matched after
+ * the keywords change, matching itself works on an immutable snapshot and
+ * never blocks.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class HighlightMatcher {
+	
+	private List<String> keywords;
+	private String nickname;
+	private boolean wholeWords = true;
+	private volatile Node root;
+	
+	public HighlightMatcher() {
+		keywords = new ArrayList<String>();
+	}
+	
+	/**
+	 * adds a keyword to highlight on.
+	 *
+	 * @param keyword the keyword to match
+	 * @since 1
+	 */
+	public synchronized void addKeyword(String keyword) {
+		if (keyword != null && keyword.length() > 0) {
+			keywords.add(keyword);
+			root = null;
+		}
+	}
+	
+	public synchronized void removeKeyword(String keyword) {
+		if (keywords.remove(keyword)) {
+			root = null;
+		}
+	}
+	
+	public synchronized List<String> getKeywords() {
+		return new ArrayList<String>(keywords);
+	}
+	
+	/**
+	 * sets the nickname that is always highlighted, the server keeps this
+	 * up to date when the user's nick changes.
+	 *
+	 * @param nick the current nickname
+	 * @since 1
+	 */
+	public synchronized void setNickname(String nick) {
+		if (nick == null ? nickname != null : !nick.equals(nickname)) {
+			nickname = nick;
+			root = null;
+		}
+	}
+	
+	/**
+	 * when enabled, which is the default, a keyword only matches when it is
+	 * not surrounded by other nickname characters, so "mike" does not match
+	 * inside "mikey".
+	 *
+	 * @param whole whether to match whole words only
+	 * @since 1
+	 */
+	public synchronized void setWholeWords(boolean whole) {
+		wholeWords = whole;
+		root = null;
+	}
+	
+	/**
+	 * Scans the text once and returns every distinct keyword found in it,
+	 * in the order they first appear.
+	 *
+	 * @param text the message text
+	 * @return the matched keywords, an empty array when nothing matched
+	 * @since 1
+	 */
+	public String[] match(String text) {
+		Node r = root;
+		
+		if (r == null) {
+			r = build();
+		}
+		
+		if (text == null || r.patterns.length == 0) {
+			return NONE;
+		}
+		
+		List<String> found = null;
+		boolean[] seen = null;
+		Node state = r;
+		
+		for (int i = 0; i < text.length(); i++) {
+			char ch = fold(text.charAt(i));
+			
+			while (state != r && state.next(ch) == null) {
+				state = state.fail;
+			}
+			
+			Node next = state.next(ch);
+			state = next == null ? r : next;
+			
+			for (int p : state.output) {
+				String pattern = r.patterns[p];
+				int start = i - pattern.length() + 1;
+				
+				if (r.whole && !(isBoundary(text, start - 1) && isBoundary(text, i + 1))) {
+					continue;
+				}
+				
+				if (found == null) {
+					found = new ArrayList<String>(2);
+					seen = new boolean[r.patterns.length];
+				}
+				
+				if (!seen[p]) {
+					seen[p] = true;
+					found.add(r.originals[p]);
+				}
+			}
+		}
+		
+		return found == null ? NONE : found.toArray(new String[found.size()]);
+	}
+	
+	private synchronized Node build() {
+		if (root != null) {
+			return root;
+		}
+		
+		List<String> all = new ArrayList<String>(keywords);
+		
+		if (nickname != null && nickname.length() > 0) {
+			all.add(0, nickname);
+		}
+		
+		Node r = new Node();
+		r.patterns = new String[all.size()];
+		r.originals = all.toArray(new String[all.size()]);
+		r.whole = wholeWords;
+		
+		for (int p = 0; p < all.size(); p++) {
+			String pattern = fold(all.get(p));
+			Node n = r;
+			r.patterns[p] = pattern;
+			
+			for (int i = 0; i < pattern.length(); i++) {
+				char ch = pattern.charAt(i);
+				Node child = n.next(ch);
+				
+				if (child == null) {
+					child = new Node();
+					n.children.put(ch, child);
+				}
+				
+				n = child;
+			}
+			
+			n.output = append(n.output, p);
+		}
+		
+		LinkedList<Node> queue = new LinkedList<Node>();
+		
+		for (Node child : r.children.values()) {
+			child.fail = r;
+			queue.add(child);
+		}
+		
+		while (!queue.isEmpty()) {
+			Node n = queue.removeFirst();
+			
+			for (Map.Entry<Character, Node> e : n.children.entrySet()) {
+				Node child = e.getValue();
+				Node f = n.fail;
+				
+				while (f != r && f.next(e.getKey()) == null) {
+					f = f.fail;
+				}
+				
+				Node target = f.next(e.getKey());
+				child.fail = target == null || target == child ? r : target;
+				
+				for (int p : child.fail.output) {
+					child.output = append(child.output, p);
+				}
+				
+				queue.add(child);
+			}
+		}
+		
+		root = r;
+		return r;
+	}
+	
+	private static int[] append(int[] a, int v) {
+		for (int x : a) {
+			if (x == v) {
+				return a;
+			}
+		}
+		
+		int[] b = new int[a.length + 1];
+		System.arraycopy(a, 0, b, 0, a.length);
+		b[a.length] = v;
+		return b;
+	}
+	
+	private static boolean isBoundary(String text, int i) {
+		if (i < 0 || i >= text.length()) {
+			return true;
+		}
+		
+		char ch = text.charAt(i);
+		return !(Character.isLetterOrDigit(ch) || "-_[]{}\\|`^".indexOf(ch) != -1);
+	}
+	
+	/**
+	 * folds a single character according to the rfc1459 casemapping
+	 *
+	 * @since 1
+	 */
+	public static char fold(char ch) {
+		if (ch >= 'A' && ch <= 'Z') {
+			return (char) (ch + ('a' - 'A'));
+		}
+		
+		switch (ch) {
+		case '[':
+			return '{';
+		case ']':
+			return '}';
+		case '\\':
+			return '|';
+		case '~':
+			return '^';
+		}
+		
+		return Character.toLowerCase(ch);
+	}
+	
+	/**
+	 * folds a string according to the rfc1459 casemapping
+	 *
+	 * @since 1
+	 */
+	public static String fold(String s) {
+		char[] chars = new char[s.length()];
+		
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = fold(s.charAt(i));
+		}
+		
+		return new String(chars);
+	}
+	
+	private static final String[] NONE = new String[0];
+	
+	private static class Node {
+		
+		Map<Character, Node> children = new HashMap<Character, Node>(4);
+		Node fail;
+		int[] output = new int[0];
+		
+		//only set on the root node.
+		String[] patterns;
+		String[] originals;
+		boolean whole;
+		
+		Node next(char ch) {
+			return children.get(ch);
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JoinScheduler joins channels in batches. Queued channel names are
+ * packed into comma separated JOIN lines that fit the protocol's line
+ * length, and the lines are sent a fixed interval apart so joining hundreds
+ * of channels does not trip the server's flood protection.
+ *
+ * Every queued channel gets a future that completes with the Channel once
+ * the server confirms the join, or fails with a JoinException when the
+ * server refuses it. Channels added to the auto join list are queued each
+ * time the server connects.
+ *
+ * Lines are only sent while the server is registered. Channels whose JOIN
+ * went out but was not confirmed before the connection dropped go back on
+ * the queue and are sent again after reconnecting, their futures stay the
+ * same.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class JoinScheduler {
+	
+	//512 bytes per line minus the trailing CRLF and the "JOIN " command,
+	//counted in bytes of the server encoding.
+	private static final int MAX_TARGETS_LENGTH = 512 - 2 - 5;
+	
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "libjutella-join");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	private Server server;
+	private Set<String> autoJoin;
+	private List<String> queue;
+	private List<String> sent;
+	private boolean online;
+	private Map<String, CompletableFuture<Channel>> pending;
+	private long interval = 2000;
+	private boolean scheduled;
+	private long lastSent;
+	
+	public JoinScheduler(Server s) {
+		server = s;
+		autoJoin = new LinkedHashSet<String>();
+		queue = new ArrayList<String>();
+		sent = new ArrayList<String>();
+		pending = new HashMap<String, CompletableFuture<Channel>>();
+	}
+	
+	/**
+	 * sets the delay between two JOIN lines in milliseconds, 2 seconds by
+	 * default.
+	 *
+	 * @param millis the delay between lines
+	 * @since 1
+	 */
+	public synchronized void setInterval(long millis) {
+		interval = millis;
+	}
+	
+	/**
+	 * adds a channel that is joined every time the server connects.
+	 *
+	 * @param channel the channel name
+	 * @since 1
+	 */
+	public synchronized void addAutoJoin(String channel) {
+		autoJoin.add(channel);
+	}
+	
+	public synchronized void removeAutoJoin(String channel) {
+		autoJoin.remove(channel);
+	}
+	
+	public synchronized List<String> getAutoJoin() {
+		return new ArrayList<String>(autoJoin);
+	}
+	
+	/**
+	 * queues a channel to be joined.
+	 *
+	 * @param channel the channel name
+	 * @return a future completed with the channel once it is joined
+	 * @since 1
+	 */
+	public synchronized CompletableFuture<Channel> join(String channel) {
+		String key = HighlightMatcher.fold(channel);
+		CompletableFuture<Channel> future = pending.get(key);
+		
+		if (future == null) {
+			future = new CompletableFuture<Channel>();
+			pending.put(key, future);
+			queue.add(channel);
+			schedule(Math.max(0, lastSent + interval - System.currentTimeMillis()));
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * queues several channels to be joined.
+	 *
+	 * @param channels the channel names
+	 * @return the futures of each channel, in the same order
+	 * @since 1
+	 */
+	public synchronized List<CompletableFuture<Channel>> join(Collection<String> channels) {
+		List<CompletableFuture<Channel>> futures = new ArrayList<CompletableFuture<Channel>>(channels.size());
+		
+		for (String channel : channels) {
+			futures.add(join(channel));
+		}
+		
+		return futures;
+	}
+	
+	/**
+	 * called by the server once it is connected, queues the auto join list.
+	 */
+	synchronized void connected() {
+		online = true;
+		join(autoJoin);
+		schedule(0);
+	}
+	
+	/**
+	 * called by the server when the connection is lost, joins that were
+	 * sent but not confirmed are queued again for the next connection.
+	 */
+	synchronized void disconnected() {
+		online = false;
+		queue.addAll(0, sent);
+		sent.clear();
+	}
+	
+	/**
+	 * called by the server when it receives its own JOIN.
+	 */
+	void joined(Channel channel) {
+		CompletableFuture<Channel> future;
+		
+		synchronized (this) {
+			String key = HighlightMatcher.fold(channel.getName());
+			future = pending.remove(key);
+			remove(sent, key);
+		}
+		
+		if (future != null) {
+			future.complete(channel);
+		}
+	}
+	
+	/**
+	 * called by the server when it receives an error numeric for a join.
+	 */
+	void failed(String channel, Message reason) {
+		CompletableFuture<Channel> future;
+		
+		synchronized (this) {
+			String key = HighlightMatcher.fold(channel);
+			future = pending.remove(key);
+			remove(queue, key);
+			remove(sent, key);
+		}
+		
+		if (future != null) {
+			future.completeExceptionally(new JoinException(channel, reason));
+		}
+	}
+	
+	private static void remove(List<String> channels, String key) {
+		for (int i = 0; i < channels.size(); i++) {
+			if (HighlightMatcher.fold(channels.get(i)).equals(key)) {
+				channels.remove(i);
+				break;
+			}
+		}
+	}
+	
+	private void schedule(long delay) {
+		if (online && !scheduled) {
+			scheduled = true;
+			timer.schedule(new Runnable() {
+				public void run() {
+					sendNext();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private void sendNext() {
+		String targets;
+		
+		synchronized (this) {
+			scheduled = false;
+			
+			if (!online || queue.isEmpty()) {
+				return;
+			}
+			
+			Charset charset = server.getEncoding();
+			StringBuilder line = new StringBuilder();
+			int bytes = 0;
+			int taken = 0;
+			
+			for (String channel : queue) {
+				int length = channel.getBytes(charset).length;
+				
+				if (taken > 0 && bytes + 1 + length > MAX_TARGETS_LENGTH) {
+					break;
+				}
+				
+				if (taken > 0) {
+					line.append(',');
+					bytes++;
+				}
+				
+				line.append(channel);
+				bytes += length;
+				taken++;
+			}
+			
+			List<String> batch = queue.subList(0, taken);
+			sent.addAll(batch);
+			batch.clear();
+			targets = line.toString();
+			lastSent = System.currentTimeMillis();
+			
+			if (!queue.isEmpty()) {
+				schedule(interval);
+			}
+		}
+		
+		Message msg = new Message();
+		msg.setType(Message.TYPE_SERVER);
+		msg.setCommand(Message.CMD_JOIN);
+		msg.setText("/join " + targets);
+		server.sendMessage(msg);
+	}
+	
+	/**
+	 * The exception a join future fails with when the server refuses to let
+	 * the user into the channel.
+	 *
+	 * @since 1
+	 */
+	public static class JoinException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private Message reply;
+		
+		public JoinException(String channel, Message msg) {
+			super("cannot join " + channel + (msg.getText() != null ? ": " + msg.getText() : ""));
+			reply = msg;
+		}
+		
+		/**
+		 * returns the error reply sent by the server
+		 *
+		 * @since 1
+		 */
+		public Message getReply() {
+			return reply;
+		}
+	}
+}
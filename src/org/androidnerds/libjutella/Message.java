@@ -27,10 +27,20 @@ public class Message {
 	
 	private int type;
 	private int command;
+	private String rawCommand;
 	private String sender;
-	private String[] parameters;
+	private String user;
+	private String host;
+	//built from the offsets on first use and then read by any thread.
+	private volatile String[] parameters;
+	private String line;
+	private int[] paramOffsets;
+	private int paramCount;
+	private NameTable names;
 	private String text;
+	private int ctcpEnd = -1;
 	private long timestamp;
+	private String[] highlights;
 	
 	public Message() {
 		timestamp = new Date().getTime();
@@ -72,6 +82,20 @@ public class Message {
 		return command;
 	}
 	
+	/**
+	 * gets the command exactly as the server sent it, for example PRIVMSG or
+	 * a three digit numeric reply
+	 *
+	 * @since 1
+	 */
+	public String getRawCommand() {
+		return rawCommand;
+	}
+	
+	protected void setRawCommand(String c) {
+		rawCommand = c;
+	}
+	
 	/**
 	 * sets the text of the message
 	 *
@@ -79,6 +103,7 @@ public class Message {
 	 */
 	protected void setText(String t) {
 		text = t;
+		ctcpEnd = -1;
 	}
 	
 	/**
@@ -90,6 +115,154 @@ public class Message {
 		return text;
 	}
 	
+	/**
+	 * returns the line exactly as it was received from the server, or null
+	 * for messages created by the library itself. Messages kept in a channel
+	 * or private chat history drop their line, use toLine for those.
+	 *
+	 * @since 1
+	 */
+	public String getRawLine() {
+		return line;
+	}
+	
+	/**
+	 * returns the line as it was received while the message still has it,
+	 * otherwise a line rebuilt from the parsed fields.
+	 *
+	 * @return the line, or null if the command of the message is not known
+	 * @since 1
+	 */
+	public String toLine() {
+		String raw = line;
+		
+		if (raw != null) {
+			return raw;
+		}
+		
+		String cmd = rawCommand != null ? rawCommand : commandName(command);
+		
+		if (cmd == null) {
+			return null;
+		}
+		
+		StringBuilder b = new StringBuilder();
+		
+		if (sender != null) {
+			b.append(':').append(sender);
+			
+			if (user != null) {
+				b.append('!').append(user);
+			}
+			
+			if (host != null) {
+				b.append('@').append(host);
+			}
+			
+			b.append(' ');
+		}
+		
+		b.append(cmd);
+		
+		for (int i = 0; i < paramCount; i++) {
+			b.append(' ').append(param(i));
+		}
+		
+		if (text != null) {
+			b.append(" :").append(text);
+		}
+		
+		return b.toString();
+	}
+	
+	/**
+	 * drops the received line of a message kept in a history, the parameters
+	 * are created from it first. The shared names the message now keeps are
+	 * counted by the server's name table.
+	 */
+	void compact() {
+		if (line == null) {
+			return;
+		}
+		
+		setParams(getParams());
+		NameTable table = names;
+		
+		if (table != null) {
+			table.stored(sender);
+			
+			for (int i = 0; i < paramCount; i++) {
+				table.stored(parameters[i]);
+			}
+			
+			if (command == CMD_JOIN || command == CMD_NICK) {
+				table.stored(text);
+			}
+		}
+	}
+	
+	void setRawLine(String raw) {
+		line = raw;
+	}
+	
+	/**
+	 * marks the text as a CTCP request or reply, the command ends at the
+	 * given index of the text.
+	 */
+	void setCtcp(int commandEnd) {
+		ctcpEnd = commandEnd;
+	}
+	
+	int getCtcpEnd() {
+		return ctcpEnd;
+	}
+	
+	/**
+	 * returns true when the text is a CTCP request or reply wrapped in \001
+	 * characters, such as VERSION, PING or ACTION
+	 *
+	 * @since 1
+	 */
+	public boolean isCtcp() {
+		return ctcpEnd != -1;
+	}
+	
+	/**
+	 * returns true when the text is a CTCP message with the given command,
+	 * compared in place without creating any string.
+	 *
+	 * @param ctcp the CTCP command, for example ACTION
+	 * @since 1
+	 */
+	public boolean isCtcp(String ctcp) {
+		return ctcpEnd == ctcp.length() + 1 && text.regionMatches(true, 1, ctcp, 0, ctcp.length());
+	}
+	
+	/**
+	 * returns the CTCP command of the message, or null if it is not a CTCP
+	 * message
+	 *
+	 * @since 1
+	 */
+	public String getCtcpCommand() {
+		return ctcpEnd == -1 ? null : text.substring(1, ctcpEnd).toUpperCase();
+	}
+	
+	/**
+	 * returns what follows the CTCP command up to the closing \001, for
+	 * example the action text of an ACTION, or null if there is nothing
+	 *
+	 * @since 1
+	 */
+	public String getCtcpArgs() {
+		if (ctcpEnd == -1 || ctcpEnd >= text.length() || text.charAt(ctcpEnd) != ' ') {
+			return null;
+		}
+		
+		int end = text.indexOf('\u0001', ctcpEnd);
+		return text.substring(ctcpEnd + 1, end == -1 ? text.length() : end);
+	}
+	
 	/**
 	 * sets the parameters of the message
 	 *
@@ -97,15 +270,92 @@ public class Message {
 	 */
 	protected void setParams(String[] params) {
 		parameters = params;
+		paramCount = params == null ? 0 : params.length;
+		line = null;
+		paramOffsets = null;
 	}
 	
 	/**
-	 * gets the parameters of the message.
+	 * sets the parameters as start and end offsets into the raw line, the
+	 * strings are only created when they are asked for.
+	 */
+	void setParamOffsets(String raw, int[] offsets, int count, NameTable table) {
+		names = table;
+		parameters = null;
+		line = raw;
+		paramOffsets = offsets;
+		paramCount = count;
+	}
+	
+	/**
+	 * gets the parameters of the message. The array is built on the first
+	 * call, use paramCount and param when only a few parameters are needed.
 	 * 
 	 * @since 1 
 	 */
 	public String[] getParams() {
-		return parameters;
+		String[] params = parameters;
+		
+		if (params == null && paramOffsets != null) {
+			params = new String[paramCount];
+			
+			for (int i = 0; i < params.length; i++) {
+				params[i] = param(i);
+			}
+			
+			parameters = params;
+		}
+		
+		return params;
+	}
+	
+	/**
+	 * returns the number of parameters of the message
+	 *
+	 * @since 1
+	 */
+	public int paramCount() {
+		return paramCount;
+	}
+	
+	/**
+	 * returns a single parameter of the message without building the whole
+	 * parameter array.
+	 *
+	 * @param i the index of the parameter
+	 * @return the parameter
+	 * @throws IndexOutOfBoundsException if there is no such parameter
+	 * @since 1
+	 */
+	public String param(int i) {
+		if (i < 0 || i >= paramCount) {
+			throw new IndexOutOfBoundsException("parameter " + i + " of " + paramCount);
+		}
+		
+		String[] params = parameters;
+		
+		if (params != null) {
+			return params[i];
+		}
+		
+		int start = paramOffsets[i * 2];
+		int end = paramOffsets[i * 2 + 1];
+		
+		//the target and any channel name are shared with the server's names.
+		if (names != null && (i == 0 || "#&+!".indexOf(line.charAt(start)) != -1)) {
+			return names.intern(line, start, end);
+		}
+		
+		return line.substring(start, end);
+	}
+	
+	/**
+	 * returns the last parameter of the message, or null if it has none
+	 *
+	 * @since 1
+	 */
+	public String lastParam() {
+		return paramCount == 0 ? null : param(paramCount - 1);
 	}
 	
 	public String getSender() {
@@ -116,6 +366,58 @@ public class Message {
 		sender = s;
 	}
 	
+	/**
+	 * gets the user (ident) portion of the sender's prefix, null for
+	 * messages without a nick!user@host prefix
+	 *
+	 * @since 1
+	 */
+	public String getUser() {
+		return user;
+	}
+	
+	protected void setUser(String u) {
+		user = u;
+	}
+	
+	/**
+	 * gets the host portion of the sender's prefix, null for messages
+	 * without a nick!user@host prefix
+	 *
+	 * @since 1
+	 */
+	public String getHost() {
+		return host;
+	}
+	
+	protected void setHost(String h) {
+		host = h;
+	}
+	
+	/**
+	 * returns the nickname and keywords found in the text of this message,
+	 * see HighlightMatcher. Null when the message was not matched.
+	 *
+	 * @since 1
+	 */
+	public String[] getHighlights() {
+		return highlights;
+	}
+	
+	/**
+	 * returns true when the text of this message mentions the user's nick
+	 * or one of the configured highlight keywords
+	 *
+	 * @since 1
+	 */
+	public boolean isHighlighted() {
+		return highlights != null && highlights.length > 0;
+	}
+	
+	protected void setHighlights(String[] h) {
+		highlights = h;
+	}
+	
 	/**
 	 * returns the raw timestamp of the message
 	 *
@@ -125,6 +427,10 @@ public class Message {
 		return timestamp;
 	}
 	
+	protected void setTimestamp(long t) {
+		timestamp = t;
+	}
+	
 	/**
 	 * return the short version of the timestamp
 	 *
@@ -143,6 +449,61 @@ public class Message {
 		return "";
 	}
 	
+	/**
+	 * returns the name of a command as sent by the server, null for the
+	 * commands that stand for several numerics.
+	 */
+	private static String commandName(int command) {
+		switch (command) {
+		case SERV_CONNECTED:
+			return "001";
+		case SERV_TOPIC:
+			return "332";
+		case SERV_TOPIC_SET:
+			return "333";
+		case SERV_USERS:
+			return "353";
+		case SERV_END_USERS:
+			return "366";
+		case SERV_NO_NICK:
+			return "431";
+		case SERV_ERRONEUS_NICK:
+			return "432";
+		case SERV_NICK_IN_USE:
+			return "433";
+		case SERV_NICK_COLLISION:
+			return "434";
+		case SERV_ERROR:
+			return "ERROR";
+		case CMD_NICK:
+			return "NICK";
+		case CMD_QUIT:
+			return "QUIT";
+		case CMD_JOIN:
+			return "JOIN";
+		case CMD_PART:
+			return "PART";
+		case CMD_MODE:
+			return "MODE";
+		case CMD_TOPIC:
+			return "TOPIC";
+		case CMD_INVITE:
+			return "INVITE";
+		case CMD_KICK:
+			return "KICK";
+		case CMD_PRIVMSG:
+			return "PRIVMSG";
+		case CMD_NOTICE:
+			return "NOTICE";
+		case CMD_PING:
+			return "PING";
+		case CMD_PONG:
+			return "PONG";
+		default:
+			return null;
+		}
+	}
+	
 	/* Below contains the definitions for types and commands */
 	
 	//the following items refer to message types.
@@ -178,4 +539,7 @@ public class Message {
 	public static final int CMD_UNKNOWN = 23;
 	public static final int CMD_PONG = 24;
 	
+	public static final int SERV_END_USERS = 25;
+	public static final int SERV_JOIN_ERROR = 26;
+	
 }
\ No newline at end of file
@@ -0,0 +1,317 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The MessageDeduplicator drops channel messages that arrive more than once
+ * because several servers are connected to the same network and sit in the
+ * same channel. It is shared by the servers of a ConnectionManager and
+ * consulted before a message is stored or handed to any listener.
+ *
+ * A message is identified by its network, channel, sender and text, plus
+ * the msgid tag when the line carries one. The first copy
+ * from any server is kept, the same message received by each of the other
+ * servers within the window is dropped. A user repeating themselves is not
+ * a duplicate, each copy a server receives counts as a new message.
+ *
+ * Only a 64 bit hash of each message is kept, in a ring ordered by arrival
+ * with an open addressing index, so memory is fixed by the capacity.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class MessageDeduplicator {
+	
+	//servers beyond this share their bits, their copies may slip through.
+	private static final int MAX_SERVERS = 32;
+	
+	private long window;
+	private int capacity;
+	private long[] hashes;
+	private long[] times;
+	private int[] seen;
+	private int head;
+	private int count;
+	private int[] index;
+	private int indexMask;
+	private Map<Server, Integer> slots;
+	private long dropped;
+	
+	public MessageDeduplicator() {
+		window = 10000;
+		slots = new IdentityHashMap<Server, Integer>();
+		setCapacity(8192);
+	}
+	
+	/**
+	 * sets how long after the first copy of a message the copies from other
+	 * servers are still dropped, 10 seconds by default.
+	 *
+	 * @param millis the window in milliseconds
+	 * @since 1
+	 */
+	public synchronized void setWindow(long millis) {
+		window = Math.max(0, millis);
+	}
+	
+	public synchronized long getWindow() {
+		return window;
+	}
+	
+	/**
+	 * sets the number of messages remembered, the oldest is forgotten early
+	 * when more arrive within the window. Messages already remembered are
+	 * forgotten.
+	 *
+	 * @param max the number of messages to remember
+	 * @since 1
+	 */
+	public synchronized void setCapacity(int max) {
+		capacity = Math.max(16, max);
+		hashes = new long[capacity];
+		times = new long[capacity];
+		seen = new int[capacity];
+		head = 0;
+		count = 0;
+		
+		int size = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		index = new int[size];
+		indexMask = size - 1;
+	}
+	
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * returns the number of messages remembered
+	 *
+	 * @since 1
+	 */
+	public synchronized int size() {
+		return count;
+	}
+	
+	/**
+	 * returns the number of duplicates dropped
+	 *
+	 * @since 1
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+	
+	/**
+	 * forgets a server that is no longer connected. Its bit is cleared from
+	 * the remembered messages, so a server given the same slot later is not
+	 * taken to have received them already.
+	 *
+	 * @param server the server to forget
+	 * @since 1
+	 */
+	public synchronized void remove(Server server) {
+		Integer slot = slots.remove(server);
+		
+		//a slot shared by more than MAX_SERVERS servers is still in use.
+		if (slot == null || slots.containsValue(slot)) {
+			return;
+		}
+		
+		int mask = ~(1 << slot);
+		
+		for (int i = 0; i < count; i++) {
+			seen[(head + i) % capacity] &= mask;
+		}
+	}
+	
+	/**
+	 * returns true if another server already received this channel message
+	 * and this server has not received it before. Every other message is
+	 * remembered and false is returned.
+	 *
+	 * @param server the server the message arrived on
+	 * @param message a PRIVMSG or NOTICE sent to a channel
+	 * @since 1
+	 */
+	public boolean isDuplicate(Server server, Message message) {
+		long hash = hash(server.getNetwork(), message);
+		long now = System.currentTimeMillis();
+		
+		synchronized (this) {
+			int bit = 1 << slot(server);
+			
+			while (count > 0 && times[head] <= now - window) {
+				evict();
+			}
+			
+			for (int p = home(hash); index[p] != 0; p = (p + 1) & indexMask) {
+				int e = index[p] - 1;
+				
+				if (hashes[e] == hash && (seen[e] & bit) == 0) {
+					seen[e] |= bit;
+					dropped++;
+					return true;
+				}
+			}
+			
+			//a full ring makes room only now, a lookup must not evict the
+			//very message it is looking for.
+			if (count == capacity) {
+				evict();
+			}
+			
+			int e = (head + count) % capacity;
+			hashes[e] = hash;
+			times[e] = now;
+			seen[e] = bit;
+			count++;
+			
+			int p = home(hash);
+			
+			while (index[p] != 0) {
+				p = (p + 1) & indexMask;
+			}
+			
+			index[p] = e + 1;
+			return false;
+		}
+	}
+	
+	private int slot(Server server) {
+		Integer slot = slots.get(server);
+		
+		if (slot == null) {
+			long used = 0;
+			
+			for (Integer s : slots.values()) {
+				used |= 1L << s;
+			}
+			
+			slot = slots.size() < MAX_SERVERS ? Long.numberOfTrailingZeros(~used) : slots.size() % MAX_SERVERS;
+			slots.put(server, slot);
+		}
+		
+		return slot;
+	}
+	
+	private int home(long hash) {
+		return (int) ((hash * 0x9e3779b97f4a7c15L) >>> 32) & indexMask;
+	}
+	
+	/**
+	 * drops the oldest message from the ring and its index entry, shifting
+	 * the entries after it back so every lookup still finds its run.
+	 */
+	private void evict() {
+		int e = head;
+		int i = home(hashes[e]);
+		
+		while (index[i] != e + 1) {
+			i = (i + 1) & indexMask;
+		}
+		
+		int j = i;
+		
+		while (true) {
+			j = (j + 1) & indexMask;
+			
+			if (index[j] == 0) {
+				break;
+			}
+			
+			int k = home(hashes[index[j] - 1]);
+			
+			//move it back unless its home lies after the hole, cyclically.
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+			
+			index[i] = index[j];
+			i = j;
+		}
+		
+		index[i] = 0;
+		head = (head + 1) % capacity;
+		count--;
+	}
+	
+	/**
+	 * returns a 64 bit FNV-1a hash over the fields identifying a message.
+	 */
+	private static long hash(String network, Message message) {
+		long h = 0xcbf29ce484222325L;
+		h = hash(h, network);
+		h = hash(h, HighlightMatcher.fold(message.param(0)));
+		h = hash(h, message.getSender());
+		h = hash(h, message.getText());
+		
+		//only a msgid names one message, a time tag is shared by a user
+		//repeating themselves within a second. Servers only send tags after
+		//CAP negotiation, which the library does not do yet.
+		String line = message.getRawLine();
+		
+		if (line != null && line.startsWith("@")) {
+			h = hash(h, tag(line, "msgid"));
+		}
+		
+		return h;
+	}
+	
+	private static long hash(long h, String s) {
+		if (s != null) {
+			for (int i = 0; i < s.length(); i++) {
+				h ^= s.charAt(i);
+				h *= 0x100000001b3L;
+			}
+		}
+		
+		//a separator so fields cannot run into each other.
+		h ^= 0xff;
+		h *= 0x100000001b3L;
+		return h;
+	}
+	
+	/**
+	 * returns the value of a message tag from the @tags prefix of a raw line.
+	 */
+	static String tag(String line, String name) {
+		int end = line.indexOf(' ');
+		
+		if (end == -1) {
+			end = line.length();
+		}
+		
+		int pos = 1;
+		
+		while (pos < end) {
+			int next = line.indexOf(';', pos);
+			
+			if (next == -1 || next > end) {
+				next = end;
+			}
+			
+			if (line.startsWith(name, pos) && pos + name.length() < next && line.charAt(pos + name.length()) == '=') {
+				return line.substring(pos + name.length() + 1, next);
+			}
+			
+			pos = next + 1;
+		}
+		
+		return null;
+	}
+}
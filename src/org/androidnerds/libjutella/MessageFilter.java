@@ -0,0 +1,268 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MessageFilter is consulted by the Server before a parsed message is
+ * stored or handed to any listener. Messages it rejects are dropped on the
+ * spot, so ignored users and floods never reach the channel history.
+ *
+ * A filter holds three kinds of rules: ignore masks in the usual
+ * nick!user@host form with * and ? wildcards, a set of ignored commands,
+ * and an optional per-channel rate limit on PRIVMSG and NOTICE.
+ *
+ * Only what people say is ever filtered. Masks apply to PRIVMSG and NOTICE,
+ * CTCP included, and lines that change the state of the server such as
+ * JOIN, PART, QUIT, NICK, KICK and MODE always pass, so member lists stay
+ * right even for ignored users.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class MessageFilter {
+	
+	private List<String> masks;
+	private Set<Integer> commands;
+	private Map<String, long[]> rates;
+	private volatile int rateLimit;
+	private volatile long rateWindow;
+	private long lastSweep;
+	private AtomicLong dropped;
+	
+	public MessageFilter() {
+		masks = new CopyOnWriteArrayList<String>();
+		commands = Collections.synchronizedSet(new HashSet<Integer>());
+		rates = new HashMap<String, long[]>();
+		dropped = new AtomicLong();
+	}
+	
+	/**
+	 * adds an ignore mask, messages whose sender matches it are dropped.
+	 * Matching is case insensitive.
+	 *
+	 * @param mask a nick!user@host mask, for example *!*@spam.example.com
+	 * @since 1
+	 */
+	public void addIgnoreMask(String mask) {
+		masks.add(mask.toLowerCase());
+	}
+	
+	public void removeIgnoreMask(String mask) {
+		masks.remove(mask.toLowerCase());
+	}
+	
+	public List<String> getIgnoreMasks() {
+		return Collections.unmodifiableList(masks);
+	}
+	
+	/**
+	 * drops every message with the given command, commands are defined
+	 * in the Message class. Commands that change the server state are never
+	 * dropped, ignoring them has no effect.
+	 *
+	 * @param command the command to ignore
+	 * @since 1
+	 */
+	public void addIgnoredCommand(int command) {
+		commands.add(command);
+	}
+	
+	public void removeIgnoredCommand(int command) {
+		commands.remove(command);
+	}
+	
+	/**
+	 * limits the number of PRIVMSG and NOTICE lines accepted per channel to
+	 * max within each window, anything over that is dropped. A max of zero
+	 * disables the limit.
+	 *
+	 * @param max the number of messages accepted per window
+	 * @param window the length of the window in milliseconds
+	 * @since 1
+	 */
+	public void setChannelRateLimit(int max, long window) {
+		rateWindow = window;
+		rateLimit = max;
+		
+		synchronized (rates) {
+			rates.clear();
+		}
+	}
+	
+	/**
+	 * returns the number of messages this filter has dropped
+	 *
+	 * @since 1
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Decides whether the message should be processed by the server.
+	 *
+	 * @param message the freshly parsed message
+	 * @return true to process the message, false to drop it
+	 * @since 1
+	 */
+	public boolean accept(Message message) {
+		int command = message.getCommand();
+		
+		if (changesState(command)) {
+			return true;
+		}
+		
+		if (!commands.isEmpty() && commands.contains(command)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		
+		boolean content = command == Message.CMD_PRIVMSG || command == Message.CMD_NOTICE;
+		
+		if (content && message.getSender() != null && !masks.isEmpty()) {
+			String prefix = (message.getSender() + "!" + message.getUser() + "@" + message.getHost()).toLowerCase();
+			
+			for (String mask : masks) {
+				if (matches(mask, prefix)) {
+					dropped.incrementAndGet();
+					return false;
+				}
+			}
+		}
+		
+		int limit = rateLimit;
+		
+		if (limit > 0 && content) {
+			if (message.paramCount() > 0 && isChannel(message.param(0))) {
+				if (!acquire(message.param(0).toLowerCase(), limit, message.rawTimestamp())) {
+					dropped.incrementAndGet();
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	private boolean acquire(String channel, int limit, long now) {
+		synchronized (rates) {
+			long[] window = rates.get(channel);
+			
+			if (window == null || now - window[0] >= rateWindow) {
+				if (window == null) {
+					sweep(now);
+				}
+				
+				rates.put(channel, new long[] { now, 1 });
+				return true;
+			}
+			
+			return ++window[1] <= limit;
+		}
+	}
+	
+	/**
+	 * forgets the windows of channels that have been quiet for a whole
+	 * window, at most once per window.
+	 */
+	private void sweep(long now) {
+		if (now - lastSweep < rateWindow) {
+			return;
+		}
+		
+		lastSweep = now;
+		Iterator<long[]> it = rates.values().iterator();
+		
+		while (it.hasNext()) {
+			if (now - it.next()[0] >= rateWindow) {
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * returns the number of channels with a rate limit window open
+	 *
+	 * @since 1
+	 */
+	public int getRateWindowCount() {
+		synchronized (rates) {
+			return rates.size();
+		}
+	}
+	
+	/**
+	 * returns true for commands the server needs to keep its channels, member
+	 * lists and nickname right, numerics included.
+	 */
+	private static boolean changesState(int command) {
+		switch (command) {
+		case Message.CMD_PRIVMSG:
+		case Message.CMD_NOTICE:
+		case Message.CMD_INVITE:
+		case Message.CMD_PONG:
+		case Message.CMD_UNKNOWN:
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	private static boolean isChannel(String name) {
+		return name.length() > 0 && "#&+!".indexOf(name.charAt(0)) != -1;
+	}
+	
+	/**
+	 * wildcard match supporting * and ?, walks both strings once and only
+	 * backtracks to the most recent star.
+	 */
+	static boolean matches(String mask, String text) {
+		int m = 0;
+		int t = 0;
+		int star = -1;
+		int mark = 0;
+		
+		while (t < text.length()) {
+			if (m < mask.length() && (mask.charAt(m) == '?' || mask.charAt(m) == text.charAt(t))) {
+				m++;
+				t++;
+			} else if (m < mask.length() && mask.charAt(m) == '*') {
+				star = m++;
+				mark = t;
+			} else if (star != -1) {
+				m = star + 1;
+				t = ++mark;
+			} else {
+				return false;
+			}
+		}
+		
+		while (m < mask.length() && mask.charAt(m) == '*') {
+			m++;
+		}
+		
+		return m == mask.length();
+	}
+}
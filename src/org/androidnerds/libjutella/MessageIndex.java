@@ -0,0 +1,325 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The MessageIndex is an inverted index over the channel and private chat
+ * history of a server. Channel and PrivateChat add each message as it is
+ * stored, so searching scrollback never has to walk the message lists.
+ *
+ * Messages are indexed in arrival order which means every posting list is
+ * already sorted by time. Once the configured capacity is reached the oldest
+ * message is dropped from the index, it stays in the channel history. The
+ * index is disabled until a capacity is set.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class MessageIndex {
+	
+	private int capacity;
+	private ArrayDeque<Document> documents;
+	private Map<String, ArrayDeque<Document>> terms;
+	private Map<String, ArrayDeque<Document>> senders;
+	
+	public MessageIndex() {
+		documents = new ArrayDeque<Document>();
+		terms = new HashMap<String, ArrayDeque<Document>>();
+		senders = new HashMap<String, ArrayDeque<Document>>();
+	}
+	
+	/**
+	 * sets the maximum number of messages kept in the index, zero disables
+	 * indexing and clears the index.
+	 *
+	 * @param max the number of messages to keep searchable
+	 * @since 1
+	 */
+	public synchronized void setCapacity(int max) {
+		capacity = Math.max(0, max);
+		
+		while (documents.size() > capacity) {
+			evict();
+		}
+	}
+	
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+	
+	public synchronized int size() {
+		return documents.size();
+	}
+	
+	/**
+	 * indexes a message stored in the given channel or private chat.
+	 *
+	 * @param msg the message to index
+	 * @param target the channel name or private chat user the message belongs to
+	 * @since 1
+	 */
+	public synchronized void add(Message msg, String target) {
+		if (capacity == 0 || msg.getText() == null) {
+			return;
+		}
+		
+		if (documents.size() >= capacity) {
+			evict();
+		}
+		
+		Document doc = new Document(msg, target, tokenize(msg.getText()));
+		documents.addLast(doc);
+		
+		for (String term : doc.terms) {
+			postings(terms, term).addLast(doc);
+		}
+		
+		if (msg.getSender() != null) {
+			postings(senders, HighlightMatcher.fold(msg.getSender())).addLast(doc);
+		}
+	}
+	
+	/**
+	 * Searches the index. Every word in the query must appear in a message for
+	 * it to match, any of the arguments may be null or zero to leave that part
+	 * of the query out.
+	 *
+	 * @param query the words to search for
+	 * @param sender only return messages from this nickname
+	 * @param from only return messages received at or after this time
+	 * @param to only return messages received before this time
+	 * @return the matching messages, oldest first
+	 * @since 1
+	 */
+	public synchronized List<Hit> search(String query, String sender, long from, long to) {
+		String[] words = query == null ? new String[0] : tokenize(query);
+		Collection<Document> candidates = documents;
+		
+		for (String word : words) {
+			ArrayDeque<Document> list = terms.get(word);
+			
+			if (list == null) {
+				return new ArrayList<Hit>();
+			}
+			
+			if (list.size() < candidates.size()) {
+				candidates = list;
+			}
+		}
+		
+		String who = sender == null ? null : HighlightMatcher.fold(sender);
+		
+		if (who != null) {
+			ArrayDeque<Document> list = senders.get(who);
+			
+			if (list == null) {
+				return new ArrayList<Hit>();
+			}
+			
+			if (list.size() < candidates.size()) {
+				candidates = list;
+			}
+		}
+		
+		List<Hit> hits = new ArrayList<Hit>();
+		
+		for (Document doc : candidates) {
+			long time = doc.message.rawTimestamp();
+			
+			if (time < from || (to > 0 && time >= to)) {
+				continue;
+			}
+			
+			if (who != null && !who.equals(HighlightMatcher.fold(doc.message.getSender()))) {
+				continue;
+			}
+			
+			boolean match = true;
+			
+			for (String word : words) {
+				if (Arrays.binarySearch(doc.terms, word) < 0) {
+					match = false;
+					break;
+				}
+			}
+			
+			if (match) {
+				hits.add(new Hit(doc.message, doc.target));
+			}
+		}
+		
+		return hits;
+	}
+	
+	public synchronized void clear() {
+		documents.clear();
+		terms.clear();
+		senders.clear();
+	}
+	
+	/**
+	 * removes every message of a channel or private chat from the index, for
+	 * a channel the server no longer keeps.
+	 *
+	 * @param target the channel name or private chat user
+	 * @since 1
+	 */
+	public synchronized void remove(String target) {
+		String key = HighlightMatcher.fold(target);
+		boolean removed = false;
+		Iterator<Document> it = documents.iterator();
+		
+		while (it.hasNext()) {
+			if (key.equals(HighlightMatcher.fold(it.next().target))) {
+				it.remove();
+				removed = true;
+			}
+		}
+		
+		if (!removed) {
+			return;
+		}
+		
+		//the posting lists are rebuilt from what is left, which keeps them in
+		//arrival order.
+		terms.clear();
+		senders.clear();
+		
+		for (Document doc : documents) {
+			for (String term : doc.terms) {
+				postings(terms, term).addLast(doc);
+			}
+			
+			if (doc.message.getSender() != null) {
+				postings(senders, HighlightMatcher.fold(doc.message.getSender())).addLast(doc);
+			}
+		}
+	}
+	
+	private void evict() {
+		Document doc = documents.removeFirst();
+		
+		for (String term : doc.terms) {
+			unlink(terms, term);
+		}
+		
+		if (doc.message.getSender() != null) {
+			unlink(senders, HighlightMatcher.fold(doc.message.getSender()));
+		}
+	}
+	
+	//the evicted document is always the oldest, so it is at the head of its lists.
+	private static void unlink(Map<String, ArrayDeque<Document>> map, String key) {
+		ArrayDeque<Document> list = map.get(key);
+		
+		if (list != null) {
+			list.pollFirst();
+			
+			if (list.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+	
+	private static ArrayDeque<Document> postings(Map<String, ArrayDeque<Document>> map, String key) {
+		ArrayDeque<Document> list = map.get(key);
+		
+		if (list == null) {
+			list = new ArrayDeque<Document>(4);
+			map.put(key, list);
+		}
+		
+		return list;
+	}
+	
+	/**
+	 * splits text into lower cased words, returned sorted and without
+	 * duplicates.
+	 */
+	private static String[] tokenize(String text) {
+		List<String> words = new ArrayList<String>();
+		int start = -1;
+		
+		for (int i = 0; i <= text.length(); i++) {
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			
+			if (letter && start == -1) {
+				start = i;
+			} else if (!letter && start != -1) {
+				words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		
+		String[] sorted = words.toArray(new String[words.size()]);
+		Arrays.sort(sorted);
+		int n = 0;
+		
+		for (int i = 0; i < sorted.length; i++) {
+			if (n == 0 || !sorted[i].equals(sorted[n - 1])) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		
+		return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+	}
+	
+	/**
+	 * A single search result, the message and the channel or private chat
+	 * it was stored in.
+	 *
+	 * @since 1
+	 */
+	public static class Hit {
+		
+		private Message message;
+		private String target;
+		
+		private Hit(Message msg, String t) {
+			message = msg;
+			target = t;
+		}
+		
+		public Message getMessage() {
+			return message;
+		}
+		
+		public String getTarget() {
+			return target;
+		}
+	}
+	
+	private static class Document {
+		
+		Message message;
+		String target;
+		String[] terms;
+		
+		Document(Message msg, String t, String[] words) {
+			message = msg;
+			target = t;
+			terms = words;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * The NameTable hands out a single shared String for every nickname and
+ * channel name a server sees, so the thousands of messages and member
+ * lists that mention the same names do not each keep their own copy.
+ *
+ * Names are looked up straight from the region of the received line, a
+ * name already in the table costs no allocation at all. The table only
+ * holds weak references, names nobody uses any more are dropped by the
+ * garbage collector.
+ *
+ * Only names kept by something long lived, a stored message or a channel
+ * member list, count toward the saved bytes. A lookup whose result is
+ * thrown away right after saves nothing.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class NameTable {
+	
+	//an estimate of the String object and its array header on a 64 bit vm.
+	private static final int STRING_OVERHEAD = 40;
+	
+	private Entry[] table;
+	private int size;
+	private ReferenceQueue<String> queue;
+	private long hits;
+	private long savedBytes;
+	
+	public NameTable() {
+		table = new Entry[256];
+		queue = new ReferenceQueue<String>();
+	}
+	
+	/**
+	 * returns the shared copy of the text between start and end of the
+	 * string, creating it on first use.
+	 *
+	 * @param s the string holding the name
+	 * @param start the index the name starts at
+	 * @param end the index after the last character of the name
+	 * @return the shared name
+	 * @since 1
+	 */
+	public String intern(String s, int start, int end) {
+		return intern(s, start, end, false);
+	}
+	
+	/**
+	 * returns the shared copy of the name, the name itself becomes the
+	 * shared copy if there is none yet.
+	 *
+	 * @param s the name
+	 * @return the shared name, null if s is null
+	 * @since 1
+	 */
+	public String intern(String s) {
+		return s == null ? null : intern(s, 0, s.length(), true);
+	}
+	
+	/**
+	 * returns the number of names currently in the table
+	 *
+	 * @since 1
+	 */
+	public synchronized int size() {
+		expunge();
+		return size;
+	}
+	
+	/**
+	 * returns the number of lookups that found a name already in the table
+	 *
+	 * @since 1
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * returns an estimate of the memory the table saved, counting the size
+	 * of a String for every stored reference to a shared name after the
+	 * first one.
+	 *
+	 * @since 1
+	 */
+	public synchronized long getSavedBytes() {
+		return savedBytes;
+	}
+	
+	private synchronized String intern(String s, int start, int end, boolean whole) {
+		expunge();
+		
+		int length = end - start;
+		int hash = 0;
+		
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + s.charAt(i);
+		}
+		
+		int index = (hash & 0x7fffffff) % table.length;
+		
+		for (Entry e = table[index]; e != null; e = e.next) {
+			if (e.hash == hash) {
+				String name = e.get();
+				
+				if (name != null && name.length() == length && s.regionMatches(start, name, 0, length)) {
+					hits++;
+					return name;
+				}
+			}
+		}
+		
+		String name = whole ? s : s.substring(start, end);
+		table[index] = new Entry(name, hash, table[index], queue);
+		
+		if (++size > table.length * 3 / 4) {
+			resize();
+		}
+		
+		return name;
+	}
+	
+	/**
+	 * counts a shared name that is being kept by a stored message or a
+	 * member list. The first one kept is the table's own copy, every later
+	 * one is a copy saved. Names that are not the shared copy are ignored.
+	 *
+	 * @param name the name being stored
+	 */
+	synchronized void stored(String name) {
+		if (name == null) {
+			return;
+		}
+		
+		int hash = 0;
+		
+		for (int i = 0; i < name.length(); i++) {
+			hash = 31 * hash + name.charAt(i);
+		}
+		
+		for (Entry e = table[(hash & 0x7fffffff) % table.length]; e != null; e = e.next) {
+			if (e.get() == name) {
+				if (e.stored) {
+					savedBytes += STRING_OVERHEAD + name.length();
+				} else {
+					e.stored = true;
+				}
+				
+				return;
+			}
+		}
+	}
+	
+	private void resize() {
+		Entry[] old = table;
+		table = new Entry[old.length * 2];
+		
+		for (Entry head : old) {
+			Entry e = head;
+			
+			while (e != null) {
+				Entry next = e.next;
+				int index = (e.hash & 0x7fffffff) % table.length;
+				e.next = table[index];
+				table[index] = e;
+				e = next;
+			}
+		}
+	}
+	
+	/**
+	 * unlinks the entries whose names have been collected.
+	 */
+	private void expunge() {
+		Object ref;
+		
+		while ((ref = queue.poll()) != null) {
+			Entry dead = (Entry) ref;
+			int index = (dead.hash & 0x7fffffff) % table.length;
+			Entry prev = null;
+			
+			for (Entry e = table[index]; e != null; prev = e, e = e.next) {
+				if (e == dead) {
+					if (prev == null) {
+						table[index] = e.next;
+					} else {
+						prev.next = e.next;
+					}
+					
+					size--;
+					break;
+				}
+			}
+		}
+	}
+	
+	private static class Entry extends WeakReference<String> {
+		
+		int hash;
+		Entry next;
+		boolean stored;
+		
+		Entry(String name, int h, Entry n, ReferenceQueue<String> q) {
+			super(name, q);
+			hash = h;
+			next = n;
+		}
+	}
+}
@@ -36,38 +36,103 @@ public class Parser {
 			return;
 		}
 		
+		QueryTracker queries = server.getQueryTracker();
+		
+		if (queries.isListing() && queries.streamListLine(msg)) {
+			return;
+		}
+		
 		Message message = new Message();
+		message.setRawLine(msg);
+		NameTable names = server.getNameTable();
 		
 		int textPos = msg.indexOf(" :");
+		int limit = textPos != -1 ? textPos : msg.length();
+		int pos = 0;
 		
-		if (textPos != -1) {
-			message.setText(msg.substring(textPos + 2));
-			msg = msg.substring(0, textPos);
+		if (msg.startsWith(":")) {
+			int space = msg.indexOf(' ');
+			int prefixEnd = space == -1 || space > limit ? limit : space;
+			int bang = msg.indexOf('!');
+			
+			if (bang != -1 && bang < prefixEnd) {
+				message.setSender(names.intern(msg, 1, bang));
+				int at = msg.indexOf('@', bang);
+				
+				if (at != -1 && at < prefixEnd) {
+					message.setUser(msg.substring(bang + 1, at));
+					message.setHost(msg.substring(at + 1, prefixEnd));
+				} else {
+					message.setUser(msg.substring(bang + 1, prefixEnd));
+				}
+			} else {
+				message.setType(Message.TYPE_SERVER);
+			}
+			
+			pos = prefixEnd + 1;
 		}
 		
-		if (!msg.startsWith(":")) {
-			String[] parts = msg.split(" ", 2);
-			message.setCommand(parseCommand(parts[0]));
+		//the command, then the offsets of each parameter, left as offsets
+		//into the line until somebody asks for them.
+		int[] offsets = null;
+		int count = -1;
+		
+		while (pos < limit) {
+			int space = msg.indexOf(' ', pos);
+			int tokenEnd = space == -1 || space > limit ? limit : space;
 			
-			if (parts.length == 2) {
-				message.setParams(parts[1].split(" "));
+			if (tokenEnd > pos) {
+				if (count == -1) {
+					String command = msg.substring(pos, tokenEnd);
+					message.setRawCommand(command);
+					message.setCommand(parseCommand(command));
+				} else {
+					if (offsets == null) {
+						offsets = new int[8];
+					} else if (count * 2 == offsets.length) {
+						int[] bigger = new int[offsets.length * 2];
+						System.arraycopy(offsets, 0, bigger, 0, offsets.length);
+						offsets = bigger;
+					}
+					
+					offsets[count * 2] = pos;
+					offsets[count * 2 + 1] = tokenEnd;
+				}
+				
+				count++;
 			}
-		} else {
-			msg = msg.substring(1);
-			String[] parts = msg.split(" ", 3);
 			
-			if (parts[0].indexOf("!") != -1) {
-				message.setSender(parts[0].substring(0, parts[0].indexOf("!")));
+			pos = tokenEnd + 1;
+		}
+		
+		if (count > 0) {
+			message.setParamOffsets(msg, offsets, count, names);
+		}
+		
+		int command = message.getCommand();
+		
+		//the text of a join or nick change is a name kept by the channels.
+		if (textPos != -1) {
+			if (command == Message.CMD_JOIN || command == Message.CMD_NICK) {
+				message.setText(names.intern(msg, textPos + 2, msg.length()));
 			} else {
-				message.setType(Message.TYPE_SERVER);
+				message.setText(msg.substring(textPos + 2));
 			}
+		}
+		
+		//CTCP is only marked here, the command is read from the text on demand.
+		String text = message.getText();
+		
+		if ((command == Message.CMD_PRIVMSG || command == Message.CMD_NOTICE) && text != null
+				&& text.length() > 1 && text.charAt(0) == '\u0001') {
+			int end = 1;
 			
-			if (parts.length >= 2) {
-				message.setCommand(parseCommand(parts[1]));
+			while (end < text.length() && text.charAt(end) != ' ' && text.charAt(end) != '\u0001') {
+				end++;
 			}
 			
-			if (parts.length > 2) {
-				message.setParams(parts[2].split(" "));
+			if (end > 1) {
+				message.setCtcp(end);
 			}
 		}
 		
@@ -154,6 +219,11 @@ public class Parser {
 			return Message.SERV_TOPIC_SET;
 		} else if (raw.startsWith("353")) {
 			return Message.SERV_USERS;
+		} else if (raw.startsWith("366")) {
+			return Message.SERV_END_USERS;
+		} else if (raw.startsWith("403") || raw.startsWith("405") || raw.startsWith("471")
+				|| raw.startsWith("473") || raw.startsWith("474") || raw.startsWith("475")) {
+			return Message.SERV_JOIN_ERROR;
 		} else if (raw.startsWith("431")) {
 			return Message.SERV_NO_NICK;
 		} else if (raw.startsWith("432")) {
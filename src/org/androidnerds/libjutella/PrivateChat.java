@@ -22,9 +22,15 @@ public class PrivateChat {
 	
 	private List<Message> messages;
 	private String user;
+	private Server server;
 	
 	public PrivateChat(String who) {
+		this(who, null);
+	}
+	
+	public PrivateChat(String who, Server s) {
 		user = who;
+		server = s;
 		messages = Collections.synchronizedList(new ArrayList<Message>());
 	}
 	
@@ -37,7 +43,12 @@ public class PrivateChat {
 	}
 	
 	protected void addMessage(Message msg) {
+		msg.compact();
 		messages.add(msg);
+		
+		if (server != null) {
+			server.getMessageIndex().add(msg, user);
+		}
 	}
 	
 	public List<Message> getMessages() {
@@ -0,0 +1,863 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * The QueryTracker sends WHOIS, WHO, LIST and MODE queries and collects the
+ * numeric replies that answer them into a single result. Each query returns
+ * a future that completes once the server sends the end of the reply.
+ *
+ * A query for the same target that is already waiting for its reply is not
+ * sent again, the caller receives the future of the query in flight.
+ *
+ * A query the server does not answer within the timeout fails with a
+ * TimeoutException, and every pending query fails with an IOException when
+ * the connection is lost.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class QueryTracker {
+	
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "libjutella-query");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	private Server server;
+	private volatile long timeout = 60000;
+	private Map<String, Whois> whois;
+	private LinkedList<Who> who;
+	private Map<String, Who> whoByMask;
+	private Map<String, CompletableFuture<String>> modes;
+	private volatile ListListener listListener;
+	private int listMinUsers;
+	private String listMask;
+	private int listCount;
+	private CompletableFuture<Integer> listFuture;
+	private CompletableFuture<List<ListEntry>> listAggregate;
+	private volatile String listExtensions;
+	
+	public QueryTracker(Server s) {
+		server = s;
+		whois = new HashMap<String, Whois>();
+		who = new LinkedList<Who>();
+		whoByMask = new HashMap<String, Who>();
+		modes = new HashMap<String, CompletableFuture<String>>();
+	}
+	
+	/**
+	 * sets how long a query waits for the end of its reply before it fails,
+	 * 60 seconds by default.
+	 *
+	 * @param millis the timeout in milliseconds
+	 * @since 1
+	 */
+	public void setTimeout(long millis) {
+		timeout = Math.max(1, millis);
+	}
+	
+	public long getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * sends a WHOIS for the nickname.
+	 *
+	 * @param nick the nickname to look up
+	 * @return a future completed with the collected reply, or failed with a
+	 * QueryException if the nickname does not exist
+	 * @since 1
+	 */
+	public CompletableFuture<Whois> whois(String nick) {
+		String key = HighlightMatcher.fold(nick);
+		Whois query;
+		
+		synchronized (this) {
+			query = whois.get(key);
+			
+			if (query != null) {
+				return query.future;
+			}
+			
+			query = new Whois(nick);
+			whois.put(key, query);
+		}
+		
+		expire(query.future);
+		send("/WHOIS " + nick);
+		return query.future;
+	}
+	
+	/**
+	 * sends a WHO for the channel or mask.
+	 *
+	 * @param mask the channel name or mask to query
+	 * @return a future completed with every reply line, or failed with a
+	 * QueryException if the server refuses the query
+	 * @since 1
+	 */
+	public CompletableFuture<List<WhoEntry>> who(String mask) {
+		String key = HighlightMatcher.fold(mask);
+		Who query;
+		
+		synchronized (this) {
+			query = whoByMask.get(key);
+			
+			if (query != null) {
+				return query.future;
+			}
+			
+			query = new Who(key);
+			whoByMask.put(key, query);
+			who.add(query);
+		}
+		
+		expire(query.future);
+		send("/WHO " + mask);
+		return query.future;
+	}
+	
+	/**
+	 * sends a LIST for the whole network and collects every channel.
+	 *
+	 * @return a future completed with every channel listed
+	 * @since 1
+	 */
+	public CompletableFuture<List<ListEntry>> list() {
+		final List<ListEntry> entries = new ArrayList<ListEntry>();
+		CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		CompletableFuture<List<ListEntry>> aggregate;
+		
+		//the aggregate and the LIST behind it are set up together, so a caller
+		//either joins the LIST in flight or starts a new one.
+		synchronized (this) {
+			if (listAggregate != null) {
+				return listAggregate;
+			}
+			
+			if (!begin(future, new ListListener() {
+				public void onListEntry(ListEntry entry) {
+					entries.add(entry);
+				}
+			}, 0, null)) {
+				aggregate = new CompletableFuture<List<ListEntry>>();
+				aggregate.completeExceptionally(new IllegalStateException("a LIST is already in progress"));
+				return aggregate;
+			}
+			
+			aggregate = future.thenApply(new Function<Integer, List<ListEntry>>() {
+				public List<ListEntry> apply(Integer count) {
+					return entries;
+				}
+			});
+			listAggregate = aggregate;
+		}
+		
+		expire(future);
+		send(command(0, null));
+		return aggregate;
+	}
+	
+	/**
+	 * Streams a LIST to the listener. Entries are handed over as the reply
+	 * lines are read, straight from the raw line without building a Message,
+	 * and are not kept anywhere by the library, so listing a large network
+	 * takes no more memory than listing a small one.
+	 *
+	 * The filters are sent to the server when its ELIST token announces
+	 * support for them, and are applied to every entry in any case, so a
+	 * server without ELIST gets a plain LIST.
+	 *
+	 * @param listener receives each channel, on the connection thread
+	 * @param minUsers only list channels with at least this many users, 0 for all
+	 * @param mask only list channels matching this wildcard mask, null for all
+	 * @return a future completed with the number of entries delivered, or
+	 * failed with an IllegalStateException if a LIST is already running
+	 * @since 1
+	 */
+	public CompletableFuture<Integer> list(ListListener listener, int minUsers, String mask) {
+		CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		
+		synchronized (this) {
+			if (!begin(future, listener, minUsers, mask)) {
+				future.completeExceptionally(new IllegalStateException("a LIST is already in progress"));
+				return future;
+			}
+		}
+		
+		expire(future);
+		send(command(minUsers, mask));
+		return future;
+	}
+	
+	/**
+	 * sets up the state of a new LIST, returns false if one is running.
+	 */
+	private boolean begin(CompletableFuture<Integer> future, ListListener listener, int minUsers, String mask) {
+		if (listFuture != null) {
+			return false;
+		}
+		
+		listFuture = future;
+		listMinUsers = minUsers;
+		listMask = mask == null ? null : mask.toLowerCase();
+		listCount = 0;
+		listListener = listener;
+		return true;
+	}
+	
+	/**
+	 * returns the LIST command, with only the filters the server supports.
+	 */
+	private String command(int minUsers, String mask) {
+		String elist = listExtensions;
+		StringBuilder cmd = new StringBuilder("/LIST");
+		String sep = " ";
+		
+		if (minUsers > 0 && elist != null && elist.indexOf('U') != -1) {
+			cmd.append(sep).append('>').append(minUsers - 1);
+			sep = ",";
+		}
+		
+		if (mask != null && elist != null && elist.indexOf('M') != -1) {
+			cmd.append(sep).append(mask);
+		}
+		
+		return cmd.toString();
+	}
+	
+	/**
+	 * sets the LIST extensions from the ELIST token of the 005 reply, null
+	 * when the server has none.
+	 */
+	void setListExtensions(String elist) {
+		listExtensions = elist == null ? null : elist.toUpperCase();
+	}
+	
+	/**
+	 * returns true while a LIST reply is being streamed.
+	 */
+	boolean isListing() {
+		return listListener != null;
+	}
+	
+	/**
+	 * Consumes a raw 322 line while a LIST is streaming, the line is parsed
+	 * in place and never turned into a Message.
+	 *
+	 * @param line the raw line from the server
+	 * @return true if the line was a LIST entry
+	 */
+	boolean streamListLine(String line) {
+		ListListener listener = listListener;
+		
+		if (listener == null) {
+			return false;
+		}
+		
+		int cmd = line.startsWith(":") ? line.indexOf(' ') + 1 : 0;
+		
+		if (cmd == 0 || !line.startsWith("322 ", cmd)) {
+			return false;
+		}
+		
+		//322 <me> <channel> <users> :<topic>
+		int me = cmd + 4;
+		int channel = line.indexOf(' ', me) + 1;
+		int users = channel == 0 ? 0 : line.indexOf(' ', channel) + 1;
+		int topic = users == 0 ? 0 : line.indexOf(' ', users) + 1;
+		
+		if (topic == 0) {
+			return true;
+		}
+		
+		int count;
+		
+		try {
+			count = Integer.parseInt(line.substring(users, topic - 1));
+		} catch (NumberFormatException e) {
+			return true;
+		}
+		
+		String name = line.substring(channel, users - 1);
+		
+		if (count < listMinUsers || (listMask != null && !MessageFilter.matches(listMask, name.toLowerCase()))) {
+			return true;
+		}
+		
+		listCount++;
+		listener.onListEntry(new ListEntry(name, count,
+				line.startsWith(":", topic) ? line.substring(topic + 1) : line.substring(topic)));
+		return true;
+	}
+	
+	/**
+	 * asks the server for the modes of a channel.
+	 *
+	 * @param channel the channel name
+	 * @return a future completed with the mode string and its parameters, or
+	 * failed with a QueryException if the channel does not exist
+	 * @since 1
+	 */
+	public CompletableFuture<String> mode(String channel) {
+		String key = HighlightMatcher.fold(channel);
+		CompletableFuture<String> future;
+		
+		synchronized (this) {
+			future = modes.get(key);
+			
+			if (future != null) {
+				return future;
+			}
+			
+			future = new CompletableFuture<String>();
+			modes.put(key, future);
+		}
+		
+		expire(future);
+		send("/MODE " + channel);
+		return future;
+	}
+	
+	/**
+	 * fails the query with a TimeoutException if it is still waiting once
+	 * the timeout has passed.
+	 */
+	private void expire(final CompletableFuture<?> future) {
+		timer.schedule(new Runnable() {
+			public void run() {
+				if (forget(future)) {
+					future.completeExceptionally(new TimeoutException("no reply within " + timeout + " ms"));
+				}
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * removes the query owning the future, returns false if it already
+	 * received its reply.
+	 */
+	private synchronized boolean forget(CompletableFuture<?> future) {
+		for (Iterator<Whois> it = whois.values().iterator(); it.hasNext();) {
+			if (it.next().future == future) {
+				it.remove();
+				return true;
+			}
+		}
+		
+		for (Iterator<Who> it = who.iterator(); it.hasNext();) {
+			Who q = it.next();
+			
+			if (q.future == future) {
+				it.remove();
+				whoByMask.remove(q.mask);
+				return true;
+			}
+		}
+		
+		for (Iterator<CompletableFuture<String>> it = modes.values().iterator(); it.hasNext();) {
+			if (it.next() == future) {
+				it.remove();
+				return true;
+			}
+		}
+		
+		if (listFuture == future) {
+			endList();
+			return true;
+		}
+		
+		return false;
+	}
+	
+	private void endList() {
+		listFuture = null;
+		listAggregate = null;
+		listListener = null;
+	}
+	
+	/**
+	 * called once the connection is lost, every query waiting for a reply
+	 * fails with an IOException.
+	 *
+	 * @since 1
+	 */
+	public void disconnected() {
+		List<CompletableFuture<?>> pending = new ArrayList<CompletableFuture<?>>();
+		
+		synchronized (this) {
+			for (Whois w : whois.values()) {
+				pending.add(w.future);
+			}
+			
+			for (Who q : who) {
+				pending.add(q.future);
+			}
+			
+			pending.addAll(modes.values());
+			
+			if (listFuture != null) {
+				pending.add(listFuture);
+			}
+			
+			whois.clear();
+			who.clear();
+			whoByMask.clear();
+			modes.clear();
+			endList();
+			listExtensions = null;
+		}
+		
+		for (CompletableFuture<?> future : pending) {
+			future.completeExceptionally(new IOException("connection closed"));
+		}
+	}
+	
+	private void send(String text) {
+		Message msg = new Message();
+		msg.setType(Message.TYPE_SERVER);
+		msg.setText(text);
+		server.sendMessage(msg);
+	}
+	
+	/**
+	 * Offers a numeric reply to the pending queries.
+	 *
+	 * @param message the parsed reply
+	 * @return true if the reply belonged to a pending query
+	 */
+	boolean receive(Message message) {
+		String numeric = message.getRawCommand();
+		
+		if (numeric == null || numeric.length() != 3 || message.paramCount() == 0
+				|| !Character.isDigit(numeric.charAt(0)) || !Character.isDigit(numeric.charAt(1))
+				|| !Character.isDigit(numeric.charAt(2))) {
+			return false;
+		}
+		
+		CompletableFuture<?> done = null;
+		Object result = null;
+		Exception error = null;
+		
+		synchronized (this) {
+			String target = message.paramCount() > 1 ? HighlightMatcher.fold(message.param(1)) : "";
+			Whois w;
+			Who q;
+			
+			switch (Integer.parseInt(numeric)) {
+			case 311:
+				w = whois.get(target);
+				
+				if (w == null || message.paramCount() < 4) {
+					return false;
+				}
+				
+				w.user = message.param(2);
+				w.host = message.param(3);
+				w.realname = message.getText();
+				return true;
+			case 312:
+				w = whois.get(target);
+				
+				if (w == null || message.paramCount() < 3) {
+					return false;
+				}
+				
+				w.serverName = message.param(2);
+				return true;
+			case 313:
+				w = whois.get(target);
+				
+				if (w == null) {
+					return false;
+				}
+				
+				w.operator = true;
+				return true;
+			case 317:
+				w = whois.get(target);
+				
+				if (w == null || message.paramCount() < 3) {
+					return false;
+				}
+				
+				try {
+					w.idle = Long.parseLong(message.param(2));
+				} catch (NumberFormatException e) {
+					
+				}
+				
+				return true;
+			case 319:
+				w = whois.get(target);
+				
+				if (w == null || message.getText() == null) {
+					return false;
+				}
+				
+				for (String channel : message.getText().split(" ")) {
+					if (channel.length() > 0) {
+						w.channels.add(channel);
+					}
+				}
+				
+				return true;
+			case 330:
+				w = whois.get(target);
+				
+				if (w == null || message.paramCount() < 3) {
+					return false;
+				}
+				
+				w.account = message.param(2);
+				return true;
+			case 401:
+				w = whois.remove(target);
+				
+				if (w == null) {
+					return false;
+				}
+				
+				done = w.future;
+				error = new QueryException(message);
+				break;
+			case 318:
+				w = whois.remove(target);
+				
+				if (w == null) {
+					return false;
+				}
+				
+				done = w.future;
+				result = w;
+				break;
+			case 352:
+				if (who.isEmpty() || message.paramCount() < 7) {
+					return false;
+				}
+				
+				String text = message.getText() == null ? "" : message.getText();
+				int space = text.indexOf(' ');
+				who.getFirst().entries.add(new WhoEntry(message.param(1), message.param(2), message.param(3),
+						message.param(4), message.param(5), message.param(6), space == -1 ? "" : text.substring(space + 1)));
+				return true;
+			case 315:
+				q = whoByMask.remove(target);
+				
+				if (q == null) {
+					return false;
+				}
+				
+				who.remove(q);
+				done = q.future;
+				result = q.entries;
+				break;
+			case 321:
+				return listFuture != null;
+			case 323:
+				if (listFuture == null) {
+					return false;
+				}
+				
+				done = listFuture;
+				result = listCount;
+				endList();
+				break;
+			case 324:
+				CompletableFuture<String> m = modes.remove(target);
+				
+				if (m == null) {
+					return false;
+				}
+				
+				StringBuilder mode = new StringBuilder();
+				
+				for (int i = 2; i < message.paramCount(); i++) {
+					mode.append(i > 2 ? " " : "").append(message.param(i));
+				}
+				
+				if (message.getText() != null) {
+					mode.append(mode.length() > 0 ? " " : "").append(message.getText());
+				}
+				
+				done = m;
+				result = mode.toString();
+				break;
+			case 403:
+			case 442:
+			case 482:
+				//no such channel, not on it or not an operator, for a MODE or
+				//a WHO of the channel.
+				done = modes.remove(target);
+				
+				if (done == null) {
+					q = whoByMask.remove(target);
+					
+					if (q == null) {
+						return false;
+					}
+					
+					who.remove(q);
+					done = q.future;
+				}
+				
+				error = new QueryException(message);
+				break;
+			default:
+				return false;
+			}
+		}
+		
+		complete(done, result, error);
+		return true;
+	}
+	
+	//completed outside the lock so dependent stages cannot deadlock on it.
+	@SuppressWarnings("unchecked")
+	private static void complete(CompletableFuture<?> future, Object result, Exception error) {
+		if (error != null) {
+			future.completeExceptionally(error);
+		} else {
+			((CompletableFuture<Object>) future).complete(result);
+		}
+	}
+	
+	/**
+	 * The collected reply to a WHOIS query.
+	 *
+	 * @since 1
+	 */
+	public static class Whois {
+		
+		private String nick;
+		private String user;
+		private String host;
+		private String realname;
+		private String serverName;
+		private String account;
+		private boolean operator;
+		private long idle = -1;
+		private List<String> channels = new ArrayList<String>();
+		private CompletableFuture<Whois> future = new CompletableFuture<Whois>();
+		
+		private Whois(String n) {
+			nick = n;
+		}
+		
+		public String getNick() {
+			return nick;
+		}
+		
+		public String getUser() {
+			return user;
+		}
+		
+		public String getHost() {
+			return host;
+		}
+		
+		public String getRealname() {
+			return realname;
+		}
+		
+		public String getServer() {
+			return serverName;
+		}
+		
+		/**
+		 * returns the services account the user is logged in to, or null
+		 *
+		 * @since 1
+		 */
+		public String getAccount() {
+			return account;
+		}
+		
+		public boolean isOperator() {
+			return operator;
+		}
+		
+		/**
+		 * returns the idle time in seconds, -1 when the server did not send it
+		 *
+		 * @since 1
+		 */
+		public long getIdle() {
+			return idle;
+		}
+		
+		public List<String> getChannels() {
+			return channels;
+		}
+	}
+	
+	/**
+	 * A single line of a WHO reply.
+	 *
+	 * @since 1
+	 */
+	public static class WhoEntry {
+		
+		private String channel;
+		private String user;
+		private String host;
+		private String serverName;
+		private String nick;
+		private String flags;
+		private String realname;
+		
+		WhoEntry(String c, String u, String h, String s, String n, String f, String r) {
+			channel = c;
+			user = u;
+			host = h;
+			serverName = s;
+			nick = n;
+			flags = f;
+			realname = r;
+		}
+		
+		public String getChannel() {
+			return channel;
+		}
+		
+		public String getUser() {
+			return user;
+		}
+		
+		public String getHost() {
+			return host;
+		}
+		
+		public String getServer() {
+			return serverName;
+		}
+		
+		public String getNick() {
+			return nick;
+		}
+		
+		/**
+		 * returns the status flags, H or G for here or gone followed by * for
+		 * operators and the channel prefix
+		 *
+		 * @since 1
+		 */
+		public String getFlags() {
+			return flags;
+		}
+		
+		public String getRealname() {
+			return realname;
+		}
+	}
+	
+	/**
+	 * A single channel of a LIST reply.
+	 *
+	 * @since 1
+	 */
+	public static class ListEntry {
+		
+		private String channel;
+		private int users;
+		private String topic;
+		
+		ListEntry(String c, int u, String t) {
+			channel = c;
+			users = u;
+			topic = t;
+		}
+		
+		public String getChannel() {
+			return channel;
+		}
+		
+		public int getUsers() {
+			return users;
+		}
+		
+		public String getTopic() {
+			return topic;
+		}
+	}
+	
+	/**
+	 * The ListListener receives the entries of a streamed LIST reply.
+	 *
+	 * @since 1
+	 */
+	public interface ListListener {
+		
+		/**
+		 * called for every channel in the reply that passes the filters.
+		 *
+		 * @param entry the channel entry
+		 * @since 1
+		 */
+		public void onListEntry(ListEntry entry);
+	}
+	
+	private static class Who {
+		
+		String mask;
+		List<WhoEntry> entries = new ArrayList<WhoEntry>();
+		CompletableFuture<List<WhoEntry>> future = new CompletableFuture<List<WhoEntry>>();
+		
+		Who(String m) {
+			mask = m;
+		}
+	}
+	
+	/**
+	 * The exception a query future fails with when the server answers with
+	 * an error.
+	 *
+	 * @since 1
+	 */
+	public static class QueryException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private Message reply;
+		
+		public QueryException(Message msg) {
+			super(msg.getText());
+			reply = msg;
+		}
+		
+		public Message getReply() {
+			return reply;
+		}
+	}
+}
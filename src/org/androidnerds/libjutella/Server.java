@@ -14,13 +14,18 @@
  */
 package org.androidnerds.libjutella;
 
-import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
 
 import org.androidnerds.libjutella.net.Connection.ConnectionListener;
 
@@ -34,22 +39,60 @@ import org.androidnerds.libjutella.net.Connection.ConnectionListener;
  */
 public class Server {
 	
+	//delivers the events of every server, subscribers may block in onNext
+	//so the common fork join pool is left alone.
+	private static ExecutorService eventThreads;
+	
 	private String nickname;
 	private String password;
 	private String url;
 	private String name;
 	private int port;
+	private Charset encoding = StandardCharsets.UTF_8;
+	private Charset fallbackEncoding = StandardCharsets.ISO_8859_1;
 	private Map<String, Channel> channels;
 	private Map<String, PrivateChat> privateChats;
 	private List<Message> messages;
+	private Map<String, List<String>> pendingUsers;
+	private JoinScheduler joins;
+	private QueryTracker queries;
+	private UserCache userCache;
+	private DccManager dcc;
+	private CtcpResponder ctcp;
+	private ChannelModes.ModeSpec modeSpec;
 	private List<ServerListener> listeners;
 	private ConnectionListener connection;
+	private SubmissionPublisher<ServerEvent> events;
+	private MessageFilter filter;
+	private HighlightMatcher highlighter;
+	private MessageIndex index;
+	private NameTable names;
+	private EventDispatcher dispatcher;
+	private ChatLogger logger;
+	private MessageDeduplicator dedup;
+	private volatile String network;
+	private List<String> support;
 	
 	public Server(String name, String url, String nick, String pass, int prt, ConnectionListener conn) {
 		channels = Collections.synchronizedMap(new HashMap<String, Channel>());
 		privateChats = Collections.synchronizedMap(new HashMap<String, PrivateChat>());
 		messages = Collections.synchronizedList(new ArrayList<Message>());
+		support = Collections.synchronizedList(new ArrayList<String>());
+		pendingUsers = new HashMap<String, List<String>>();
+		joins = new JoinScheduler(this);
+		queries = new QueryTracker(this);
+		userCache = new UserCache(this);
+		dcc = new DccManager(this);
+		ctcp = new CtcpResponder(this);
+		modeSpec = new ChannelModes.ModeSpec();
 		listeners = Collections.synchronizedList(new ArrayList<ServerListener>());
+		events = new SubmissionPublisher<ServerEvent>(eventThreads(), Flow.defaultBufferSize());
+		filter = new MessageFilter();
+		highlighter = new HighlightMatcher();
+		index = new MessageIndex();
+		names = new NameTable();
+		dispatcher = new EventDispatcher();
+		logger = new ChatLogger();
 		
 		connection = conn;
 		nickname = nick;
@@ -57,12 +100,27 @@ public class Server {
 		port = prt;
 		this.name = name;
 		this.url = url;
+		highlighter.setNickname(nick);
 	}
 	
 	public Server(String url, String nick, String pass, int prt, ConnectionListener conn) {
 		this(url, url, nick, pass, prt, conn);
 	}
 	
+	private static synchronized ExecutorService eventThreads() {
+		if (eventThreads == null) {
+			eventThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "libjutella-events");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		
+		return eventThreads;
+	}
+	
 	/**
 	 * returns the name associated with the server.
 	 *
@@ -77,6 +135,31 @@ public class Server {
 		return url;
 	}
 	
+	/**
+	 * returns the name of the network this server belongs to, as announced
+	 * by the server, or its address until it has been announced.
+	 *
+	 * @return the network name
+	 * @since 1
+	 */
+	public String getNetwork() {
+		String n = network;
+		return n != null ? n : url;
+	}
+	
+	/**
+	 * returns the tokens the server announced in its 005 replies since it
+	 * last connected, such as CHANTYPES=# or NETWORK=name, in order.
+	 *
+	 * @return a copy of the tokens
+	 * @since 1
+	 */
+	public List<String> getSupport() {
+		synchronized (support) {
+			return new ArrayList<String>(support);
+		}
+	}
+	
 	public int getPort() {
 		return port;
 	}
@@ -89,6 +172,37 @@ public class Server {
 		return password;
 	}
 	
+	/**
+	 * sets the character encoding used to talk to the server, UTF-8 by
+	 * default. It must be set before the connection is created.
+	 *
+	 * @param charset the encoding for incoming and outgoing lines
+	 * @since 1
+	 */
+	public void setEncoding(Charset charset) {
+		encoding = charset;
+	}
+	
+	public Charset getEncoding() {
+		return encoding;
+	}
+	
+	/**
+	 * sets the encoding used for incoming lines that are not valid in the
+	 * main encoding, ISO-8859-1 by default. Each line is decoded on its own
+	 * so clients using a legacy charset do not garble anybody else's text.
+	 *
+	 * @param charset the encoding to fall back to
+	 * @since 1
+	 */
+	public void setFallbackEncoding(Charset charset) {
+		fallbackEncoding = charset;
+	}
+	
+	public Charset getFallbackEncoding() {
+		return fallbackEncoding;
+	}
+	
 	/**
 	 * returns the caller an entire collection of the channels active on the server.
 	 * This is not a recommended method if you are trying to modify the underlying 
@@ -145,6 +259,32 @@ public class Server {
 		channels.remove(c.getName());
 	}
 	
+	/**
+	 * returns the private chats open on the server keyed by the lower case
+	 * nickname of the other user.
+	 *
+	 * @return private chats associated with the server instance
+	 * @since 1
+	 */
+	public Map<String, PrivateChat> getPrivateChats() {
+		return privateChats;
+	}
+	
+	protected void addPrivateChat(PrivateChat chat) {
+		privateChats.put(chat.getUser().toLowerCase(), chat);
+	}
+	
+	/**
+	 * returns the server level messages, notices and errors that do not
+	 * belong to a channel or private chat.
+	 *
+	 * @return server messages received so far
+	 * @since 1
+	 */
+	public List<Message> getMessages() {
+		return messages;
+	}
+	
 	/**
 	 * adds the provided ServiceListener to the list of objects contained
 	 * in the server class. These listeners will be notified when new
@@ -157,6 +297,371 @@ public class Server {
 		listeners.add(sl);
 	}
 	
+	/**
+	 * returns the filter applied to every message before it is processed.
+	 * Ignore masks, ignored commands and rate limits are configured on it.
+	 *
+	 * @return the message filter for this server
+	 * @since 1
+	 */
+	public MessageFilter getMessageFilter() {
+		return filter;
+	}
+	
+	/**
+	 * replaces the filter applied to incoming messages, passing null
+	 * disables filtering altogether.
+	 *
+	 * @param f the filter to use
+	 * @since 1
+	 */
+	public void setMessageFilter(MessageFilter f) {
+		filter = f;
+	}
+	
+	/**
+	 * sets the deduplicator shared with the other servers connected to the
+	 * same networks, channel messages it has already seen on another server
+	 * are dropped before they are stored. ConnectionManager sets its own for
+	 * every server it connects, null disables it.
+	 *
+	 * @param d the deduplicator to use
+	 * @since 1
+	 */
+	public void setDeduplicator(MessageDeduplicator d) {
+		dedup = d;
+	}
+	
+	public MessageDeduplicator getDeduplicator() {
+		return dedup;
+	}
+	
+	/**
+	 * returns the matcher used to tag private messages that mention the
+	 * user's nick or any configured keyword. Add keywords to it directly,
+	 * matches are available from Message.getHighlights.
+	 *
+	 * @return the highlight matcher for this server
+	 * @since 1
+	 */
+	public HighlightMatcher getHighlightMatcher() {
+		return highlighter;
+	}
+	
+	/**
+	 * returns the search index over this server's channel and private chat
+	 * history. Indexing is off until MessageIndex.setCapacity is called with
+	 * the number of messages to keep searchable.
+	 *
+	 * @return the message index for this server
+	 * @since 1
+	 */
+	public MessageIndex getMessageIndex() {
+		return index;
+	}
+	
+	/**
+	 * returns the table of nicknames and channel names shared by every
+	 * message, channel and member list of this server.
+	 *
+	 * @return the name table for this server
+	 * @since 1
+	 */
+	public NameTable getNameTable() {
+		return names;
+	}
+	
+	/**
+	 * returns the scheduler used to join channels in batches. Channels added
+	 * to its auto join list are joined every time the server connects.
+	 *
+	 * @return the join scheduler for this server
+	 * @since 1
+	 */
+	public JoinScheduler getJoinScheduler() {
+		return joins;
+	}
+	
+	/**
+	 * returns the tracker used to send WHOIS, WHO, LIST and MODE queries and
+	 * receive their replies as a single result.
+	 *
+	 * @return the query tracker for this server
+	 * @since 1
+	 */
+	public QueryTracker getQueryTracker() {
+		return queries;
+	}
+	
+	/**
+	 * returns the cache of user, host, real name and account information
+	 * gathered from the messages this server has received.
+	 *
+	 * @return the user cache for this server
+	 * @since 1
+	 */
+	public UserCache getUserCache() {
+		return userCache;
+	}
+	
+	/**
+	 * returns the manager used to send files to other users and to accept
+	 * the files they offer.
+	 *
+	 * @return the DCC manager for this server
+	 * @since 1
+	 */
+	public DccManager getDccManager() {
+		return dcc;
+	}
+	
+	/**
+	 * returns the responder answering CTCP requests such as VERSION and
+	 * PING, its replies and rate limits are configured on it.
+	 *
+	 * @return the CTCP responder for this server
+	 * @since 1
+	 */
+	public CtcpResponder getCtcpResponder() {
+		return ctcp;
+	}
+	
+	/**
+	 * returns the logger writing this server's channels and private chats
+	 * to disk. Logging is off until ChatLogger.setDirectory is called.
+	 *
+	 * @return the chat logger for this server
+	 * @since 1
+	 */
+	public ChatLogger getChatLogger() {
+		return logger;
+	}
+	
+	void dccOffered(DccTransfer offer) {
+		notifyListeners(offer.getNick(), new Callback() {
+			public void call(ServerListener sl) {
+				sl.onDccOffer(offer);
+			}
+		});
+	}
+	
+	/**
+	 * sets the number of threads listener callbacks run on. With 0, the
+	 * default, every callback runs on the connection thread before the next
+	 * line is read. Otherwise callbacks for different channels and private
+	 * chats run side by side on that many threads, while the callbacks of
+	 * any one channel or chat still run one at a time and in order. The
+	 * server state is always updated on the connection thread, callbacks
+	 * see the state as it is when they run. Changing the number of threads
+	 * waits for the callbacks already queued.
+	 *
+	 * @param threads the number of callback threads
+	 * @since 1
+	 */
+	public void setDispatchThreads(int threads) {
+		dispatcher.setThreads(threads, "libjutella-dispatch-" + name);
+	}
+	
+	public int getDispatchThreads() {
+		return dispatcher.getThreads();
+	}
+	
+	/**
+	 * waits until every listener callback queued so far on the dispatch
+	 * threads has returned, returns at once without dispatch threads.
+	 *
+	 * @throws InterruptedException if the wait is interrupted
+	 * @since 1
+	 */
+	public void awaitCallbacks() throws InterruptedException {
+		dispatcher.awaitIdle();
+	}
+	
+	/**
+	 * calls every listener from the callback lane of the channel or user
+	 * named by key, or from the server's own lane when key is null.
+	 */
+	private void notifyListeners(String key, final Callback callback) {
+		dispatcher.dispatch(key, new Runnable() {
+			public void run() {
+				for (ServerListener sl : listeners) {
+					callback.call(sl);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * A single listener callback, called for each listener in turn.
+	 */
+	private interface Callback {
+		
+		public void call(ServerListener sl);
+	}
+	
+	private void notifyChannel(Message message, Channel c) {
+		notifyListeners(c.getName(), new Callback() {
+			public void call(ServerListener sl) {
+				sl.onNewChannelMessage(message, c);
+			}
+		});
+	}
+	
+	/**
+	 * returns the channel mode definitions announced by the server.
+	 *
+	 * @return the mode definitions for this server
+	 * @since 1
+	 */
+	public ChannelModes.ModeSpec getModeSpec() {
+		return modeSpec;
+	}
+	
+	/**
+	 * asks the server for the entries of a list mode such as bans (b),
+	 * exceptions (e) or invites (I). Once loaded the list is available from
+	 * ChannelModes.getList and kept up to date from mode changes.
+	 *
+	 * @param c the channel
+	 * @param mode the list mode to load
+	 * @since 1
+	 */
+	public void loadModeList(Channel c, char mode) {
+		c.getModes().beginList(mode);
+		
+		Message msg = new Message();
+		msg.setType(Message.TYPE_SERVER);
+		msg.setText("/MODE " + c.getName() + " +" + mode);
+		sendMessage(msg);
+	}
+	
+	/**
+	 * returns the parameters of the message from the given index on, with
+	 * the trailing text as the last one. Mode changes may put their last
+	 * parameter in either place.
+	 */
+	private static List<String> arguments(Message message, int from) {
+		List<String> args = new ArrayList<String>();
+		
+		for (int i = from; i < message.paramCount(); i++) {
+			args.add(message.param(i));
+		}
+		
+		if (message.getText() != null) {
+			for (String arg : message.getText().split(" ")) {
+				if (arg.length() > 0) {
+					args.add(arg);
+				}
+			}
+		}
+		
+		return args;
+	}
+	
+	/**
+	 * handles the numeric replies that carry channel state without a command
+	 * constant of their own.
+	 */
+	private void receiveNumeric(Message message) {
+		String numeric = message.getRawCommand();
+		
+		if (numeric == null || message.paramCount() == 0) {
+			return;
+		}
+		
+		if (numeric.equals("005")) {
+			for (int i = 1; i < message.paramCount(); i++) {
+				String token = message.param(i);
+				support.add(token);
+				modeSpec.parseToken(token);
+				
+				if (token.startsWith("NETWORK=")) {
+					network = token.substring(8);
+				} else if (token.startsWith("ELIST=")) {
+					queries.setListExtensions(token.substring(6));
+				}
+			}
+			
+			return;
+		}
+		
+		Channel c = message.paramCount() > 1 ? channels.get(message.param(1)) : null;
+		
+		if (c == null) {
+			return;
+		}
+		
+		if (numeric.equals("324")) {
+			c.getModes().reset(arguments(message, 2), modeSpec, c);
+		} else if (message.paramCount() > 2 && numeric.equals("367")) {
+			c.getModes().addListEntry('b', message.param(2));
+		} else if (message.paramCount() > 2 && numeric.equals("348")) {
+			c.getModes().addListEntry('e', message.param(2));
+		} else if (message.paramCount() > 2 && numeric.equals("346")) {
+			c.getModes().addListEntry('I', message.param(2));
+		}
+	}
+	
+	/**
+	 * hands a message to the connection to be sent to the remote server.
+	 *
+	 * @param msg the message to send
+	 * @since 1
+	 */
+	protected void sendMessage(Message msg) {
+		connection.onSendMessage(this, msg);
+	}
+	
+	/**
+	 * returns a publisher of every message this server processes. Subscribers
+	 * control the flow with Subscription.request, once a subscriber's buffer
+	 * is full the server's lines are held back until it catches up instead of
+	 * queueing without bound, which in turn stops reading from the socket.
+	 * A connection on a shard's dispatch threads holds back only its own
+	 * lines, the other connections of the shard carry on.
+	 *
+	 * @return the event publisher for this server
+	 * @since 1
+	 */
+	public Flow.Publisher<ServerEvent> getEventPublisher() {
+		return events;
+	}
+	
+	/**
+	 * returns true when an event subscriber's buffer is full, so publishing
+	 * the next event would wait for it to catch up.
+	 *
+	 * @since 1
+	 */
+	public boolean isEventBacklogFull() {
+		SubmissionPublisher<ServerEvent> p = events;
+		return p.hasSubscribers() && p.estimateMaximumLag() >= p.getMaxBufferCapacity();
+	}
+	
+	/**
+	 * completes the event stream for good, subscribers receive onComplete
+	 * once they have consumed any buffered events. Call it when the server
+	 * is no longer used, losing or closing the connection leaves the stream
+	 * open so subscribers keep receiving events after a reconnect.
+	 *
+	 * @since 1
+	 */
+	public void closeEventPublisher() {
+		events.close();
+	}
+	
+	/**
+	 * called by the connection once the link to the server is lost. Work
+	 * waiting on replies from the server is failed or, for joins, queued
+	 * again for the next connection.
+	 *
+	 * @since 1
+	 */
+	public void disconnected() {
+		joins.disconnected();
+		queries.disconnected();
+	}
+	
 	/**
 	 * This method receives a parsed message and will be responsible for 
 	 * appropriately placing the message and notifying the application level
@@ -167,48 +672,161 @@ public class Server {
 	 */
 	protected void receiveMessage(Message message) {
 		Channel c;
+		MessageFilter f = filter;
+		
+		//the stored message drops its line, the event keeps it.
+		String raw = message.getRawLine();
+		
+		if (f != null && !f.accept(message)) {
+			return;
+		}
+		
+		//copies of a channel message received by another of our servers.
+		MessageDeduplicator d = dedup;
+		int command = message.getCommand();
+		
+		if (d != null && (command == Message.CMD_PRIVMSG || command == Message.CMD_NOTICE) && message.paramCount() > 0
+				&& channels.containsKey(message.param(0)) && d.isDuplicate(this, message)) {
+			return;
+		}
+		
+		userCache.observe(message);
+		
+		if (message.getCommand() == -1) {
+			queries.receive(message);
+			receiveNumeric(message);
+		}
 		
 		switch(message.getCommand()) {
 		case Message.SERV_CONNECTED:
-			for (ServerListener sl : listeners) {
-				sl.onClientConnected();
-			}
-			
+			support.clear();
+			notifyListeners(null, new Callback() {
+				public void call(ServerListener sl) {
+					sl.onClientConnected();
+				}
+			});
+			joins.connected();
 			break;
 		case Message.SERV_TOPIC:
-			c = channels.get(message.getParams()[message.getParams().length - 1]);
-			message.setType(Message.TYPE_CHANNEL);
-			c.addMessage(message);
+			c = channels.get(message.lastParam());
 			
-			for (ServerListener sl : listeners) {
-				sl.onNewChannelMessage(message, c);
+			if (c != null) {
+				message.setType(Message.TYPE_CHANNEL);
+				c.setTopic(message.getText());
+				c.addMessage(message);
+				logger.log(message, c.getName());
+				notifyChannel(message, c);
 			}
 			
 			break;
 		case Message.SERV_TOPIC_SET:
-			c = channels.get(message.getParams()[message.getParams().length - 1]);
-			String timestamp = message.getParams()[3];
-			SimpleDateFormat formatter = new SimpleDateFormat("MM dd, yyyy HH:mm:ss");
-			Date date = new Date(Long.parseLong(timestamp) * 1000);
-			String text = message.getParams()[2] + " - " + formatter.format(date);
+			//333 <me> <channel> <who> <time>
+			c = message.paramCount() > 3 ? channels.get(message.param(1)) : null;
 			
-			message.setText(text);
-			message.setType(Message.TYPE_CHANNEL);
-			c.addMessage(message);
+			if (c != null) {
+				long setAt;
+				
+				//a time the server mangled leaves the topic date unknown.
+				try {
+					setAt = Long.parseLong(message.param(3)) * 1000;
+				} catch (NumberFormatException e) {
+					setAt = 0;
+				}
+				
+				c.setTopicInfo(message.param(2), setAt);
+				String date = c.getTopicDate();
+				
+				message.setText(date != null ? message.param(2) + " - " + date : message.param(2));
+				message.setType(Message.TYPE_CHANNEL);
+				c.addMessage(message);
+				logger.log(message, c.getName());
+				notifyChannel(message, c);
+			}
 			
-			for (ServerListener sl : listeners) {
-				sl.onNewChannelMessage(message, c);
+			break;
+		case Message.CMD_TOPIC:
+			c = channels.get(message.param(0));
+			
+			if (c != null) {
+				c.setTopic(message.getText());
+				c.setTopicInfo(message.getSender(), message.rawTimestamp());
+				message.setType(Message.TYPE_CHANNEL);
+				c.addMessage(message);
+				logger.log(message, c.getName());
+				notifyChannel(message, c);
+			}
+			
+			break;
+		case Message.CMD_MODE:
+			c = message.paramCount() > 0 ? channels.get(message.param(0)) : null;
+			
+			if (c != null) {
+				Channel changed = c;
+				c.getModes().apply(arguments(message, 1), modeSpec, c);
+				message.setType(Message.TYPE_CHANNEL);
+				c.addMessage(message);
+				logger.log(message, c.getName());
+				notifyListeners(c.getName(), new Callback() {
+					public void call(ServerListener sl) {
+						sl.onChannelModeChanged(message, changed);
+					}
+				});
 			}
 			
 			break;
 		case Message.SERV_USERS:
-			c = channels.get(message.getParams()[message.getParams().length - 1]);
-			String users[] = message.getText().split(" ");
+			//names arrive over many lines, collect them and swap the whole
+			//list into the channel once the end of names reply arrives.
+			String name = message.lastParam();
+			List<String> pending = pendingUsers.get(name);
 			
-			for (String user : users) {
-				c.addUser(user);
+			if (pending == null) {
+				pending = new ArrayList<String>();
+				pendingUsers.put(name, pending);
 			}
-
+			
+			String list = message.getText();
+			int start = 0;
+			
+			while (start < list.length()) {
+				int end = list.indexOf(' ', start);
+				
+				if (end == -1) {
+					end = list.length();
+				}
+				
+				if (end > start) {
+					String user = names.intern(list, start, end);
+					names.stored(user);
+					pending.add(user);
+				}
+				
+				start = end + 1;
+			}
+			
+			break;
+		case Message.SERV_END_USERS:
+			c = channels.get(message.lastParam());
+			List<String> loaded = pendingUsers.remove(message.lastParam());
+			
+			if (c != null) {
+				Channel channel = c;
+				c.setUsers(loaded != null ? loaded : new ArrayList<String>());
+				notifyListeners(c.getName(), new Callback() {
+					public void call(ServerListener sl) {
+						sl.onUsersLoaded(channel);
+					}
+				});
+			}
+			
+			break;
+		case Message.SERV_JOIN_ERROR:
+			message.setType(Message.TYPE_SERVER);
+			messages.add(message);
+			
+			//403 also answers a MODE or WHO of a channel that does not exist.
+			queries.receive(message);
+			joins.failed(message.lastParam(), message);
 			break;
 		case Message.SERV_NO_NICK:
 		case Message.SERV_ERRONEUS_NICK:
@@ -216,53 +834,87 @@ public class Server {
 		case Message.SERV_NICK_COLLISION:
 			message.setType(Message.TYPE_SERVER);
 			messages.add(message);
-			
-			for (ServerListener sl : listeners) {
-				sl.onNickError(message);
-			}
-			
+			notifyListeners(null, new Callback() {
+				public void call(ServerListener sl) {
+					sl.onNickError(message);
+				}
+			});
 			break;
 		case Message.SERV_ERROR:
 			message.setType(Message.TYPE_SERVER);
 			messages.add(message);
-			
-			for (ServerListener sl : listeners) {
-				sl.onServerError(message);
-			}
-			
+			notifyListeners(null, new Callback() {
+				public void call(ServerListener sl) {
+					sl.onServerError(message);
+				}
+			});
 			break;
 		case Message.CMD_NICK:
 			if (message.getSender().equals(nickname)) {
 				nickname = message.getText();
+				highlighter.setNickname(nickname);
 			}
 			
+			//later messages from the new nick queue behind those from the old.
+			dispatcher.rename(message.getSender(), message.getText());
+			
 			synchronized (channels) {
 				for (Channel channel : channels.values()) {
 					channel.removeUser(message.getSender());
 					channel.addUser(message.getText());
-					
-					for (ServerListener sl : listeners) {
-						sl.onUpdateUser(channel, message.getSender(), message.getText());
-					}
+					notifyListeners(channel.getName(), new Callback() {
+						public void call(ServerListener sl) {
+							sl.onUpdateUser(channel, message.getSender(), message.getText());
+						}
+					});
 				}
 			}
 			
 			break;
 		case Message.CMD_JOIN:
+			//servers send the channel as a plain or as a trailing parameter.
+			String channelName = message.paramCount() > 0 ? message.param(0) : message.getText();
+			
 			if (message.getSender().equals(nickname)) {
-				Channel channel = new Channel(this);
-				channel.setName(message.getText());
+				Channel channel = channels.get(channelName);
 				
-				for (ServerListener sl : listeners) {
-					sl.onJoinChannel(channel);
+				//a channel restored from a snapshot keeps its history, the
+				//member list is rebuilt from the names reply that follows
+				//and the modes are asked for again.
+				if (channel != null) {
+					channel.clearUsers();
+					queries.mode(channel.getName());
+				} else {
+					channel = new Channel(this);
+					channel.setName(channelName);
 				}
+				
+				//the channel is known before the messages that follow the join
+				//are processed, whichever thread the callbacks run on.
+				addChannel(channel);
+				logger.log(message, channel.getName());
+				
+				Channel joined = channel;
+				notifyListeners(channel.getName(), new Callback() {
+					public void call(ServerListener sl) {
+						sl.onJoinChannel(joined);
+					}
+				});
+				joins.joined(channel);
 			} else {
-				Channel channel = channels.get(message.getText());
-				channel.addUser(message.getSender());
+				Channel channel = channels.get(channelName);
 				
-				for (ServerListener sl : listeners) {
-					sl.onUserEnteredChannel(message.getSender(), channel);
+				if (channel == null) {
+					break;
 				}
+				
+				channel.addUser(message.getSender());
+				logger.log(message, channel.getName());
+				notifyListeners(channel.getName(), new Callback() {
+					public void call(ServerListener sl) {
+						sl.onUserEnteredChannel(message.getSender(), channel);
+					}
+				});
 			}
 			break;
 		case Message.CMD_QUIT:
@@ -270,69 +922,134 @@ public class Server {
 				for (Channel channel : channels.values()) {
 					if (channel.getUsers().contains(message.getSender())) {
 						channel.removeUser(message.getSender());
-						
-						for (ServerListener sl : listeners) {
-							sl.onUserQuit(message);
-						}
+						logger.log(message, channel.getName());
+						notifyListeners(channel.getName(), new Callback() {
+							public void call(ServerListener sl) {
+								sl.onUserQuit(message);
+							}
+						});
 					}
 				}
 			}
 			
 			break;
 		case Message.CMD_PART:
-			Channel chan = channels.get(message.getParams()[0]);
+			Channel chan = channels.get(message.param(0));
+			
+			//a part from a channel the client does not track is ignored.
+			if (chan == null) {
+				break;
+			}
+			
+			logger.log(message, chan.getName());
 			
 			if (message.getSender().equals(nickname)) {
-				for (ServerListener sl : listeners) {
-					sl.onLeaveChannel(chan.getName());
-				}
+				notifyListeners(chan.getName(), new Callback() {
+					public void call(ServerListener sl) {
+						sl.onLeaveChannel(chan.getName());
+					}
+				});
 			} else {
 				synchronized (channels) {
 					for (Channel channel : channels.values()) {
 						if (channel.getUsers().contains(message.getSender())) {
 							channel.removeUser(message.getSender());
-							
-							for (ServerListener sl : listeners) {
-								sl.onUserLeftChannel(message.getSender(), channel);
-							}
+							notifyListeners(channel.getName(), new Callback() {
+								public void call(ServerListener sl) {
+									sl.onUserLeftChannel(message.getSender(), channel);
+								}
+							});
 						}
 					}
 				}
 			}
 			
+			break;
+		case Message.CMD_KICK:
+			Channel kicked = channels.get(message.param(0));
+			
+			if (kicked == null || message.paramCount() < 2) {
+				break;
+			}
+			
+			kicked.removeUser(message.param(1));
+			logger.log(message, kicked.getName());
+			notifyListeners(kicked.getName(), new Callback() {
+				public void call(ServerListener sl) {
+					sl.onUserKicked(message.param(1), kicked, message);
+				}
+			});
+			
+			//being kicked closes the channel just like leaving it.
+			if (message.param(1).equalsIgnoreCase(nickname)) {
+				removeChannel(kicked);
+				notifyListeners(kicked.getName(), new Callback() {
+					public void call(ServerListener sl) {
+						sl.onLeaveChannel(kicked.getName());
+					}
+				});
+			}
+			
 			break;
 		case Message.CMD_PRIVMSG:
-			String dest = message.getParams()[0];
+			String dest = message.param(0);
+			message.setHighlights(highlighter.match(message.getText()));
+			
+			//actions are shown like any other message, other CTCP requests
+			//are answered and never stored in the chat history.
+			if (message.isCtcp() && !message.isCtcp("ACTION")) {
+				if (!dest.equalsIgnoreCase(nickname) || !dcc.receive(message)) {
+					ctcp.respond(message);
+					notifyListeners(null, new Callback() {
+						public void call(ServerListener sl) {
+							sl.onCtcpRequest(message);
+						}
+					});
+				}
+				
+				break;
+			}
 			
 			if (dest.toLowerCase().equals(nickname.toLowerCase())) {
 				if (!privateChats.containsKey(message.getSender().toLowerCase())) {
-					PrivateChat chat = new PrivateChat(message.getSender());
+					PrivateChat chat = new PrivateChat(message.getSender(), this);
 					privateChats.put(message.getSender().toLowerCase(), chat);
 				}
 				
 				PrivateChat chat = privateChats.get(message.getSender().toLowerCase());
 				chat.addMessage(message);
-				
-				for (ServerListener sl : listeners) {
-					sl.onNewPrivateMessage(message, chat);
-				}
+				logger.log(message, message.getSender());
+				notifyListeners(message.getSender(), new Callback() {
+					public void call(ServerListener sl) {
+						sl.onNewPrivateMessage(message, chat);
+					}
+				});
 			} else {
 				Channel channel = channels.get(dest);
 				channel.addMessage(message);
-				
-				for (ServerListener sl : listeners) {
-					sl.onNewChannelMessage(message, channel);
-				}
+				logger.log(message, channel.getName());
+				notifyChannel(message, channel);
 			}
 			
 			break;
 		case Message.CMD_NOTICE:
 			messages.add(message);
 			
-			for (ServerListener sl : listeners) {
-				sl.onNewNotice(message, this);
+			//channel notices go to the channel's log, those sent to us by a
+			//user to the chat with them, server notices are not logged.
+			Channel noticed = message.param(0) == null ? null : channels.get(message.param(0));
+			
+			if (noticed != null) {
+				logger.log(message, noticed.getName());
+			} else if (message.getUser() != null) {
+				logger.log(message, message.getSender());
 			}
 			
+			notifyListeners(null, new Callback() {
+				public void call(ServerListener sl) {
+					sl.onNewNotice(message, Server.this);
+				}
+			});
 			break;
 		case Message.CMD_PING:
 			Message msg = new Message();
@@ -342,6 +1059,10 @@ public class Server {
 			connection.onSendMessage(this, msg);
 			break;
 		}
+		
+		if (events.hasSubscribers() && !events.isClosed()) {
+			events.submit(new ServerEvent(this, message, raw));
+		}
 	}
 	
 	/**
@@ -472,5 +1193,68 @@ public class Server {
 		 * @since 1
 		 */
 		public void onNewNotice(Message msg, Server serv);
+		
+		/**
+		 * Notifies the application level code that the complete member list
+		 * of a channel has been received, either after joining or after a
+		 * names request. The list is available from Channel.getUsers.
+		 *
+		 * @param chan the channel whose members were loaded
+		 * @since 1
+		 */
+		public default void onUsersLoaded(Channel chan) {
+			
+		}
+		
+		/**
+		 * Notifies the application level code that the modes of a channel
+		 * have changed. The new modes are available from Channel.getModes.
+		 *
+		 * @param msg the mode change received
+		 * @param chan the channel whose modes changed
+		 * @since 1
+		 */
+		public default void onChannelModeChanged(Message msg, Channel chan) {
+			
+		}
+		
+		/**
+		 * Notifies the application level code that another user offers a
+		 * file. Start receiving it with DccManager.accept, offers that are
+		 * not accepted are simply ignored.
+		 *
+		 * @param offer the offered transfer
+		 * @since 1
+		 */
+		public default void onDccOffer(DccTransfer offer) {
+			
+		}
+		
+		/**
+		 * Notifies the application level code that a CTCP request other
+		 * than ACTION has been received. DCC file offers go to onDccOffer,
+		 * other DCC requests such as CHAT arrive here. Known requests have
+		 * already been answered by the CtcpResponder.
+		 *
+		 * @param msg the request, see Message.getCtcpCommand
+		 * @since 1
+		 */
+		public default void onCtcpRequest(Message msg) {
+			
+		}
+		
+		/**
+		 * Notifies the application level code that a user has been kicked
+		 * from a channel. When the user is the client itself the channel is
+		 * removed from the server and onLeaveChannel follows.
+		 *
+		 * @param user the nickname of the kicked user
+		 * @param chan the channel the user was kicked from
+		 * @param msg the kick, the sender is the kicker and the text the reason
+		 * @since 1
+		 */
+		public default void onUserKicked(String user, Channel chan, Message msg) {
+			
+		}
 	}
 }
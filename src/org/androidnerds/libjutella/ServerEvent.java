@@ -0,0 +1,69 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+/**
+ * A ServerEvent pairs a processed Message with the Server that received it.
+ * These are the items published by the Server and ConnectionManager event
+ * streams.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ServerEvent {
+
+	private Server server;
+	private Message message;
+	private String line;
+
+	public ServerEvent(Server s, Message msg) {
+		this(s, msg, msg.getRawLine());
+	}
+
+	ServerEvent(Server s, Message msg, String raw) {
+		server = s;
+		message = msg;
+		line = raw;
+	}
+
+	/**
+	 * returns the server that received the message
+	 *
+	 * @since 1
+	 */
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * returns the message, already applied to the server state
+	 *
+	 * @since 1
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * returns the line exactly as it was received, kept with the event even
+	 * when the message has already been stored and dropped it, or null for
+	 * messages created by the library itself
+	 *
+	 * @since 1
+	 */
+	public String getRawLine() {
+		return line;
+	}
+}
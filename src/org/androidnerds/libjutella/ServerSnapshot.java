@@ -0,0 +1,489 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ServerSnapshot writes the state of a Server (channels, their users,
+ * topics and modes, private chats and the most recent history) to a compact
+ * binary form and loads it back. Applications write a snapshot periodically
+ * and restore it on startup so the UI is populated before the connection has
+ * resynced.
+ *
+ * Strings are written once and referenced by index afterwards, nicknames and
+ * channel names repeat on nearly every message so this keeps the file small.
+ * Counts, references and the time between two messages are written as
+ * variable length integers, most of them fit in a single byte.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ServerSnapshot {
+	
+	private static final int MAGIC = 0x4a555453;
+	private static final int VERSION = 2;
+	
+	private ServerSnapshot() {
+		
+	}
+	
+	/**
+	 * Writes the snapshot to a file. The data is written to a temporary file
+	 * first and moved over the target in a single atomic step, so a crash
+	 * while writing never leaves a truncated snapshot or no snapshot behind.
+	 *
+	 * @param server the server to snapshot
+	 * @param file the file to write
+	 * @param history the number of recent messages to keep per channel or chat
+	 * @since 1
+	 */
+	public static void write(Server server, File file, int history) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		
+		try {
+			write(server, out, history);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Writes the snapshot to the stream.
+	 *
+	 * @param server the server to snapshot
+	 * @param stream the stream to write to, it is flushed but not closed
+	 * @param history the number of recent messages to keep per channel or chat
+	 * @since 1
+	 */
+	public static void write(Server server, OutputStream stream, int history) throws IOException {
+		Writer out = new Writer(new DataOutputStream(new BufferedOutputStream(stream)));
+		List<Channel> channels;
+		List<PrivateChat> chats;
+		
+		synchronized (server.getChannels()) {
+			channels = new ArrayList<Channel>(server.getChannels().values());
+		}
+		
+		synchronized (server.getPrivateChats()) {
+			chats = new ArrayList<PrivateChat>(server.getPrivateChats().values());
+		}
+		
+		out.data.writeInt(MAGIC);
+		out.data.writeInt(VERSION);
+		out.data.writeLong(System.currentTimeMillis());
+		
+		out.writeVarint(channels.size());
+		
+		for (Channel c : channels) {
+			out.writeString(c.getName());
+			out.writeString(c.getTopic());
+			out.writeString(c.getTopicSetBy());
+			out.writeVarint(c.getTopicTime());
+			
+			List<String> users;
+			
+			synchronized (c.getUsers()) {
+				users = new ArrayList<String>(c.getUsers());
+			}
+			
+			out.writeVarint(users.size());
+			
+			for (String user : users) {
+				out.writeString(user);
+			}
+			
+			out.writeModes(c.getModes());
+			out.writeMessages(c.getMessages(), history);
+		}
+		
+		out.writeVarint(chats.size());
+		
+		for (PrivateChat chat : chats) {
+			out.writeString(chat.getUser());
+			out.writeMessages(chat.getMessages(), history);
+		}
+		
+		out.writeMessages(server.getMessages(), history);
+		out.data.flush();
+	}
+	
+	/**
+	 * Reads a snapshot from a file into the server.
+	 *
+	 * @param server the server to restore into
+	 * @param file the snapshot file
+	 * @return the time the snapshot was taken
+	 * @since 1
+	 */
+	public static long read(Server server, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		
+		try {
+			return read(server, in);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads a snapshot from the stream into the server. Channels and private
+	 * chats are added to the server as they are read, existing ones with the
+	 * same name are replaced. Listeners are not notified, the application is
+	 * expected to build its UI from the restored server afterwards.
+	 *
+	 * Every restored channel is queued on the server's JoinScheduler, so it
+	 * is joined again once the server connects. The names, topic and modes
+	 * the server sends after the join replace the restored ones.
+	 *
+	 * @param server the server to restore into
+	 * @param stream the stream to read from, it is not closed
+	 * @return the time the snapshot was taken
+	 * @since 1
+	 */
+	public static long read(Server server, InputStream stream) throws IOException {
+		Reader in = new Reader(new DataInputStream(new BufferedInputStream(stream)));
+		
+		if (in.data.readInt() != MAGIC) {
+			throw new IOException("not a server snapshot");
+		}
+		
+		int version = in.data.readInt();
+		
+		if (version != VERSION) {
+			throw new IOException("unsupported snapshot version " + version);
+		}
+		
+		long taken = in.data.readLong();
+		int count = in.readCount();
+		
+		for (int i = 0; i < count; i++) {
+			Channel c = new Channel(server);
+			c.setName(in.readString());
+			c.setTopic(in.readString());
+			
+			String setBy = in.readString();
+			long setAt = in.readVarint();
+			
+			if (setBy != null || setAt != 0) {
+				c.setTopicInfo(setBy, setAt);
+			}
+			
+			int users = in.readCount();
+			
+			for (int u = 0; u < users; u++) {
+				c.addUser(in.readString());
+			}
+			
+			in.readModes(c.getModes());
+			
+			for (Message msg : in.readMessages()) {
+				c.addMessage(msg);
+			}
+			
+			server.addChannel(c);
+			server.getJoinScheduler().join(c.getName());
+		}
+		
+		count = in.readCount();
+		
+		for (int i = 0; i < count; i++) {
+			PrivateChat chat = new PrivateChat(in.readString(), server);
+			
+			for (Message msg : in.readMessages()) {
+				chat.addMessage(msg);
+			}
+			
+			server.addPrivateChat(chat);
+		}
+		
+		for (Message msg : in.readMessages()) {
+			server.getMessages().add(msg);
+		}
+		
+		return taken;
+	}
+	
+	private static class Writer {
+		
+		DataOutputStream data;
+		Map<String, Integer> strings = new HashMap<String, Integer>();
+		long lastTime;
+		
+		Writer(DataOutputStream out) {
+			data = out;
+		}
+		
+		//seven bits per byte, the high bit set on every byte but the last.
+		void writeVarint(long v) throws IOException {
+			while ((v & ~0x7fL) != 0) {
+				data.writeByte((int) (v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			
+			data.writeByte((int) v);
+		}
+		
+		//0 is null, 1 introduces a new string, anything else refers back to one.
+		void writeString(String s) throws IOException {
+			if (s == null) {
+				writeVarint(0);
+				return;
+			}
+			
+			Integer ref = strings.get(s);
+			
+			if (ref != null) {
+				writeVarint(ref + 2);
+			} else {
+				strings.put(s, strings.size());
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				writeVarint(1);
+				writeVarint(bytes.length);
+				data.write(bytes);
+			}
+		}
+		
+		void writeModes(ChannelModes modes) throws IOException {
+			Map<Character, String> params = modes.getParams();
+			Map<Character, List<String>> lists = modes.getLists();
+			
+			writeVarint(modes.getFlags());
+			writeVarint(params.size());
+			
+			for (Map.Entry<Character, String> e : params.entrySet()) {
+				writeVarint(e.getKey());
+				writeString(e.getValue());
+			}
+			
+			//0 when no list was loaded, otherwise the number of lists plus one.
+			writeVarint(lists == null ? 0 : lists.size() + 1);
+			
+			if (lists != null) {
+				for (Map.Entry<Character, List<String>> e : lists.entrySet()) {
+					writeVarint(e.getKey());
+					writeVarint(e.getValue().size());
+					
+					for (String mask : e.getValue()) {
+						writeString(mask);
+					}
+				}
+			}
+		}
+		
+		void writeMessages(List<Message> messages, int history) throws IOException {
+			List<Message> recent;
+			
+			synchronized (messages) {
+				int from = Math.max(0, messages.size() - history);
+				recent = new ArrayList<Message>(messages.subList(from, messages.size()));
+			}
+			
+			writeVarint(recent.size());
+			
+			for (Message msg : recent) {
+				//the time since the previous message, zigzag encoded since the
+				//histories are not in order with each other.
+				long delta = msg.rawTimestamp() - lastTime;
+				lastTime = msg.rawTimestamp();
+				
+				writeVarint(msg.getType());
+				writeVarint(msg.getCommand());
+				writeVarint((delta << 1) ^ (delta >> 63));
+				writeString(msg.getRawCommand());
+				writeString(msg.getSender());
+				writeString(msg.getUser());
+				writeString(msg.getHost());
+				writeString(msg.getText());
+				writeVarint(msg.getCtcpEnd() + 1);
+				writeVarint(msg.paramCount());
+				
+				for (int i = 0; i < msg.paramCount(); i++) {
+					writeString(msg.param(i));
+				}
+				
+				String[] highlights = msg.getHighlights();
+				writeVarint(highlights == null ? 0 : highlights.length + 1);
+				
+				if (highlights != null) {
+					for (String h : highlights) {
+						writeString(h);
+					}
+				}
+			}
+		}
+	}
+	
+	private static class Reader {
+		
+		DataInputStream data;
+		List<String> strings = new ArrayList<String>();
+		long lastTime;
+		
+		Reader(DataInputStream in) {
+			data = in;
+		}
+		
+		long readVarint() throws IOException {
+			long v = 0;
+			
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = data.readUnsignedByte();
+				v |= (long) (b & 0x7f) << shift;
+				
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			
+			throw new IOException("corrupt snapshot, varint too long");
+		}
+		
+		int readCount() throws IOException {
+			long count = readVarint();
+			
+			if (count < 0 || count > Integer.MAX_VALUE) {
+				throw new IOException("corrupt snapshot, bad count " + count);
+			}
+			
+			return (int) count;
+		}
+		
+		String readString() throws IOException {
+			long ref = readVarint();
+			
+			if (ref == 0) {
+				return null;
+			} else if (ref == 1) {
+				byte[] bytes = new byte[readCount()];
+				data.readFully(bytes);
+				String s = new String(bytes, StandardCharsets.UTF_8);
+				strings.add(s);
+				return s;
+			} else if (ref < 0 || ref - 2 >= strings.size()) {
+				throw new IOException("corrupt snapshot, bad string reference " + ref);
+			}
+			
+			return strings.get((int) (ref - 2));
+		}
+		
+		void readModes(ChannelModes modes) throws IOException {
+			long flags = readVarint();
+			int count = readCount();
+			Map<Character, String> params = new HashMap<Character, String>(4);
+			
+			for (int i = 0; i < count; i++) {
+				char mode = (char) readVarint();
+				params.put(mode, readString());
+			}
+			
+			Map<Character, List<String>> lists = null;
+			count = readCount();
+			
+			if (count > 0) {
+				lists = new HashMap<Character, List<String>>(4);
+				
+				for (int i = 0; i < count - 1; i++) {
+					char mode = (char) readVarint();
+					int entries = readCount();
+					List<String> list = new ArrayList<String>(entries);
+					
+					for (int j = 0; j < entries; j++) {
+						list.add(readString());
+					}
+					
+					lists.put(mode, list);
+				}
+			}
+			
+			modes.restore(flags, params, lists);
+		}
+		
+		List<Message> readMessages() throws IOException {
+			int count = readCount();
+			List<Message> messages = new ArrayList<Message>(Math.min(count, 1024));
+			
+			for (int i = 0; i < count; i++) {
+				Message msg = new Message();
+				msg.setType((int) readVarint());
+				msg.setCommand((int) readVarint());
+				
+				long zigzag = readVarint();
+				lastTime += (zigzag >>> 1) ^ -(zigzag & 1);
+				msg.setTimestamp(lastTime);
+				
+				msg.setRawCommand(readString());
+				msg.setSender(readString());
+				msg.setUser(readString());
+				msg.setHost(readString());
+				msg.setText(readString());
+				
+				int ctcpEnd = (int) readVarint() - 1;
+				
+				if (ctcpEnd != -1) {
+					msg.setCtcp(ctcpEnd);
+				}
+				
+				int params = readCount();
+				
+				if (params > 0) {
+					String[] p = new String[params];
+					
+					for (int j = 0; j < params; j++) {
+						p[j] = readString();
+					}
+					
+					msg.setParams(p);
+				}
+				
+				int highlights = readCount();
+				
+				if (highlights > 0) {
+					String[] h = new String[highlights - 1];
+					
+					for (int j = 0; j < h.length; j++) {
+						h[j] = readString();
+					}
+					
+					msg.setHighlights(h);
+				}
+				
+				messages.add(msg);
+			}
+			
+			return messages;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The UserCache remembers the user, host, real name and account of the
+ * nicknames seen on a server. It is filled in passively from the prefix of
+ * every message and from WHO and WHOIS replies, so looking up a host does
+ * not cost a round trip to the server.
+ *
+ * The cache holds a bounded number of users and forgets the least recently
+ * used one first. Lookups follow the rfc1459 casemapping.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class UserCache {
+	
+	private Server server;
+	private int capacity = 10000;
+	private LinkedHashMap<String, UserInfo> users;
+	
+	public UserCache(Server s) {
+		server = s;
+		users = new LinkedHashMap<String, UserInfo>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			protected boolean removeEldestEntry(Map.Entry<String, UserInfo> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * sets the maximum number of users remembered, 10000 by default.
+	 *
+	 * @param max the number of users to keep
+	 * @since 1
+	 */
+	public synchronized void setCapacity(int max) {
+		capacity = Math.max(1, max);
+		
+		while (users.size() > capacity) {
+			users.remove(users.keySet().iterator().next());
+		}
+	}
+	
+	public synchronized int size() {
+		return users.size();
+	}
+	
+	/**
+	 * returns what is known about the nickname.
+	 *
+	 * @param nick the nickname to look up
+	 * @return the cached information, or null if the user has not been seen
+	 * @since 1
+	 */
+	public synchronized UserInfo get(String nick) {
+		return users.get(HighlightMatcher.fold(nick));
+	}
+	
+	/**
+	 * sends a WHO for the channel or mask, the replies fill in the real names
+	 * and hosts of everybody matching it.
+	 *
+	 * @param mask the channel or mask to query
+	 * @return a future completed once the reply has been received
+	 * @since 1
+	 */
+	public CompletableFuture<List<QueryTracker.WhoEntry>> enrich(String mask) {
+		return server.getQueryTracker().who(mask);
+	}
+	
+	/**
+	 * Updates the cache from a message received by the server.
+	 */
+	void observe(Message message) {
+		String sender = message.getSender();
+		int count = message.paramCount();
+		
+		if (sender != null && message.getHost() != null) {
+			UserInfo info = touch(sender);
+			
+			synchronized (this) {
+				info.user = message.getUser();
+				info.host = message.getHost();
+			}
+		}
+		
+		switch (message.getCommand()) {
+		case Message.CMD_NICK:
+			if (sender != null && message.getText() != null) {
+				rename(sender, message.getText());
+			}
+			
+			return;
+		case -1:
+			break;
+		default:
+			return;
+		}
+		
+		String numeric = message.getRawCommand();
+		
+		if (count == 0 || numeric == null) {
+			return;
+		}
+		
+		if (numeric.equals("352") && message.paramCount() >= 7) {
+			//352 <me> <channel> <user> <host> <server> <nick> <flags> :<hops> <realname>
+			UserInfo info = touch(message.param(5));
+			String text = message.getText();
+			int space = text == null ? -1 : text.indexOf(' ');
+			
+			synchronized (this) {
+				info.user = message.param(2);
+				info.host = message.param(3);
+				
+				if (space != -1) {
+					info.realname = text.substring(space + 1);
+				}
+			}
+		} else if (numeric.equals("311") && message.paramCount() >= 4) {
+			//311 <me> <nick> <user> <host> * :<realname>
+			UserInfo info = touch(message.param(1));
+			
+			synchronized (this) {
+				info.user = message.param(2);
+				info.host = message.param(3);
+				info.realname = message.getText();
+			}
+		} else if (numeric.equals("330") && message.paramCount() >= 3) {
+			//330 <me> <nick> <account> :is logged in as
+			UserInfo info = touch(message.param(1));
+			
+			synchronized (this) {
+				info.account = message.param(2);
+			}
+		}
+	}
+	
+	private synchronized UserInfo touch(String nick) {
+		String key = HighlightMatcher.fold(nick);
+		UserInfo info = users.get(key);
+		
+		if (info == null) {
+			info = new UserInfo(nick);
+			users.put(key, info);
+		}
+		
+		info.lastSeen = System.currentTimeMillis();
+		return info;
+	}
+	
+	private synchronized void rename(String oldNick, String newNick) {
+		UserInfo info = users.remove(HighlightMatcher.fold(oldNick));
+		
+		if (info != null) {
+			info.nick = newNick;
+			users.put(HighlightMatcher.fold(newNick), info);
+		}
+	}
+	
+	/**
+	 * What the cache knows about a single user. Fields the server has not
+	 * told us about yet are null. The fields are updated by the connection
+	 * thread and may be read from any thread.
+	 *
+	 * @since 1
+	 */
+	public static class UserInfo {
+		
+		private volatile String nick;
+		private volatile String user;
+		private volatile String host;
+		private volatile String realname;
+		private volatile String account;
+		private volatile long lastSeen;
+		
+		UserInfo(String n) {
+			nick = n;
+		}
+		
+		public String getNick() {
+			return nick;
+		}
+		
+		public String getUser() {
+			return user;
+		}
+		
+		public String getHost() {
+			return host;
+		}
+		
+		public String getRealname() {
+			return realname;
+		}
+		
+		public String getAccount() {
+			return account;
+		}
+		
+		/**
+		 * returns the last time a message from or about this user was seen
+		 *
+		 * @since 1
+		 */
+		public long getLastSeen() {
+			return lastSeen;
+		}
+	}
+}
@@ -0,0 +1,589 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.androidnerds.libjutella.Channel;
+import org.androidnerds.libjutella.Message;
+import org.androidnerds.libjutella.PrivateChat;
+import org.androidnerds.libjutella.Server;
+import org.androidnerds.libjutella.ServerEvent;
+
+/**
+ * The Bouncer lets any number of ordinary IRC clients share a single
+ * connection to the server. Clients connect to a local port, and on attach
+ * they are sent the channels, topics and members the library already
+ * knows plus the channel and private messages they missed. After that every
+ * line the server sends is passed on to them exactly as it was received,
+ * so each line is still only parsed once, by the library. Missed messages
+ * are rebuilt from the history, which does not keep the received lines.
+ *
+ * Lines typed in a client are forwarded to the server, and messages a
+ * client sends are echoed to the other attached clients. A client that
+ * cannot keep up with the server is disconnected rather than buffered
+ * without bound.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class Bouncer implements Flow.Subscriber<ServerEvent> {
+	
+	private static final String NAME = "libjutella";
+	
+	private Server server;
+	private ConnectionManager manager;
+	private InetAddress bindAddress;
+	private int port;
+	private String password;
+	private int backlog = 50;
+	private int queueLimit = 10000;
+	private ServerSocket listener;
+	private List<Client> clients;
+	private Map<String, Long> lastSeen;
+	private Flow.Subscription subscription;
+	private volatile boolean closed;
+	
+	public Bouncer(Server s, ConnectionManager m, int port) {
+		server = s;
+		manager = m;
+		this.port = port;
+		bindAddress = InetAddress.getLoopbackAddress();
+		clients = new CopyOnWriteArrayList<Client>();
+		lastSeen = Collections.synchronizedMap(new HashMap<String, Long>());
+	}
+	
+	/**
+	 * sets the address to listen on, only the loopback address by default.
+	 *
+	 * @param addr the local address clients connect to
+	 * @since 1
+	 */
+	public void setBindAddress(InetAddress addr) {
+		bindAddress = addr;
+	}
+	
+	/**
+	 * sets the password clients have to give with PASS, by default any
+	 * client may attach.
+	 *
+	 * @param pass the password, or null for none
+	 * @since 1
+	 */
+	public void setPassword(String pass) {
+		password = pass;
+	}
+	
+	/**
+	 * sets the number of messages replayed per channel or private chat to a
+	 * client that has not been attached before, 50 by default. Returning
+	 * clients get everything since they detached.
+	 *
+	 * @param lines the number of messages to replay
+	 * @since 1
+	 */
+	public void setBacklog(int lines) {
+		backlog = lines;
+	}
+	
+	/**
+	 * sets how many lines may wait to be written to a client before it is
+	 * considered too slow and disconnected, 10000 by default.
+	 *
+	 * @param lines the limit of queued lines per client
+	 * @since 1
+	 */
+	public void setQueueLimit(int lines) {
+		queueLimit = lines;
+	}
+	
+	/**
+	 * returns the port clients connect to, useful when the bouncer was
+	 * created with port 0
+	 *
+	 * @since 1
+	 */
+	public int getPort() {
+		return listener != null ? listener.getLocalPort() : port;
+	}
+	
+	/**
+	 * returns the number of clients currently attached
+	 *
+	 * @since 1
+	 */
+	public int getClientCount() {
+		int count = 0;
+		
+		for (Client c : clients) {
+			if (c.attached) {
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * opens the local port and starts passing the server's lines on to the
+	 * clients that attach to it.
+	 *
+	 * @throws IOException if the port cannot be opened
+	 * @since 1
+	 */
+	public void start() throws IOException {
+		listener = new ServerSocket();
+		listener.bind(new InetSocketAddress(bindAddress, port));
+		server.getEventPublisher().subscribe(this);
+		
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "libjutella-bouncer-" + getPort());
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * closes the local port and disconnects every client, the connection to
+	 * the server stays open.
+	 *
+	 * @since 1
+	 */
+	public void close() {
+		closed = true;
+		
+		try {
+			listener.close();
+		} catch (IOException e) {
+			
+		}
+		
+		for (Client c : clients) {
+			c.close();
+		}
+		
+		if (subscription != null) {
+			subscription.cancel();
+		}
+	}
+	
+	private void acceptLoop() {
+		while (!closed) {
+			try {
+				Socket socket = listener.accept();
+				Client c = new Client(socket);
+				clients.add(c);
+				c.start();
+			} catch (IOException e) {
+				
+			}
+		}
+	}
+	
+	public void onSubscribe(Flow.Subscription s) {
+		subscription = s;
+		subscription.request(Long.MAX_VALUE);
+	}
+	
+	public void onNext(ServerEvent event) {
+		Message message = event.getMessage();
+		String raw = event.getRawLine();
+		
+		//the library answers the server's pings itself.
+		if (raw == null || message.getCommand() == Message.CMD_PING) {
+			return;
+		}
+		
+		for (Client c : clients) {
+			c.queue(message, raw);
+		}
+	}
+	
+	public void onError(Throwable t) {
+		
+	}
+	
+	public void onComplete() {
+		
+	}
+	
+	private Connection connection() {
+		return manager.getShard(server).getConnections().get(server);
+	}
+	
+	/**
+	 * sends the state of the server to a newly attached client as if it had
+	 * just connected and joined its channels, followed by the messages it
+	 * missed. The messages sent are added to the replayed set.
+	 */
+	private void replay(Client c, long since, Set<Message> replayed) {
+		String nick = server.getNickname();
+		List<Channel> channels;
+		List<PrivateChat> chats;
+		
+		synchronized (server.getChannels()) {
+			channels = new ArrayList<Channel>(server.getChannels().values());
+		}
+		
+		synchronized (server.getPrivateChats()) {
+			chats = new ArrayList<PrivateChat>(server.getPrivateChats().values());
+		}
+		
+		c.send(":" + NAME + " 001 " + nick + " :Welcome, attached to " + server.getName());
+		
+		//clients need the server's limits and prefixes before any channel.
+		List<String> support = server.getSupport();
+		
+		for (int i = 0; i < support.size(); i += 12) {
+			StringBuilder tokens = new StringBuilder(":" + NAME + " 005 " + nick);
+			
+			for (String token : support.subList(i, Math.min(i + 12, support.size()))) {
+				tokens.append(' ').append(token);
+			}
+			
+			c.send(tokens.append(" :are supported by this server").toString());
+		}
+		
+		c.send(":" + NAME + " 422 " + nick + " :MOTD File is missing");
+		
+		for (Channel channel : channels) {
+			String name = channel.getName();
+			c.send(":" + nick + " JOIN " + name);
+			
+			if (channel.getTopic() != null) {
+				c.send(":" + NAME + " 332 " + nick + " " + name + " :" + channel.getTopic());
+			}
+			
+			String head = ":" + NAME + " 353 " + nick + " = " + name + " :";
+			StringBuilder names = new StringBuilder();
+			
+			synchronized (channel.getUsers()) {
+				for (String user : channel.getUsers()) {
+					if (names.length() > 0 && head.length() + names.length() + user.length() > 400) {
+						c.send(head + names);
+						names.setLength(0);
+					}
+					
+					if (names.length() > 0) {
+						names.append(' ');
+					}
+					
+					names.append(user);
+				}
+			}
+			
+			if (names.length() > 0) {
+				c.send(head + names);
+			}
+			
+			c.send(":" + NAME + " 366 " + nick + " " + name + " :End of /NAMES list.");
+			replayHistory(c, channel.getMessages(), since, replayed);
+		}
+		
+		for (PrivateChat chat : chats) {
+			replayHistory(c, chat.getMessages(), since, replayed);
+		}
+	}
+	
+	private void replayHistory(Client c, List<Message> history, long since, Set<Message> replayed) {
+		synchronized (history) {
+			int start = history.size();
+			
+			while (start > 0 && history.size() - start < (since < 0 ? backlog : Integer.MAX_VALUE)
+					&& history.get(start - 1).rawTimestamp() > since) {
+				start--;
+			}
+			
+			for (int i = start; i < history.size(); i++) {
+				Message message = history.get(i);
+				String line = message.toLine();
+				
+				if (line != null) {
+					c.send(line);
+					replayed.add(message);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A single downstream client, read on its own thread and written by a
+	 * second one from its queue.
+	 */
+	private class Client {
+		
+		private Socket socket;
+		private LinkedBlockingQueue<String> outgoing;
+		private List<String> early;
+		private List<Message> earlyMessages;
+		private Set<Message> replayed;
+		private long attachedAt;
+		private volatile boolean attached;
+		private volatile boolean gone;
+		private String pass;
+		private String nick;
+		private String identity;
+		
+		Client(Socket s) {
+			socket = s;
+			outgoing = new LinkedBlockingQueue<String>();
+			early = new ArrayList<String>();
+			earlyMessages = new ArrayList<Message>();
+		}
+		
+		void start() {
+			String name = "libjutella-bouncer-client-" + socket.getPort();
+			
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					readLoop();
+				}
+			}, name);
+			reader.setDaemon(true);
+			reader.start();
+			
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					writeLoop();
+				}
+			}, name + "-writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+		
+		/**
+		 * queues a line from the server, or from another client when message
+		 * is null. Lines arriving while the client is being replayed to are
+		 * held back so they follow the replay, and messages the replay
+		 * already sent are not sent again.
+		 */
+		synchronized void queue(Message message, String line) {
+			if (gone) {
+				return;
+			}
+			
+			if (!attached) {
+				if (identity != null) {
+					early.add(line);
+					earlyMessages.add(message);
+				}
+				
+				return;
+			}
+			
+			//events trail the history, one newer than the replay means every
+			//replayed message has come by.
+			if (replayed != null && message != null) {
+				if (message.rawTimestamp() > attachedAt) {
+					replayed = null;
+				} else if (replayed.remove(message)) {
+					return;
+				}
+			}
+			
+			send(line);
+		}
+		
+		void send(String line) {
+			if (outgoing.size() >= queueLimit) {
+				close();
+				return;
+			}
+			
+			outgoing.add(line);
+		}
+		
+		private void attach() {
+			String key = identity;
+			Long since = lastSeen.get(key);
+			
+			Set<Message> sent = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+			replay(this, since != null ? since : -1, sent);
+			
+			synchronized (this) {
+				for (int i = 0; i < early.size(); i++) {
+					Message message = earlyMessages.get(i);
+					
+					if (message == null || !sent.remove(message)) {
+						send(early.get(i));
+					}
+				}
+				
+				early = null;
+				earlyMessages = null;
+				replayed = sent.isEmpty() ? null : sent;
+				attachedAt = System.currentTimeMillis();
+				attached = true;
+			}
+		}
+		
+		private void readLoop() {
+			try {
+				Connection conn;
+				LineReader reader = new LineReader(socket.getInputStream(), server.getEncoding(), server.getFallbackEncoding());
+				String line;
+				
+				while (!gone && (line = reader.readLine()) != null) {
+					String upper = line.length() > 8 ? line.substring(0, 8).toUpperCase() : line.toUpperCase();
+					
+					if (!attached) {
+						if (!register(line, upper)) {
+							break;
+						}
+					} else if (upper.startsWith("QUIT")) {
+						break;
+					} else if (upper.startsWith("PING")) {
+						send(":" + NAME + " PONG " + NAME + " :" + value(line));
+					} else if (upper.startsWith("PONG") || upper.startsWith("CAP") || upper.startsWith("USER")
+							|| upper.startsWith("PASS")) {
+						continue;
+					} else if ((conn = connection()) != null) {
+						conn.sendMessageAsync(line);
+						
+						if (upper.startsWith("PRIVMSG ") || upper.startsWith("NOTICE ")) {
+							echo(line);
+						}
+					}
+				}
+			} catch (IOException e) {
+				
+			}
+			
+			close();
+		}
+		
+		/**
+		 * handles a line sent before the client is attached.
+		 *
+		 * @return false if the client should be dropped
+		 */
+		private boolean register(String line, String upper) {
+			if (upper.startsWith("CAP LS")) {
+				send(":" + NAME + " CAP * LS :");
+			} else if (upper.startsWith("PASS ")) {
+				pass = value(line);
+			} else if (upper.startsWith("NICK ")) {
+				nick = value(line);
+			} else if (upper.startsWith("USER ")) {
+				String[] parts = line.split(" ");
+				
+				if (parts.length > 1) {
+					synchronized (this) {
+						identity = parts[1];
+					}
+				}
+			}
+			
+			if (nick == null || identity == null) {
+				return true;
+			}
+			
+			if (password != null && !password.equals(pass)) {
+				send(":" + NAME + " 464 " + nick + " :Password incorrect");
+				return false;
+			}
+			
+			attach();
+			return true;
+		}
+		
+		/**
+		 * shows a message sent from this client to the other clients.
+		 */
+		private void echo(String line) {
+			String prefixed = ":" + server.getNickname() + " " + line;
+			
+			for (Client c : clients) {
+				if (c != this) {
+					c.queue(null, prefixed);
+				}
+			}
+		}
+		
+		private void writeLoop() {
+			try {
+				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), server.getEncoding()));
+				
+				while (!gone) {
+					String line = outgoing.poll(500, TimeUnit.MILLISECONDS);
+					
+					if (line == null) {
+						continue;
+					}
+					
+					do {
+						writer.write(line);
+						writer.write("\r\n");
+					} while ((line = outgoing.poll()) != null);
+					
+					writer.flush();
+				}
+			} catch (IOException e) {
+				
+			} catch (InterruptedException e) {
+				
+			}
+			
+			close();
+		}
+		
+		void close() {
+			synchronized (this) {
+				if (gone) {
+					return;
+				}
+				
+				gone = true;
+			}
+			
+			clients.remove(this);
+			
+			if (attached && identity != null) {
+				lastSeen.put(identity, System.currentTimeMillis());
+			}
+			
+			try {
+				socket.close();
+			} catch (IOException e) {
+				
+			}
+		}
+		
+		private String value(String line) {
+			int space = line.indexOf(' ');
+			String v = line.substring(space + 1);
+			return v.startsWith(":") ? v.substring(1) : v;
+		}
+	}
+}
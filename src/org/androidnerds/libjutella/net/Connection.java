@@ -14,11 +14,22 @@
  */
 package org.androidnerds.libjutella.net;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.androidnerds.libjutella.Message;
 import org.androidnerds.libjutella.Parser;
@@ -34,15 +45,89 @@ import org.androidnerds.libjutella.Server;
 public class Connection implements Runnable {
 	
 	private Socket socket;
-	private BufferedReader reader;
+	private volatile LineReader reader;
 	private BufferedWriter writer;
 	private Server server;
 	private volatile boolean kill = false;
+	private volatile long linesReceived;
+	private AtomicLong linesSent = new AtomicLong();
+	private LinkedBlockingQueue<PendingLine> outgoing = new LinkedBlockingQueue<PendingLine>();
+	private volatile IOException failure;
+	private volatile SessionRecorder recorder;
+	private volatile Executor dispatcher;
+	private LinkedBlockingQueue<String> inbound = new LinkedBlockingQueue<String>(INBOUND_LINES);
+	private AtomicBoolean draining = new AtomicBoolean();
+	private AtomicBoolean ended = new AtomicBoolean();
+	private volatile boolean readerDone;
+	
+	//lines read ahead of the dispatcher before the reader stops reading.
+	private static final int INBOUND_LINES = 1024;
+	
+	//lines processed before the dispatch thread moves on to another connection.
+	private static final int DISPATCH_BATCH = 64;
+	
+	//how long a connection whose event subscribers are behind waits before
+	//its lines are dispatched again.
+	private static final long BACKLOG_RETRY = 10;
+	
+	private static final ScheduledExecutorService retry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "libjutella-backlog");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 	
 	public Connection(Server s) {
 		server = s;
 	}
 	
+	/**
+	 * returns the number of lines read from the server so far
+	 *
+	 * @since 1
+	 */
+	public long getLinesReceived() {
+		return linesReceived;
+	}
+	
+	/**
+	 * returns the number of lines written to the server so far
+	 *
+	 * @since 1
+	 */
+	public long getLinesSent() {
+		return linesSent.get();
+	}
+	
+	/**
+	 * records every line received from now on, see SessionReplay. Recording
+	 * stops by itself if the recorder fails to write.
+	 *
+	 * @param r the recorder, or null to stop recording
+	 * @since 1
+	 */
+	public void setRecorder(SessionRecorder r) {
+		recorder = r;
+		LineReader lr = reader;
+		
+		if (lr != null) {
+			lr.setRecorder(r);
+		}
+	}
+	
+	/**
+	 * processes received lines on the executor instead of the reading
+	 * thread, in order and one at a time. It must be set before the
+	 * connection is started.
+	 *
+	 * @param e the executor to process lines on, or null
+	 * @since 1
+	 */
+	void setDispatcher(Executor e) {
+		dispatcher = e;
+	}
+	
 	public void disconnect() {
 		sendMessage("QUIT :client quit.");
 		requestKill();
@@ -55,11 +140,113 @@ public class Connection implements Runnable {
 	 * @since 1
 	 */
 	protected void sendMessage(String msg) {
+		sendMessageAsync(msg);
+	}
+	
+	/**
+	 * Queues the raw message to be sent to the remote server without
+	 * waiting for it. Lines are written in the order they are queued by a
+	 * dedicated writer thread, which flushes once per batch of queued lines.
+	 *
+	 * @param msg the raw message to send to the server
+	 * @return a future completed once the line is flushed to the socket,
+	 * or failed with the IOException that prevented it
+	 * @since 1
+	 */
+	public CompletableFuture<Void> sendMessageAsync(String msg) {
+		PendingLine line = new PendingLine(msg);
+		IOException e = failure;
+		
+		if (e != null) {
+			line.future.completeExceptionally(e);
+		} else {
+			outgoing.add(line);
+			
+			//the writer may have failed while the line was being queued.
+			if (failure != null) {
+				failPending(failure);
+			}
+		}
+		
+		return line.future;
+	}
+	
+	/**
+	 * returns the number of lines queued and not yet written
+	 *
+	 * @since 1
+	 */
+	public int getPendingCount() {
+		return outgoing.size();
+	}
+	
+	private void writeLine(String msg) throws IOException {
+		writer.write(msg);
+		writer.write("\r\n");
+		linesSent.incrementAndGet();
+	}
+	
+	private void failPending(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		
+		PendingLine line;
+		
+		while ((line = outgoing.poll()) != null) {
+			line.future.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * drains the outgoing queue until the connection is killed and every
+	 * queued line has been written. However the loop ends, lines queued
+	 * afterwards fail at once and the socket is closed, which also ends the
+	 * reading thread.
+	 */
+	private void writeLoop() {
+		List<PendingLine> batch = new ArrayList<PendingLine>();
+		
 		try {
-			writer.write(msg + "\r\n");
-			writer.flush();
-		} catch (Exception e) {
+			while (!shouldKill() || !outgoing.isEmpty()) {
+				PendingLine first = outgoing.poll(500, TimeUnit.MILLISECONDS);
+				
+				if (first == null) {
+					continue;
+				}
+				
+				batch.add(first);
+				outgoing.drainTo(batch);
+				
+				for (PendingLine line : batch) {
+					writeLine(line.text);
+				}
+				
+				writer.flush();
+				
+				for (PendingLine line : batch) {
+					line.future.complete(null);
+				}
+				
+				batch.clear();
+			}
+		} catch (IOException e) {
+			for (PendingLine line : batch) {
+				line.future.completeExceptionally(e);
+			}
 			
+			failPending(e);
+		} catch (InterruptedException e) {
+			failPending(new IOException("writer interrupted"));
+		} finally {
+			failPending(new IOException("connection closed"));
+			requestKill();
+			
+			try {
+				socket.close();
+			} catch (IOException e) {
+				
+			}
 		}
 	}
 	
@@ -88,7 +275,7 @@ public class Connection implements Runnable {
 	}
 	
 	/**
-	 * The run method loops on the bufferedreader from the socket to listen for
+	 * The run method loops on the line reader from the socket to listen for
 	 * new messages incoming from the server. Once the message is received the
 	 * server object is sent the raw message. 
 	 *
@@ -103,16 +290,29 @@ public class Connection implements Runnable {
 		}
 		
 		try {
-			reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+			reader = new LineReader(socket.getInputStream(), server.getEncoding(), server.getFallbackEncoding());
+			reader.setRecorder(recorder);
+			writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), server.getEncoding()));
 			
-			sendMessage("PASS " + server.getPassword());
-			sendMessage("NICK " + server.getNickname());
-			sendMessage("USER " + server.getNickname() + " * * :Mike Novak");
+			//registration goes out ahead of anything queued before connecting.
+			writeLine("PASS " + server.getPassword());
+			writeLine("NICK " + server.getNickname());
+			writeLine("USER " + server.getNickname() + " * * :Mike Novak");
+			writer.flush();
 		} catch (Exception e) {
-			
+			failPending(e instanceof IOException ? (IOException) e : new IOException("unable to connect", e));
+			end();
+			return;
 		}
 		
+		Thread writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, Thread.currentThread().getName() + "-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		
 		try {
 			while (!shouldKill()) {
 				String message = reader.readLine();
@@ -121,12 +321,105 @@ public class Connection implements Runnable {
 					break;
 				}
 				
+				linesReceived++;
 				System.out.println("Raw Message: " + message);
-				Parser.parse(message, server);
+				
+				if (dispatcher != null) {
+					inbound.put(message);
+					drain();
+				} else {
+					process(message);
+				}
 			}
 		} catch (Exception e) {
 			
 		}
+		
+		requestKill();
+		readerDone = true;
+		
+		if (dispatcher != null) {
+			drain();
+		} else {
+			end();
+		}
+	}
+	
+	/**
+	 * makes sure a dispatch task is running for the lines waiting in the
+	 * inbound queue.
+	 */
+	private void drain() {
+		if (!draining.compareAndSet(false, true)) {
+			return;
+		}
+		
+		try {
+			dispatcher.execute(new Runnable() {
+				public void run() {
+					dispatch();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			dispatch();
+		}
+	}
+	
+	private void dispatch() {
+		String line;
+		int n = 0;
+		
+		while (n++ < DISPATCH_BATCH) {
+			//a subscriber that is behind holds back this connection only, the
+			//dispatch thread moves on and the lines are tried again shortly.
+			//The inbound queue fills up meanwhile and the reader stops reading.
+			if (server.isEventBacklogFull()) {
+				draining.set(false);
+				retry.schedule(new Runnable() {
+					public void run() {
+						drain();
+					}
+				}, BACKLOG_RETRY, TimeUnit.MILLISECONDS);
+				return;
+			}
+			
+			if ((line = inbound.poll()) == null) {
+				break;
+			}
+			
+			process(line);
+		}
+		
+		draining.set(false);
+		
+		if (!inbound.isEmpty()) {
+			drain();
+		} else if (readerDone) {
+			end();
+		}
+	}
+	
+	/**
+	 * parses and processes a received line. A line that fails is skipped,
+	 * whichever thread processes it, so one bad line never ends the
+	 * connection.
+	 */
+	private void process(String line) {
+		try {
+			Parser.parse(line, server);
+		} catch (RuntimeException e) {
+			
+		}
+	}
+	
+	/**
+	 * tells the server the connection is gone, once every received line has
+	 * been processed.
+	 */
+	private void end() {
+		if (ended.compareAndSet(false, true)) {
+			server.disconnected();
+		}
 	}
 	
 	/**
@@ -148,4 +441,15 @@ public class Connection implements Runnable {
 		 */
 		public void onSendMessage(Server serv, Message msg);
 	}
+	
+	private static class PendingLine {
+		
+		String text;
+		CompletableFuture<Void> future;
+		
+		PendingLine(String t) {
+			text = t;
+			future = new CompletableFuture<Void>();
+		}
+	}
 }
\ No newline at end of file
@@ -14,13 +14,23 @@
  */
 package org.androidnerds.libjutella.net;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
 
 import org.androidnerds.libjutella.Message;
+import org.androidnerds.libjutella.MessageDeduplicator;
 import org.androidnerds.libjutella.Parser;
 import org.androidnerds.libjutella.Server;
+import org.androidnerds.libjutella.ServerEvent;
 import org.androidnerds.libjutella.net.Connection.ConnectionListener;
 
 /**
@@ -28,15 +38,75 @@ import org.androidnerds.libjutella.net.Connection.ConnectionListener;
  * It is also responsible for creating and destroying each thread and its 
  * objects.
  *
+ * Connections are spread over a fixed number of shards. A server is always
+ * assigned to the same shard, based on its name, address and port, and each
+ * shard keeps its own connection map so lookups never share a lock.
+ *
  * @author mike novak, matheiu agopian
  * @since 1
  */
 public class ConnectionManager implements ConnectionListener {
 	
-	private Map<Server, Connection> connections;
+	private ConnectionShard[] shards;
+	private SubmissionPublisher<ServerEvent> events;
+	private ExecutorService delivery;
+	private Map<Server, EventForwarder> forwarders;
+	private Map<Server, Throwable> failures;
+	private MessageDeduplicator dedup;
 	
 	public ConnectionManager() {
-		connections = Collections.synchronizedMap(new HashMap<Server, Connection>());
+		this(1);
+	}
+	
+	/**
+	 * creates a manager spreading its connections over the given number
+	 * of shards.
+	 *
+	 * @param count the number of shards
+	 * @since 1
+	 */
+	public ConnectionManager(int count) {
+		this(count, 1);
+	}
+	
+	/**
+	 * creates a manager spreading its connections over the given number
+	 * of shards, each processing the lines of its connections on its own
+	 * pool of dispatch threads.
+	 *
+	 * @param count the number of shards
+	 * @param dispatchThreads the number of dispatch threads per shard
+	 * @since 1
+	 */
+	public ConnectionManager(int count, int dispatchThreads) {
+		if (count < 1) {
+			throw new IllegalArgumentException("at least one shard is required");
+		}
+		
+		if (dispatchThreads < 1) {
+			throw new IllegalArgumentException("at least one dispatch thread is required");
+		}
+		
+		shards = new ConnectionShard[count];
+		
+		for (int i = 0; i < count; i++) {
+			shards[i] = new ConnectionShard(i, dispatchThreads);
+		}
+		
+		//subscribers of the merged stream get their own threads, the common
+		//fork join pool is not meant for callbacks that may block.
+		delivery = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "libjutella-merged-events");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		events = new SubmissionPublisher<ServerEvent>(delivery, Flow.defaultBufferSize());
+		forwarders = Collections.synchronizedMap(new HashMap<Server, EventForwarder>());
+		failures = Collections.synchronizedMap(new HashMap<Server, Throwable>());
+		dedup = new MessageDeduplicator();
 	}
 	
 	/**
@@ -47,33 +117,211 @@ public class ConnectionManager implements ConnectionListener {
 	 * @since 1
 	 */
 	public void createNewConnection(Server s) {
+		createNewConnection(s, null);
+	}
+	
+	/**
+	 * Sets up the new connection with a server, recording every line it
+	 * receives from the very first one.
+	 *
+	 * @param s the server to create a connection for
+	 * @param recorder the recorder to write the session to, or null
+	 * @since 1
+	 */
+	public void createNewConnection(Server s, SessionRecorder recorder) {
 		Connection c = new Connection(s);
-		Thread t = new Thread(c);
+		c.setRecorder(recorder);
+		s.setDeduplicator(dedup);
+		
+		//a server connected again keeps the forwarder it already has.
+		EventForwarder forwarder = new EventForwarder(s);
 		
-		t.start();
-		connections.put(s, c);
+		if (forwarders.putIfAbsent(s, forwarder) == null) {
+			failures.remove(s);
+			s.getEventPublisher().subscribe(forwarder);
+		}
+		
+		getShard(s).start(s, c);
 	}
 	
+	/**
+	 * returns a copy of every connection across all the shards.
+	 *
+	 * @return the connections keyed by server
+	 * @since 1
+	 */
 	public Map<Server, Connection> getConnections() {
-		return connections;
+		Map<Server, Connection> all = new HashMap<Server, Connection>();
+		
+		for (ConnectionShard shard : shards) {
+			all.putAll(shard.getConnections());
+		}
+		
+		return Collections.unmodifiableMap(all);
+	}
+	
+	/**
+	 * returns the shard the server is assigned to. The assignment only
+	 * depends on the server's name, url and port so it is stable across
+	 * restarts.
+	 *
+	 * @param s the server to look up
+	 * @return the shard handling the server
+	 * @since 1
+	 */
+	public ConnectionShard getShard(Server s) {
+		int hash = (s.getName() + "/" + s.getUrl() + ":" + s.getPort()).hashCode();
+		return shards[Math.floorMod(hash, shards.length)];
+	}
+	
+	/**
+	 * returns all the shards, their statistics are available per shard.
+	 *
+	 * @return the shards of this manager
+	 * @since 1
+	 */
+	public List<ConnectionShard> getShards() {
+		List<ConnectionShard> list = new ArrayList<ConnectionShard>(shards.length);
+		Collections.addAll(list, shards);
+		return list;
+	}
+	
+	/**
+	 * returns a single publisher merging the events of every server managed
+	 * here. Each server only hands over its next event once the merged stream
+	 * has buffer space, so a slow subscriber throttles all the connections
+	 * rather than growing memory.
+	 *
+	 * @return the merged event publisher
+	 * @since 1
+	 */
+	public Flow.Publisher<ServerEvent> getEventPublisher() {
+		return events;
+	}
+	
+	/**
+	 * returns the error that ended the event stream of a server, its events
+	 * no longer reach the merged stream. Null while the stream is healthy or
+	 * after it was closed normally.
+	 *
+	 * @param s the server to look up
+	 * @return the failure, or null
+	 * @since 1
+	 */
+	public Throwable getEventFailure(Server s) {
+		return failures.get(s);
+	}
+	
+	/**
+	 * returns the deduplicator shared by every server connected here. When
+	 * several servers sit in the same channel of a network each message is
+	 * stored and passed to the listeners once, by the server that received
+	 * it first.
+	 *
+	 * @return the shared deduplicator
+	 * @since 1
+	 */
+	public MessageDeduplicator getDeduplicator() {
+		return dedup;
 	}
 	
 	/**
 	 * When closeConnection is called the library handles closing the link with
-	 * the server and terminating the thread.
+	 * the server and terminating the thread. The server's event stream stays
+	 * open, its subscribers and the merged stream receive its events again
+	 * once it is connected again.
 	 *
 	 * @param s the serve to disconnect from
 	 * @since 1
 	 */
 	public void closeConnection(Server s) {
-		Connection c = connections.get(s);
-		c.disconnect();
+		Connection c = getShard(s).remove(s);
+		
+		if (c != null) {
+			c.disconnect();
+		}
+		
+		dedup.remove(s);
+	}
+	
+	/**
+	 * closes the connection to a server that is no longer used and completes
+	 * its event stream, its events stop reaching the merged stream.
+	 *
+	 * @param s the server to forget
+	 * @since 1
+	 */
+	public void removeServer(Server s) {
+		closeConnection(s);
+		s.closeEventPublisher();
+	}
+	
+	/**
+	 * Sends the message to the server without blocking the caller.
+	 *
+	 * @param serv the server to send the message to
+	 * @param msg the message object to send
+	 * @return a future completed once the line is flushed to the socket, or
+	 * failed with the cause if it could not be written
+	 * @since 1
+	 */
+	public CompletableFuture<Void> sendMessage(Server serv, Message msg) {
+		Connection conn = getShard(serv).getConnections().get(serv);
+		
+		if (conn == null) {
+			CompletableFuture<Void> future = new CompletableFuture<Void>();
+			future.completeExceptionally(new IllegalStateException("no connection for " + serv.getName()));
+			return future;
+		}
+		
+		return conn.sendMessageAsync(Parser.buildRawMessage(msg));
 	}
 	
 	//ConnectionListener method.
 	public void onSendMessage(Server serv, Message msg) {
-		String raw = Parser.buildRawMessage(msg);
-		Connection conn = connections.get(serv);
-		conn.sendMessage(raw);
+		sendMessage(serv, msg);
+	}
+	
+	/**
+	 * Subscribes to a single server's events and republishes them on the
+	 * merged stream, requesting one event at a time so demand is only
+	 * signalled upstream once the merged stream accepted the last one.
+	 *
+	 * @since 1
+	 */
+	private class EventForwarder implements Flow.Subscriber<ServerEvent> {
+		
+		private Server server;
+		private Flow.Subscription subscription;
+		
+		EventForwarder(Server s) {
+			server = s;
+		}
+		
+		public void onSubscribe(Flow.Subscription s) {
+			subscription = s;
+			subscription.request(1);
+		}
+		
+		public void onNext(ServerEvent event) {
+			if (!events.isClosed()) {
+				events.submit(event);
+			}
+			
+			subscription.request(1);
+		}
+		
+		/**
+		 * the server's stream failed, the failure is kept for
+		 * getEventFailure.
+		 */
+		public void onError(Throwable t) {
+			failures.put(server, t);
+			forwarders.remove(server, this);
+		}
+		
+		public void onComplete() {
+			forwarders.remove(server, this);
+		}
 	}
 }
\ No newline at end of file
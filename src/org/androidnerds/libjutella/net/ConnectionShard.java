@@ -0,0 +1,169 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.androidnerds.libjutella.Server;
+
+/**
+ * A ConnectionShard is one of the independent groups the ConnectionManager
+ * spreads its connections over. Each shard has its own connection map, its
+ * own named thread group and its own pool of dispatch threads, so shards
+ * never contend on a shared lock and the threads of a busy shard are easy
+ * to tell apart.
+ *
+ * Every connection still reads its socket on a thread of its own, but the
+ * lines it reads are parsed and processed by the shard's dispatch threads,
+ * one connection at a time and in order. The work of thousands of servers
+ * is therefore done by as many threads as the shards have dispatchers.
+ *
+ * A connection whose event subscribers fall behind gives up its dispatch
+ * thread until they catch up, so a slow subscriber only holds back its own
+ * server. Listener callbacks run on the dispatch threads as well, listeners
+ * that may block should be moved to threads of their own with
+ * Server.setDispatchThreads.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ConnectionShard {
+	
+	private int id;
+	private Map<Server, Connection> connections;
+	private ThreadGroup threads;
+	private AtomicInteger threadCount;
+	private ExecutorService dispatch;
+	private int dispatchThreads;
+	private AtomicLong retiredReceived;
+	private AtomicLong retiredSent;
+	
+	ConnectionShard(int id, int dispatchCount) {
+		this.id = id;
+		connections = new ConcurrentHashMap<Server, Connection>();
+		threads = new ThreadGroup("libjutella-shard-" + id);
+		threadCount = new AtomicInteger();
+		retiredReceived = new AtomicLong();
+		retiredSent = new AtomicLong();
+		dispatchThreads = dispatchCount;
+		
+		final AtomicInteger n = new AtomicInteger();
+		dispatch = Executors.newFixedThreadPool(dispatchCount, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(threads, r, threads.getName() + "-dispatch-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * returns the index of this shard in the manager
+	 *
+	 * @since 1
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * returns the number of connections assigned to this shard
+	 *
+	 * @since 1
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+	
+	/**
+	 * returns the number of threads processing the lines of this shard's
+	 * connections
+	 *
+	 * @since 1
+	 */
+	public int getDispatchThreads() {
+		return dispatchThreads;
+	}
+	
+	/**
+	 * returns the number of lines received by all connections of this shard,
+	 * including connections that have since been closed
+	 *
+	 * @since 1
+	 */
+	public long getLinesReceived() {
+		long total = retiredReceived.get();
+		
+		for (Connection c : connections.values()) {
+			total += c.getLinesReceived();
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * returns the number of lines sent by all connections of this shard,
+	 * including connections that have since been closed
+	 *
+	 * @since 1
+	 */
+	public long getLinesSent() {
+		long total = retiredSent.get();
+		
+		for (Connection c : connections.values()) {
+			total += c.getLinesSent();
+		}
+		
+		return total;
+	}
+	
+	public List<Server> getServers() {
+		return new ArrayList<Server>(connections.keySet());
+	}
+	
+	Map<Server, Connection> getConnections() {
+		return connections;
+	}
+	
+	void start(Server s, Connection c) {
+		Thread t = new Thread(threads, c, threads.getName() + "-" + threadCount.incrementAndGet());
+		c.setDispatcher(dispatch);
+		connections.put(s, c);
+		t.start();
+	}
+	
+	/**
+	 * removes the connection of a server, its line counts stay in the
+	 * shard's totals.
+	 */
+	Connection remove(Server s) {
+		Connection c = connections.remove(s);
+		
+		if (c != null) {
+			retiredReceived.addAndGet(c.getLinesReceived());
+			retiredSent.addAndGet(c.getLinesSent());
+		}
+		
+		return c;
+	}
+}
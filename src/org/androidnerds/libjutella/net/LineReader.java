@@ -0,0 +1,257 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The LineReader splits the raw socket stream into lines and decodes each
+ * line on its own. IRC has no charset negotiation, so every line is first
+ * decoded strictly with the server's encoding and, if that fails, with the
+ * fallback encoding. Plain ASCII lines, by far the most common, skip the
+ * decoders altogether.
+ *
+ * Lines are decoded straight out of the read buffer, no intermediate byte
+ * arrays are created. A line longer than MAX_LINE bytes is thrown away up
+ * to its line ending, so a server that never sends one cannot make the
+ * buffer grow without bound.
+ *
+ * @author mike novak
+ * @since 1
+ */
+class LineReader {
+	
+	//the longest line kept, IRC allows 512 bytes plus 8191 for tags.
+	static final int MAX_LINE = 8192;
+	
+	private InputStream in;
+	private byte[] buffer;
+	private int start;
+	private int end;
+	private CharsetDecoder decoder;
+	private CharsetDecoder fallback;
+	private boolean discarding;
+	private long discarded;
+	private volatile SessionRecorder recorder;
+	
+	/**
+	 * creates a reader for the stream, both charsets must encode ASCII as
+	 * single bytes of the same value since lines are split on the byte of
+	 * the line ending and ASCII lines are not decoded at all.
+	 *
+	 * @throws IllegalArgumentException if a charset is not ASCII compatible
+	 */
+	LineReader(InputStream stream, Charset charset, Charset fallbackCharset) {
+		if (!isAsciiCompatible(charset) || !isAsciiCompatible(fallbackCharset)) {
+			throw new IllegalArgumentException("not an ASCII compatible charset: "
+					+ (isAsciiCompatible(charset) ? fallbackCharset : charset));
+		}
+		
+		in = stream;
+		buffer = new byte[MAX_LINE];
+		decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPORT)
+			.onUnmappableCharacter(CodingErrorAction.REPORT);
+		fallback = fallbackCharset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+	
+	/**
+	 * returns true if the charset decodes every byte below 0x80 to the
+	 * character of the same value.
+	 */
+	static boolean isAsciiCompatible(Charset charset) {
+		byte[] ascii = new byte[128];
+		
+		for (int i = 0; i < ascii.length; i++) {
+			ascii[i] = (byte) i;
+		}
+		
+		String decoded = new String(ascii, charset);
+		
+		if (decoded.length() != ascii.length) {
+			return false;
+		}
+		
+		for (int i = 0; i < ascii.length; i++) {
+			if (decoded.charAt(i) != i) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * returns the number of lines thrown away for being longer than
+	 * MAX_LINE bytes
+	 *
+	 * @since 1
+	 */
+	long getDiscardedCount() {
+		return discarded;
+	}
+	
+	/**
+	 * records the bytes of every line read from now on, as they came from
+	 * the stream. Recording stops by itself if the recorder fails to write.
+	 *
+	 * @param r the recorder, or null to stop recording
+	 */
+	void setRecorder(SessionRecorder r) {
+		recorder = r;
+	}
+	
+	/**
+	 * reads the next line without its line terminator.
+	 *
+	 * @return the decoded line, or null at the end of the stream
+	 * @since 1
+	 */
+	public String readLine() throws IOException {
+		int scanned = 0;
+		
+		while (true) {
+			for (int i = start + scanned; i < end; i++) {
+				if (buffer[i] == '\n') {
+					//the rest of a line that was too long, start over after it.
+					if (discarding) {
+						discarding = false;
+						start = i + 1;
+						scanned = 0;
+						i = start - 1;
+						continue;
+					}
+					
+					int lineEnd = i;
+					record(start, i + 1 - start);
+					
+					if (lineEnd > start && buffer[lineEnd - 1] == '\r') {
+						lineEnd--;
+					}
+					
+					String line = decode(buffer, start, lineEnd - start);
+					start = i + 1;
+					return line;
+				}
+			}
+			
+			scanned = end - start;
+			
+			if (start == 0 && end == buffer.length) {
+				if (!discarding) {
+					discarding = true;
+					discarded++;
+				}
+				
+				start = end = scanned = 0;
+			}
+			
+			if (!fill()) {
+				if (start == end || discarding) {
+					return null;
+				}
+				
+				record(start, end - start);
+				String line = decode(buffer, start, end - start);
+				start = end;
+				return line;
+			}
+		}
+	}
+	
+	/**
+	 * decodes a single recorded line the way readLine would, the line
+	 * ending is removed first.
+	 */
+	String decodeLine(byte[] bytes, int offset, int length) throws CharacterCodingException {
+		if (length > 0 && bytes[offset + length - 1] == '\n') {
+			length--;
+			
+			if (length > 0 && bytes[offset + length - 1] == '\r') {
+				length--;
+			}
+		}
+		
+		return decode(bytes, offset, length);
+	}
+	
+	private void record(int offset, int length) {
+		SessionRecorder r = recorder;
+		
+		if (r != null) {
+			try {
+				r.record(buffer, offset, length, System.currentTimeMillis());
+			} catch (IOException e) {
+				recorder = null;
+			}
+		}
+	}
+	
+	/**
+	 * moves any partial line to the front of the buffer and reads more data
+	 * after it.
+	 */
+	private boolean fill() throws IOException {
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		
+		int n = in.read(buffer, end, buffer.length - end);
+		
+		if (n <= 0) {
+			return false;
+		}
+		
+		end += n;
+		return true;
+	}
+	
+	private String decode(byte[] bytes, int offset, int length) throws CharacterCodingException {
+		boolean ascii = true;
+		
+		for (int i = offset; i < offset + length; i++) {
+			if (bytes[i] < 0) {
+				ascii = false;
+				break;
+			}
+		}
+		
+		if (ascii) {
+			return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+		}
+		
+		ByteBuffer data = ByteBuffer.wrap(bytes, offset, length);
+		
+		try {
+			CharBuffer chars = decoder.reset().decode(data);
+			return chars.toString();
+		} catch (CharacterCodingException e) {
+			data.clear().position(offset).limit(offset + length);
+			return fallback.reset().decode(data).toString();
+		}
+	}
+}
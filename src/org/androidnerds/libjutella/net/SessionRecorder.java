@@ -0,0 +1,140 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The SessionRecorder writes every line a connection receives, with the
+ * time it arrived, to a compact binary file. The file can be played back
+ * later through the library with SessionReplay, without any network, to
+ * reproduce a session or measure how fast it is processed.
+ *
+ * Lines are stored as the bytes read from the socket, line ending
+ * included and before any decoding, so a replay goes through the same
+ * charset and fallback decoding as the original session. Each line is
+ * stored as the milliseconds since the previous line, its length and its
+ * bytes, with the gap and the length written as variable length integers,
+ * so a recording is barely larger than the traffic.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class SessionRecorder implements Closeable {
+	
+	static final int MAGIC = 0x4a555352;
+	static final int VERSION = 2;
+	
+	private DataOutputStream out;
+	private long last;
+	private long lines;
+	
+	public SessionRecorder(File file) throws IOException {
+		this(new FileOutputStream(file));
+	}
+	
+	/**
+	 * starts a recording on the stream, it is closed with the recorder.
+	 *
+	 * @param stream the stream to write to
+	 * @throws IOException if the header cannot be written
+	 * @since 1
+	 */
+	public SessionRecorder(OutputStream stream) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(stream));
+		last = System.currentTimeMillis();
+		
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(last);
+	}
+	
+	/**
+	 * returns the number of lines recorded so far
+	 *
+	 * @since 1
+	 */
+	public synchronized long getLineCount() {
+		return lines;
+	}
+	
+	/**
+	 * records a line received now, encoded as UTF-8.
+	 *
+	 * @param line the line without its line ending
+	 * @throws IOException if the line cannot be written
+	 * @since 1
+	 */
+	public void record(String line) throws IOException {
+		record(line, System.currentTimeMillis());
+	}
+	
+	/**
+	 * records a line received at the given time, encoded as UTF-8.
+	 *
+	 * @param line the line without its line ending
+	 * @param time the time the line arrived
+	 * @throws IOException if the line cannot be written
+	 * @since 1
+	 */
+	public void record(String line, long time) throws IOException {
+		byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+		record(bytes, 0, bytes.length, time);
+	}
+	
+	/**
+	 * records the bytes of a line received at the given time, times before
+	 * the previous line are recorded as arriving together with it.
+	 *
+	 * @param bytes the buffer holding the line
+	 * @param offset the start of the line in the buffer
+	 * @param length the length of the line, including its line ending
+	 * @param time the time the line arrived
+	 * @throws IOException if the line cannot be written
+	 * @since 1
+	 */
+	public synchronized void record(byte[] bytes, int offset, int length, long time) throws IOException {
+		writeVarLong(Math.max(0, time - last));
+		writeVarLong(length);
+		out.write(bytes, offset, length);
+		
+		last = Math.max(last, time);
+		lines++;
+	}
+	
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+	
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+	
+	private void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		
+		out.write((int) value);
+	}
+}
@@ -0,0 +1,287 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.androidnerds.libjutella.Message;
+import org.androidnerds.libjutella.Parser;
+import org.androidnerds.libjutella.Server;
+import org.androidnerds.libjutella.net.Connection.ConnectionListener;
+
+/**
+ * The SessionReplay plays a recording made by SessionRecorder back into a
+ * Server, line by line through Parser.parse exactly as a Connection would.
+ * The recorded bytes are decoded with the server's encoding and fallback
+ * encoding like a live connection decodes them. Lines can be played at the
+ * pace they were recorded or as fast as the server processes them, and the
+ * time spent on each line is measured.
+ *
+ * No connection is involved, anything the server sends in response goes to
+ * the server's ConnectionListener. DISCARD can be used as that listener
+ * when the replies do not matter.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class SessionReplay {
+	
+	/**
+	 * a ConnectionListener that drops every message, for servers that only
+	 * exist to be replayed into.
+	 */
+	public static final ConnectionListener DISCARD = new ConnectionListener() {
+		public void onSendMessage(Server serv, Message msg) {
+			
+		}
+	};
+	
+	private File file;
+	
+	public SessionReplay(File f) {
+		file = f;
+	}
+	
+	/**
+	 * plays the recording into the server.
+	 *
+	 * @param server the server to feed the lines to
+	 * @param realTime true to keep the recorded gaps between lines, false to
+	 * play them back to back
+	 * @return the throughput and latency of the replay
+	 * @throws IOException if the recording cannot be read
+	 * @since 1
+	 */
+	public Result replay(Server server, boolean realTime) throws IOException {
+		InputStream in = new FileInputStream(file);
+		
+		try {
+			return replay(in, server, realTime);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * plays a recording read from the stream into the server, the stream is
+	 * not closed.
+	 *
+	 * @param stream the recording
+	 * @param server the server to feed the lines to
+	 * @param realTime true to keep the recorded gaps between lines
+	 * @return the throughput and latency of the replay
+	 * @throws IOException if the recording cannot be read
+	 * @since 1
+	 */
+	public static Result replay(InputStream stream, Server server, boolean realTime) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		
+		if (in.readInt() != SessionRecorder.MAGIC) {
+			throw new IOException("not a session recording");
+		}
+		
+		int version = in.readInt();
+		
+		//the first version stored decoded lines as UTF-8.
+		if (version != 1 && version != SessionRecorder.VERSION) {
+			throw new IOException("unsupported recording version " + version);
+		}
+		
+		in.readLong();
+		
+		LineReader decoder = new LineReader(null, server.getEncoding(), server.getFallbackEncoding());
+		boolean callbacks = server.getDispatchThreads() > 0;
+		
+		Result result = new Result();
+		byte[] buffer = new byte[1024];
+		long offset = 0;
+		long start = System.nanoTime();
+		
+		while (true) {
+			long delta;
+			int length;
+			String line;
+			
+			//a recording cut short by a crash simply ends at its last whole line.
+			try {
+				delta = readVarLong(in);
+				length = (int) readVarLong(in);
+				
+				if (length > buffer.length) {
+					buffer = new byte[Math.max(length, buffer.length * 2)];
+				}
+				
+				in.readFully(buffer, 0, length);
+				line = version == 1 ? new String(buffer, 0, length, StandardCharsets.UTF_8)
+						: decoder.decodeLine(buffer, 0, length);
+			} catch (EOFException e) {
+				break;
+			}
+			
+			offset += delta;
+			
+			if (realTime) {
+				long wait = offset - (System.nanoTime() - start) / 1000000;
+				
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			
+			long before = System.nanoTime();
+			Parser.parse(line, server);
+			
+			//with dispatch threads the line is done once its callbacks are.
+			if (callbacks) {
+				try {
+					server.awaitCallbacks();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			
+			result.add(System.nanoTime() - before, length);
+		}
+		
+		result.elapsed = System.nanoTime() - start;
+		return result;
+	}
+	
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		
+		do {
+			b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0 && shift < 64);
+		
+		return value;
+	}
+	
+	/**
+	 * The outcome of a replay. Latency is the time the library spent on a
+	 * single line, from parsing it to the last listener returning. With
+	 * dispatch threads the replay waits for the callbacks of each line
+	 * before playing the next, so lines are not processed side by side.
+	 *
+	 * @since 1
+	 */
+	public static class Result {
+		
+		private long[] latencies = new long[1024];
+		private int lines;
+		private long bytes;
+		private long elapsed;
+		private boolean sorted;
+		
+		private void add(long nanos, int length) {
+			if (lines == latencies.length) {
+				latencies = Arrays.copyOf(latencies, lines * 2);
+			}
+			
+			latencies[lines++] = nanos;
+			bytes += length;
+		}
+		
+		public int getLines() {
+			return lines;
+		}
+		
+		public long getBytes() {
+			return bytes;
+		}
+		
+		/**
+		 * returns the wall clock time of the replay in nanoseconds
+		 *
+		 * @since 1
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+		
+		/**
+		 * returns the number of lines processed per second of wall clock
+		 * time, including any waiting done in real time replays
+		 *
+		 * @since 1
+		 */
+		public double getLinesPerSecond() {
+			return elapsed == 0 ? 0 : lines * 1e9 / elapsed;
+		}
+		
+		/**
+		 * returns the average time spent on a line in nanoseconds
+		 *
+		 * @since 1
+		 */
+		public long getMeanLatency() {
+			long total = 0;
+			
+			for (int i = 0; i < lines; i++) {
+				total += latencies[i];
+			}
+			
+			return lines == 0 ? 0 : total / lines;
+		}
+		
+		/**
+		 * returns the time in nanoseconds within which the given fraction of
+		 * the lines were processed, for example 0.99 for the 99th percentile
+		 *
+		 * @param fraction a value between 0 and 1
+		 * @since 1
+		 */
+		public synchronized long getLatencyPercentile(double fraction) {
+			if (lines == 0) {
+				return 0;
+			}
+			
+			if (!sorted) {
+				Arrays.sort(latencies, 0, lines);
+				sorted = true;
+			}
+			
+			int i = (int) Math.ceil(fraction * lines) - 1;
+			return latencies[Math.max(0, Math.min(lines - 1, i))];
+		}
+		
+		public long getMaxLatency() {
+			return getLatencyPercentile(1);
+		}
+		
+		public String toString() {
+			return lines + " lines in " + elapsed / 1000000 + "ms, " + Math.round(getLinesPerSecond()) + " lines/s, latency mean "
+					+ getMeanLatency() / 1000 + "us p99 " + getLatencyPercentile(0.99) / 1000 + "us max " + getMaxLatency() / 1000 + "us";
+		}
+	}
+}
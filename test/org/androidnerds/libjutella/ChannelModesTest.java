@@ -0,0 +1,125 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ChannelModesTest extends TestCase {
+	
+	private Server server = new Server("test", "me", null, 6667, null);
+	
+	private Channel join() {
+		Parser.parse(":irc 005 me CHANMODES=beI,kfL,lj,psmntirRcOAQKVCuzNSMTGZ PREFIX=(qaohv)~&@%+ :are supported by this server", server);
+		Parser.parse(":me!u@h JOIN :#chan", server);
+		Parser.parse(":irc 353 me = #chan :@me bob carol", server);
+		Parser.parse(":irc 366 me #chan :End of /NAMES list.", server);
+		return server.getChannels().get("#chan");
+	}
+	
+	public void testDefaultSpec() {
+		ChannelModes.ModeSpec spec = new ChannelModes.ModeSpec();
+		
+		assertEquals("ban", ChannelModes.ModeSpec.LIST, spec.type('b'));
+		assertEquals("key", ChannelModes.ModeSpec.ALWAYS_PARAM, spec.type('k'));
+		assertEquals("limit", ChannelModes.ModeSpec.PARAM_WHEN_SET, spec.type('l'));
+		assertEquals("op", ChannelModes.ModeSpec.PREFIX, spec.type('o'));
+		assertEquals("flag", ChannelModes.ModeSpec.FLAG, spec.type('n'));
+		assertEquals("prefixes", "@+", spec.getPrefixes());
+	}
+	
+	public void testSupportTokens() {
+		ChannelModes.ModeSpec spec = new ChannelModes.ModeSpec();
+		spec.parseToken("CHANMODES=beIq,kf,lj,imnpst");
+		spec.parseToken("PREFIX=(ohv)@%+");
+		
+		assertEquals("list", ChannelModes.ModeSpec.LIST, spec.type('q'));
+		assertEquals("always", ChannelModes.ModeSpec.ALWAYS_PARAM, spec.type('f'));
+		assertEquals("when set", ChannelModes.ModeSpec.PARAM_WHEN_SET, spec.type('j'));
+		assertEquals("halfop", ChannelModes.ModeSpec.PREFIX, spec.type('h'));
+		assertEquals("prefix char", '%', spec.prefixFor('h'));
+		assertEquals("prefixes", "@%+", spec.getPrefixes());
+		
+		//tokens that do not parse leave the spec as it was.
+		spec.parseToken("PREFIX=(ov)@");
+		spec.parseToken("CHANMODES=b");
+		assertEquals("prefixes kept", "@%+", spec.getPrefixes());
+		assertEquals("list kept", ChannelModes.ModeSpec.LIST, spec.type('q'));
+	}
+	
+	public void testFlagAndParameterModes() {
+		Channel chan = join();
+		
+		Parser.parse(":bob!u@h MODE #chan +ntk-s secret", server);
+		assertTrue("n", chan.getModes().isSet('n'));
+		assertTrue("t", chan.getModes().isSet('t'));
+		assertEquals("key", "secret", chan.getModes().getParam('k'));
+		
+		//l only takes a parameter when set, j takes one when unset too.
+		Parser.parse(":bob!u@h MODE #chan +lj 10 3:5", server);
+		assertEquals("limit", "10", chan.getModes().getParam('l'));
+		assertEquals("join throttle", "3:5", chan.getModes().getParam('j'));
+		
+		Parser.parse(":bob!u@h MODE #chan -lt+i", server);
+		assertFalse("limit removed", chan.getModes().isSet('l'));
+		assertFalse("t removed", chan.getModes().isSet('t'));
+		assertTrue("i", chan.getModes().isSet('i'));
+		
+		Parser.parse(":bob!u@h MODE #chan -k :secret", server);
+		assertEquals("key removed", null, chan.getModes().getParam('k'));
+		
+		Parser.parse(":irc 324 me #chan +mk other", server);
+		assertFalse("reset", chan.getModes().isSet('n'));
+		assertEquals("reset key", "other", chan.getModes().getParam('k'));
+		assertEquals("string", "+mk other", chan.getModes().toString());
+	}
+	
+	public void testListModes() {
+		Channel chan = join();
+		
+		//entries of a list not loaded yet are not tracked.
+		Parser.parse(":bob!u@h MODE #chan +b *!*@spam", server);
+		assertEquals("not loaded", null, chan.getModes().getList('b'));
+		
+		chan.getModes().beginList('b');
+		Parser.parse(":irc 367 me #chan *!*@spam bob 1268560800", server);
+		Parser.parse(":bob!u@h MODE #chan +bb-b *!*@a *!*@b *!*@spam", server);
+		assertEquals("list", "[*!*@a, *!*@b]", chan.getModes().getList('b').toString());
+		
+		//list entries take their parameter without touching the flags.
+		assertFalse("not a flag", chan.getModes().isSet('b'));
+	}
+	
+	public void testPrefixModes() {
+		Channel chan = join();
+		
+		Parser.parse(":me!u@h MODE #chan +qov bob bob carol", server);
+		Parser.parse(":me!u@h MODE #chan +h carol", server);
+		assertEquals("ranked", "[@me, ~@bob, %+carol]", chan.getUsers().toString());
+		
+		Parser.parse(":me!u@h MODE #chan -q+a-v bob bob carol", server);
+		assertEquals("removed", "[@me, &@bob, %carol]", chan.getUsers().toString());
+		
+		//the parameters of mixed modes are taken in order.
+		Parser.parse(":me!u@h MODE #chan +ko-h key bob carol", server);
+		assertEquals("key", "key", chan.getModes().getParam('k'));
+		assertEquals("members", "[@me, &@bob, carol]", chan.getUsers().toString());
+	}
+}
@@ -0,0 +1,150 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ChatLoggerTest extends TestCase {
+	
+	private File dir;
+	
+	protected void tearDown() throws Exception {
+		if (dir != null) {
+			delete(dir);
+		}
+	}
+	
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		
+		f.delete();
+	}
+	
+	public void testMembershipAndNoticesAreLogged() throws Exception {
+		dir = Files.createTempDirectory("chatlog").toFile();
+		Server server = new Server("test", "me", null, 6667, null);
+		ChatLogger logger = server.getChatLogger();
+		logger.setZone(ZoneId.of("UTC"));
+		logger.setDirectory(dir);
+		
+		Parser.parse(":me!u@h JOIN :#chan", server);
+		Parser.parse(":bob!u@h JOIN :#chan", server);
+		Parser.parse(":carol!u@h JOIN :#chan", server);
+		Parser.parse(":bob!u@h NOTICE #chan :hello all", server);
+		Parser.parse(":me!u@h KICK #chan carol :spam", server);
+		Parser.parse(":bob!u@h QUIT :gone", server);
+		Parser.parse(":dave!u@h NOTICE me :psst", server);
+		Parser.parse(":irc.example.net NOTICE me :server notice", server);
+		logger.setDirectory(null);
+		
+		String day = LocalDate.now(ZoneId.of("UTC")) + ".log";
+		List<String> chan = Files.readAllLines(new File(new File(dir, "#chan"), day).toPath(), StandardCharsets.UTF_8);
+		
+		assertEquals("lines", 6, chan.size());
+		assertTrue("join", chan.get(1).endsWith("*** bob has joined #chan"));
+		assertTrue("notice", chan.get(3).endsWith("-bob- hello all"));
+		assertTrue("kick", chan.get(4).endsWith("*** carol was kicked by me (spam)"));
+		assertTrue("quit", chan.get(5).endsWith("*** bob has quit (gone)"));
+		assertFalse("kicked user removed", server.getChannels().get("#chan").getUsers().contains("carol"));
+		
+		List<String> chat = Files.readAllLines(new File(new File(dir, "dave"), day).toPath(), StandardCharsets.UTF_8);
+		assertEquals("private notice", 1, chat.size());
+		assertFalse("server notice", new File(dir, "irc.example.net").exists());
+	}
+	
+	public void testPartAndKickAreLogged() throws Exception {
+		dir = Files.createTempDirectory("chatlog").toFile();
+		Server server = new Server("test", "me", null, 6667, null);
+		ChatLogger logger = server.getChatLogger();
+		logger.setZone(ZoneId.of("UTC"));
+		logger.setDirectory(dir);
+		
+		final List<String> events = new ArrayList<String>();
+		server.setServerListener(new ListenerAdapter() {
+			public void onLeaveChannel(String chan) {
+				events.add("left " + chan);
+			}
+			
+			public void onUserKicked(String user, Channel chan, Message msg) {
+				events.add(user + " kicked from " + chan.getName());
+			}
+		});
+		
+		Parser.parse(":me!u@h JOIN :#chan", server);
+		Parser.parse(":me!u@h JOIN :#other", server);
+		Parser.parse(":bob!u@h JOIN :#chan", server);
+		Parser.parse(":bob!u@h PART #chan :bye", server);
+		
+		//channels the client does not track are ignored.
+		Parser.parse(":bob!u@h JOIN :#nowhere", server);
+		Parser.parse(":bob!u@h PART #nowhere", server);
+		Parser.parse(":op!u@h KICK #nowhere bob", server);
+		
+		Parser.parse(":op!u@h KICK #other me :out", server);
+		logger.setDirectory(null);
+		
+		String day = LocalDate.now(ZoneId.of("UTC")) + ".log";
+		List<String> chan = Files.readAllLines(new File(new File(dir, "#chan"), day).toPath(), StandardCharsets.UTF_8);
+		assertTrue("part", chan.get(2).endsWith("*** bob has left #chan (bye)"));
+		
+		List<String> other = Files.readAllLines(new File(new File(dir, "#other"), day).toPath(), StandardCharsets.UTF_8);
+		assertTrue("kick", other.get(1).endsWith("*** me was kicked by op (out)"));
+		assertFalse("untracked", new File(dir, "#nowhere").exists());
+		
+		assertEquals("callbacks", "[me kicked from #other, left #other]", events.toString());
+		assertEquals("kicked channel dropped", null, server.getChannels().get("#other"));
+		assertTrue("other channel kept", server.getChannels().containsKey("#chan"));
+	}
+	
+	public void testCompressFailureIsCounted() throws Exception {
+		dir = Files.createTempDirectory("chatlog").toFile();
+		ChatLogger logger = new ChatLogger();
+		logger.setZone(ZoneId.of("UTC"));
+		logger.setCompress(true);
+		logger.setDirectory(dir);
+		
+		//a directory in the way of the .gz file makes compressing fail.
+		String name = LocalDate.now(ZoneId.of("UTC")).minusDays(1) + ".log";
+		File chan = new File(dir, "#old");
+		new File(chan, name + ".gz").mkdirs();
+		
+		Message old = new Message();
+		old.setCommand(Message.CMD_PRIVMSG);
+		old.setSender("bob");
+		old.setText("yesterday");
+		old.setTimestamp(System.currentTimeMillis() - 86400000);
+		logger.log(old, "#old");
+		logger.setDirectory(null);
+		
+		assertEquals("failed", 1, logger.getCompressFailedCount());
+		assertTrue("plain file kept", new File(chan, name).isFile());
+	}
+}
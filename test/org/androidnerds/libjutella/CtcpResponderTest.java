@@ -0,0 +1,159 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.androidnerds.libjutella.net.Connection.ConnectionListener;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class CtcpResponderTest extends TestCase {
+	
+	private static final String C = "\u0001";
+	
+	private LinkedBlockingQueue<String> sent = new LinkedBlockingQueue<String>();
+	private List<String> requests = new ArrayList<String>();
+	
+	private Server server = new Server("irc.example.com", "me", null, 6667, new ConnectionListener() {
+		public void onSendMessage(Server serv, Message msg) {
+			sent.add(msg.getText());
+		}
+	});
+	
+	private CtcpResponder ctcp = server.getCtcpResponder();
+	private Message parsed;
+	
+	private Message parse(String line) {
+		Server capture = new Server("test", "me", null, 6667, null) {
+			protected void receiveMessage(Message m) {
+				parsed = m;
+			}
+		};
+		
+		Parser.parse(line, capture);
+		return parsed;
+	}
+	
+	private Message request(String from, String text) {
+		return parse(":" + from + "!u@" + from + ".example.com PRIVMSG me :" + text);
+	}
+	
+	public void testMessageAccessors() {
+		Message action = request("bob", C + "ACTION waves hello" + C);
+		assertTrue("ctcp", action.isCtcp());
+		assertTrue("action", action.isCtcp("ACTION"));
+		assertTrue("any case", action.isCtcp("action"));
+		assertFalse("not a prefix", action.isCtcp("ACT"));
+		assertEquals("command", "ACTION", action.getCtcpCommand());
+		assertEquals("args", "waves hello", action.getCtcpArgs());
+		
+		Message version = request("bob", C + "version" + C);
+		assertEquals("upper cased", "VERSION", version.getCtcpCommand());
+		assertEquals("no args", null, version.getCtcpArgs());
+		
+		Message open = request("bob", C + "PING 12345");
+		assertEquals("unterminated", "12345", open.getCtcpArgs());
+		
+		Message plain = request("bob", "hello " + C + "VERSION" + C);
+		assertFalse("plain text", plain.isCtcp());
+		assertEquals("no command", null, plain.getCtcpCommand());
+		
+		assertFalse("empty", request("bob", C + C).isCtcp());
+		assertTrue("notice reply", parse(":bob!u@h NOTICE me :" + C + "VERSION x" + C).isCtcp("VERSION"));
+	}
+	
+	public void testBuiltInReplies() {
+		assertTrue("version", ctcp.respond(request("bob", C + "VERSION" + C)));
+		assertEquals("version reply", "/notice bob " + C + "VERSION libjutella" + C, sent.poll());
+		
+		assertTrue("ping", ctcp.respond(request("carol", C + "PING 12345" + C)));
+		assertEquals("ping echoed", "/notice carol " + C + "PING 12345" + C, sent.poll());
+		
+		assertTrue("clientinfo", ctcp.respond(request("dave", C + "CLIENTINFO" + C)));
+		assertEquals("known commands", "/notice dave " + C + "CLIENTINFO ACTION CLIENTINFO DCC PING TIME VERSION" + C, sent.poll());
+		
+		assertFalse("unknown", ctcp.respond(request("erin", C + "FINGER" + C)));
+		assertEquals("nothing sent", null, sent.poll());
+	}
+	
+	public void testConfiguredReplies() {
+		ctcp.setReply("version", "my client 1.0");
+		ctcp.setReply("FINGER", "no");
+		ctcp.setReply("TIME", null);
+		
+		assertTrue("custom", ctcp.respond(request("bob", C + "VERSION" + C)));
+		assertEquals("custom reply", "/notice bob " + C + "VERSION my client 1.0" + C, sent.poll());
+		assertTrue("new command", ctcp.respond(request("carol", C + "FINGER" + C)));
+		assertEquals("new reply", "/notice carol " + C + "FINGER no" + C, sent.poll());
+		assertFalse("disabled command", ctcp.respond(request("dave", C + "TIME" + C)));
+		
+		ctcp.respond(request("erin", C + "CLIENTINFO" + C));
+		assertEquals("listed", "/notice erin " + C + "CLIENTINFO ACTION CLIENTINFO DCC FINGER PING VERSION" + C, sent.poll());
+		
+		ctcp.removeReply("VERSION");
+		ctcp.respond(request("frank", C + "VERSION" + C));
+		assertEquals("built in again", "/notice frank " + C + "VERSION libjutella" + C, sent.poll());
+		
+		ctcp.setEnabled(false);
+		assertFalse("off", ctcp.respond(request("gina", C + "VERSION" + C)));
+	}
+	
+	public void testSenderRateLimit() throws Exception {
+		ctcp.setSenderRateLimit(2, 200);
+		
+		assertTrue("first", ctcp.respond(request("bob", C + "VERSION" + C)));
+		assertTrue("second", ctcp.respond(request("bob", C + "PING 1" + C)));
+		assertFalse("third dropped", ctcp.respond(request("bob", C + "VERSION" + C)));
+		assertTrue("other host", ctcp.respond(request("carol", C + "VERSION" + C)));
+		assertEquals("dropped", 1, ctcp.getDroppedCount());
+		
+		//another nick on the same host shares the limit.
+		assertFalse("same host", ctcp.respond(parse(":alias!u@bob.example.com PRIVMSG me :" + C + "VERSION" + C)));
+		
+		Thread.sleep(300);
+		assertTrue("window over", ctcp.respond(request("bob", C + "VERSION" + C)));
+	}
+	
+	public void testTotalRateLimit() {
+		ctcp.setRateLimit(3, 10000);
+		
+		for (int i = 0; i < 3; i++) {
+			assertTrue("within " + i, ctcp.respond(request("nick" + i, C + "VERSION" + C)));
+		}
+		
+		assertFalse("over", ctcp.respond(request("nick3", C + "VERSION" + C)));
+		assertEquals("dropped", 1, ctcp.getDroppedCount());
+		assertEquals("replies", 3, sent.size());
+	}
+	
+	public void testServerAnswersAndNotifies() {
+		server.setServerListener(new ListenerAdapter() {
+			public void onCtcpRequest(Message msg) {
+				requests.add(msg.getCtcpCommand());
+			}
+		});
+		
+		Parser.parse(":bob!u@h PRIVMSG me :" + C + "VERSION" + C, server);
+		
+		assertEquals("answered", "/notice bob " + C + "VERSION libjutella" + C, sent.poll());
+		assertEquals("notified", "[VERSION]", requests.toString());
+		assertEquals("not stored", null, server.getPrivateChats().get("bob"));
+	}
+}
@@ -0,0 +1,198 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.androidnerds.libjutella.net.Connection.ConnectionListener;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class DccManagerTest extends TestCase {
+	
+	private LinkedBlockingQueue<String> fromSender = new LinkedBlockingQueue<String>();
+	private LinkedBlockingQueue<String> fromReceiver = new LinkedBlockingQueue<String>();
+	private List<File> files = new ArrayList<File>();
+	
+	private Server sender = new Server("irc.example.com", "me", null, 6667, new ConnectionListener() {
+		public void onSendMessage(Server serv, Message msg) {
+			fromSender.add(msg.getText());
+		}
+	});
+	
+	private Server receiver = new Server("irc.example.com", "you", null, 6667, new ConnectionListener() {
+		public void onSendMessage(Server serv, Message msg) {
+			fromReceiver.add(msg.getText());
+		}
+	});
+	
+	protected void tearDown() throws Exception {
+		for (File f : files) {
+			f.delete();
+		}
+	}
+	
+	private File file(byte[] content) throws Exception {
+		File f = File.createTempFile("dcc", ".bin");
+		files.add(f);
+		Files.write(f.toPath(), content);
+		return f;
+	}
+	
+	private static byte[] random(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+	
+	/**
+	 * hands the CTCP request one side sent to the other side as a private
+	 * message from it.
+	 */
+	private static void deliver(LinkedBlockingQueue<String> sent, String from, Server to) throws Exception {
+		String text = sent.poll(2, TimeUnit.SECONDS);
+		assertTrue("a request was sent", text != null);
+		String target = "/msg " + to.getNickname() + " ";
+		assertTrue("sent to " + to.getNickname() + ": " + text, text.startsWith(target));
+		Parser.parse(":" + from + "!u@localhost PRIVMSG " + to.getNickname() + " :" + text.substring(target.length()), to);
+	}
+	
+	private static Throwable failure(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		
+		fail("the transfer did not fail");
+		return null;
+	}
+	
+	public void testSendOverLoopback() throws Exception {
+		byte[] data = random(3 * 1024 * 1024 + 17);
+		sender.getDccManager().setLocalAddress(InetAddress.getLoopbackAddress());
+		DccTransfer out = sender.getDccManager().send("you", file(data));
+		deliver(fromSender, "me", receiver);
+		
+		DccTransfer offer = receiver.getDccManager().getTransfers().get(0);
+		assertEquals("size", data.length, offer.getSize());
+		
+		File target = file(new byte[0]);
+		receiver.getDccManager().accept(offer, target, false).get(10, TimeUnit.SECONDS);
+		out.getFuture().get(10, TimeUnit.SECONDS);
+		
+		assertTrue("same content", Arrays.equals(data, Files.readAllBytes(target.toPath())));
+		assertEquals("moved", data.length, out.getBytesTransferred());
+	}
+	
+	public void testResume() throws Exception {
+		byte[] data = random(200000);
+		sender.getDccManager().setLocalAddress(InetAddress.getLoopbackAddress());
+		DccTransfer out = sender.getDccManager().send("you", file(data));
+		deliver(fromSender, "me", receiver);
+		
+		File target = file(Arrays.copyOf(data, 50000));
+		DccTransfer offer = receiver.getDccManager().getTransfers().get(0);
+		CompletableFuture<DccTransfer> done = receiver.getDccManager().accept(offer, target, true);
+		
+		deliver(fromReceiver, "you", sender);
+		deliver(fromSender, "me", receiver);
+		done.get(10, TimeUnit.SECONDS);
+		
+		assertTrue("same content", Arrays.equals(data, Files.readAllBytes(target.toPath())));
+		assertEquals("started at", 50000, out.getStartPosition());
+		assertEquals("only the rest moved", 150000, offer.getBytesTransferred());
+	}
+	
+	public void testResumeWithoutAcceptTimesOut() throws Exception {
+		Parser.parse(":me!u@localhost PRIVMSG you :\u0001DCC SEND f.bin 2130706433 4000 100\u0001", receiver);
+		receiver.getDccManager().setTimeout(100);
+		
+		DccTransfer offer = receiver.getDccManager().getTransfers().get(0);
+		CompletableFuture<DccTransfer> done = receiver.getDccManager().accept(offer, file(new byte[10]), true);
+		assertTrue("timed out", failure(done) instanceof SocketTimeoutException);
+	}
+	
+	public void testFirstAckCountsReceivedBytes() throws Exception {
+		ServerSocket listener = new ServerSocket();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		
+		try {
+			Parser.parse(":me!u@localhost PRIVMSG you :\u0001DCC SEND f.bin 2130706433 " + listener.getLocalPort()
+					+ " 10\u0001", receiver);
+			DccTransfer offer = receiver.getDccManager().getTransfers().get(0);
+			CompletableFuture<DccTransfer> done = receiver.getDccManager().accept(offer, file(new byte[0]), false);
+			
+			listener.setSoTimeout(5000);
+			Socket socket = listener.accept();
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write(random(10));
+			out.flush();
+			
+			assertEquals("first ack", 10, new DataInputStream(socket.getInputStream()).readInt());
+			done.get(5, TimeUnit.SECONDS);
+			socket.close();
+		} finally {
+			listener.close();
+		}
+	}
+	
+	public void testNumericAddressesOnly() throws Exception {
+		assertEquals("decimal", "127.0.0.1", DccManager.decodeAddress("2130706433").getHostAddress());
+		assertEquals("dotted", "10.0.0.1", DccManager.decodeAddress("10.0.0.1").getHostAddress());
+		assertTrue("ipv6", DccManager.decodeAddress("::1").isLoopbackAddress());
+		
+		try {
+			DccManager.decodeAddress("example.com");
+			fail("a host name was looked up");
+		} catch (UnknownHostException e) {
+			
+		}
+	}
+	
+	public void testChatOfferPassedToListeners() {
+		final List<String> requests = new ArrayList<String>();
+		receiver.setServerListener(new ListenerAdapter() {
+			public void onCtcpRequest(Message msg) {
+				requests.add(msg.getCtcpArgs());
+			}
+		});
+		
+		Parser.parse(":me!u@h PRIVMSG you :\u0001DCC CHAT chat 2130706433 5000\u0001", receiver);
+		
+		assertEquals("passed on", "[CHAT chat 2130706433 5000]", requests.toString());
+		assertEquals("no transfer", 0, receiver.getDccManager().getTransfers().size());
+	}
+}
@@ -0,0 +1,87 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class EventDispatcherTest extends TestCase {
+	
+	private EventDispatcher dispatcher = new EventDispatcher();
+	private List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+	
+	protected void tearDown() throws Exception {
+		dispatcher.setThreads(0, "test");
+	}
+	
+	private Runnable call(final String name, final long sleep) {
+		return new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					
+				}
+				
+				calls.add(name);
+			}
+		};
+	}
+	
+	public void testLaneKeepsOrder() throws Exception {
+		dispatcher.setThreads(4, "test");
+		
+		for (int i = 0; i < 200; i++) {
+			dispatcher.dispatch("#chan", call(Integer.toString(i), 0));
+		}
+		
+		dispatcher.awaitIdle();
+		assertEquals("all ran", 200, calls.size());
+		
+		for (int i = 0; i < 200; i++) {
+			assertEquals("in order", Integer.toString(i), calls.get(i));
+		}
+	}
+	
+	public void testQueuedCallbacksRunBeforeInlineOnes() throws Exception {
+		dispatcher.setThreads(2, "test");
+		
+		for (int i = 0; i < 5; i++) {
+			dispatcher.dispatch("#chan", call("queued", 20));
+		}
+		
+		dispatcher.setThreads(0, "test");
+		dispatcher.dispatch("#chan", call("inline", 0));
+		
+		assertEquals("all ran", 6, calls.size());
+		assertEquals("inline last", "inline", calls.get(5));
+	}
+	
+	public void testJoinRegistersChannelInBothModes() throws Exception {
+		Server server = new Server("test", "me", null, 6667, null);
+		Parser.parse(":me!u@h JOIN :#inline", server);
+		assertTrue("inline", server.getChannels().containsKey("#inline"));
+		
+		server.setDispatchThreads(2);
+		Parser.parse(":me!u@h JOIN :#async", server);
+		assertTrue("async", server.getChannels().containsKey("#async"));
+		server.setDispatchThreads(0);
+	}
+}
@@ -0,0 +1,92 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.Arrays;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class HighlightMatcherTest extends TestCase {
+	
+	private HighlightMatcher matcher = new HighlightMatcher();
+	
+	private String match(String text) {
+		return Arrays.toString(matcher.match(text));
+	}
+	
+	public void testOverlappingPatterns() {
+		matcher.setWholeWords(false);
+		matcher.addKeyword("he");
+		matcher.addKeyword("she");
+		matcher.addKeyword("hers");
+		matcher.addKeyword("his");
+		
+		//she and he end on the same character, hers starts inside she.
+		assertEquals("overlapping", "[she, he, hers]", match("ushers"));
+		assertEquals("each once", "[he]", match("he he he"));
+		assertEquals("none", "[]", match("hi you"));
+	}
+	
+	public void testPatternInsideAnother() {
+		matcher.setWholeWords(false);
+		matcher.addKeyword("abcd");
+		matcher.addKeyword("bc");
+		
+		//the failure link from abc has to report bc.
+		assertEquals("suffix", "[bc]", match("xabcx"));
+		assertEquals("both", "[bc, abcd]", match("abcd"));
+	}
+	
+	public void testWordBoundaries() {
+		matcher.setNickname("mike");
+		
+		assertEquals("alone", "[mike]", match("mike"));
+		assertEquals("punctuation", "[mike]", match("hi mike: how are you?"));
+		assertEquals("prefixed", "[mike]", match("@mike"));
+		assertEquals("longer word", "[]", match("mikey"));
+		assertEquals("nick characters", "[]", match("mike_ and [mike] and mike|away"));
+		assertEquals("later match", "[mike]", match("mikey or mike"));
+		
+		matcher.setWholeWords(false);
+		assertEquals("any position", "[mike]", match("mikey"));
+	}
+	
+	public void testRfc1459CaseFolding() {
+		matcher.setNickname("[Mike]");
+		matcher.addKeyword("a\\b~");
+		
+		assertEquals("brackets fold to braces", "[[Mike]]", match("hey {mike}"));
+		assertEquals("upper case", "[[Mike]]", match("hey [MIKE]"));
+		assertEquals("backslash and tilde", "[a\\b~]", match("A|B^"));
+		assertEquals("and back", "[a\\b~]", match("a\\b~"));
+		
+		assertEquals("fold", "{mike}|^", HighlightMatcher.fold("[MIKE]\\~"));
+	}
+	
+	public void testKeywordChanges() {
+		matcher.addKeyword("java");
+		assertEquals("added", "[java]", match("I like Java"));
+		
+		matcher.removeKeyword("java");
+		assertEquals("removed", "[]", match("I like Java"));
+		
+		matcher.setNickname("bob");
+		matcher.setNickname("rob");
+		assertEquals("old nick", "[]", match("bob"));
+		assertEquals("new nick", "[rob]", match("rob"));
+	}
+}
@@ -0,0 +1,145 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.androidnerds.libjutella.net.Connection.ConnectionListener;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class JoinSchedulerTest extends TestCase {
+	
+	private LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+	
+	private Server server = new Server("irc.example.com", "me", null, 6667, new ConnectionListener() {
+		public void onSendMessage(Server serv, Message msg) {
+			if (msg.getCommand() == Message.CMD_JOIN) {
+				lines.add(msg.getText().substring("/join ".length()));
+			}
+		}
+	});
+	
+	private String next() throws InterruptedException {
+		String line = lines.poll(2, TimeUnit.SECONDS);
+		assertTrue("a JOIN was sent", line != null);
+		return line;
+	}
+	
+	public void testWaitsForRegistration() throws Exception {
+		JoinScheduler joins = server.getJoinScheduler();
+		joins.setInterval(10);
+		joins.join("#early");
+		
+		assertEquals("nothing before 001", null, lines.poll(100, TimeUnit.MILLISECONDS));
+		
+		Parser.parse(":irc 001 me :Welcome", server);
+		assertEquals("sent", "#early", next());
+	}
+	
+	public void testBatchesWithinLineLength() throws Exception {
+		JoinScheduler joins = server.getJoinScheduler();
+		joins.setInterval(10);
+		Parser.parse(":irc 001 me :Welcome", server);
+		
+		List<String> channels = new ArrayList<String>();
+		
+		//two byte characters, a char count would overfill the line.
+		for (int i = 0; i < 60; i++) {
+			channels.add("#\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9" + i);
+		}
+		
+		joins.join(channels);
+		List<String> joined = new ArrayList<String>();
+		int batches = 0;
+		
+		while (joined.size() < channels.size()) {
+			String targets = next();
+			int bytes = ("JOIN " + targets + "\r\n").getBytes(StandardCharsets.UTF_8).length;
+			assertTrue("line of " + bytes + " bytes", bytes <= 512);
+			
+			for (String c : targets.split(",")) {
+				joined.add(c);
+			}
+			
+			batches++;
+		}
+		
+		assertEquals("every channel once", channels, joined);
+		assertTrue("batched", batches > 1 && batches < channels.size());
+	}
+	
+	public void testRejoinsAfterReconnect() throws Exception {
+		JoinScheduler joins = server.getJoinScheduler();
+		joins.setInterval(10);
+		joins.addAutoJoin("#auto");
+		Parser.parse(":irc 001 me :Welcome", server);
+		CompletableFuture<Channel> future = joins.join("#auto");
+		
+		assertEquals("first connection", "#auto", next());
+		
+		server.disconnected();
+		Parser.parse(":irc 001 me :Welcome", server);
+		
+		assertEquals("sent again", "#auto", next());
+		assertEquals("same future", future, joins.join("#auto"));
+		
+		Parser.parse(":me!u@h JOIN :#auto", server);
+		assertEquals("joined", "#auto", future.get(2, TimeUnit.SECONDS).getName());
+	}
+	
+	public void testJoinWithoutTrailingParameter() throws Exception {
+		JoinScheduler joins = server.getJoinScheduler();
+		joins.setInterval(10);
+		Parser.parse(":irc 001 me :Welcome", server);
+		CompletableFuture<Channel> plain = joins.join("#plain");
+		CompletableFuture<Channel> extended = joins.join("#extended");
+		next();
+		
+		Parser.parse(":me!u@h JOIN #plain", server);
+		Parser.parse(":me!u@h JOIN #extended account :Real Name", server);
+		
+		assertEquals("plain", "#plain", plain.get(2, TimeUnit.SECONDS).getName());
+		assertEquals("extended join", "#extended", extended.get(2, TimeUnit.SECONDS).getName());
+		
+		Parser.parse(":bob!u@h JOIN #plain", server);
+		assertTrue("member", server.getChannels().get("#plain").getUsers().contains("bob"));
+	}
+	
+	public void testJoinError() throws Exception {
+		JoinScheduler joins = server.getJoinScheduler();
+		joins.setInterval(10);
+		Parser.parse(":irc 001 me :Welcome", server);
+		CompletableFuture<Channel> future = joins.join("#secret");
+		next();
+		
+		Parser.parse(":irc 473 me #secret :Cannot join channel (+i)", server);
+		
+		try {
+			future.get(2, TimeUnit.SECONDS);
+			fail("joined");
+		} catch (ExecutionException e) {
+			assertTrue("join exception", e.getCause() instanceof JoinScheduler.JoinException);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+/**
+ * A ServerListener that ignores everything, tests override the callbacks
+ * they are interested in.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ListenerAdapter implements Server.ServerListener {
+	
+	public void onClientConnected() {
+		
+	}
+	
+	public void onNewChannelMessage(Message msg, Channel chan) {
+		
+	}
+	
+	public void onNewPrivateMessage(Message msg, PrivateChat chat) {
+		
+	}
+	
+	public void onJoinChannel(Channel chan) {
+		
+	}
+	
+	public void onLeaveChannel(String chan) {
+		
+	}
+	
+	public void onNickError(Message message) {
+		
+	}
+	
+	public void onServerError(Message message) {
+		
+	}
+	
+	public void onUpdateUser(Channel chan, String oldnick, String newnick) {
+		
+	}
+	
+	public void onUserEnteredChannel(String user, Channel chan) {
+		
+	}
+	
+	public void onUserQuit(Message message) {
+		
+	}
+	
+	public void onUserLeftChannel(String user, Channel chan) {
+		
+	}
+	
+	public void onNewNotice(Message msg, Server serv) {
+		
+	}
+}
@@ -0,0 +1,107 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class MessageDeduplicatorTest extends TestCase {
+	
+	private MessageDeduplicator dedup = new MessageDeduplicator();
+	private Server a = new Server("test", "me", null, 6667, null);
+	private Server b = new Server("test", "me", null, 6667, null);
+	private Message parsed;
+	
+	private Message parse(String line) {
+		Server capture = new Server("test", "me", null, 6667, null) {
+			protected void receiveMessage(Message m) {
+				parsed = m;
+			}
+		};
+		
+		Parser.parse(line, capture);
+		return parsed;
+	}
+	
+	private Message say(String text) {
+		return parse(":bob!u@h PRIVMSG #chan :" + text);
+	}
+	
+	public void testCopyFromOtherServerIsDropped() {
+		assertFalse("first copy", dedup.isDuplicate(a, say("hi")));
+		assertTrue("second server", dedup.isDuplicate(b, say("hi")));
+		assertEquals("dropped", 1, dedup.getDroppedCount());
+	}
+	
+	public void testRepeatOnSameServerIsKept() {
+		assertFalse("first", dedup.isDuplicate(a, say("hi")));
+		assertFalse("repeat", dedup.isDuplicate(a, say("hi")));
+		assertTrue("copy of the first", dedup.isDuplicate(b, say("hi")));
+		assertTrue("copy of the repeat", dedup.isDuplicate(b, say("hi")));
+		assertFalse("third time", dedup.isDuplicate(b, say("hi")));
+	}
+	
+	/**
+	 * returns a message as if its line had carried tags, the parser does not
+	 * read tags since they are never requested.
+	 */
+	private Message tagged(String tags, String text) {
+		Message m = say(text);
+		m.compact();
+		m.setRawLine("@" + tags + " :bob!u@h PRIVMSG #chan :" + text);
+		return m;
+	}
+	
+	public void testOnlyMsgidIsHashed() {
+		assertFalse("first", dedup.isDuplicate(a, tagged("time=2010-03-14T10:00:00.000Z;msgid=1", "hi")));
+		assertTrue("other time, same id", dedup.isDuplicate(b, tagged("time=2010-03-14T10:00:01.000Z;msgid=1", "hi")));
+		assertFalse("other id", dedup.isDuplicate(b, tagged("msgid=2", "hi")));
+	}
+	
+	public void testWindowEvicts() throws Exception {
+		dedup.setWindow(50);
+		assertFalse("first", dedup.isDuplicate(a, say("hi")));
+		Thread.sleep(100);
+		
+		assertFalse("after the window", dedup.isDuplicate(b, say("hi")));
+		assertEquals("old one evicted", 1, dedup.size());
+	}
+	
+	public void testCapacityEvictsOldest() {
+		dedup.setCapacity(16);
+		
+		for (int i = 0; i < 40; i++) {
+			assertFalse("new " + i, dedup.isDuplicate(a, say("m" + i)));
+		}
+		
+		assertEquals("size", 16, dedup.size());
+		assertFalse("oldest forgotten", dedup.isDuplicate(b, say("m0")));
+		
+		//every entry still in the ring is found after the shifts of eviction.
+		for (int i = 25; i < 40; i++) {
+			assertTrue("kept " + i, dedup.isDuplicate(b, say("m" + i)));
+		}
+	}
+	
+	public void testRemoveClearsBits() {
+		assertFalse("first", dedup.isDuplicate(a, say("hi")));
+		dedup.remove(a);
+		
+		//the next server takes the freed slot and has not seen the message.
+		Server c = new Server("test", "me", null, 6667, null);
+		assertTrue("copy on new server", dedup.isDuplicate(c, say("hi")));
+	}
+}
@@ -0,0 +1,98 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class MessageFilterTest extends TestCase {
+	
+	private static Message parse(String line) {
+		final Message[] parsed = new Message[1];
+		Server server = new Server("test", "me", null, 6667, null) {
+			protected void receiveMessage(Message m) {
+				parsed[0] = m;
+			}
+		};
+		
+		Parser.parse(line, server);
+		return parsed[0];
+	}
+	
+	public void testMaskDropsMessages() {
+		MessageFilter f = new MessageFilter();
+		f.addIgnoreMask("*!*@spam.example.com");
+		
+		assertFalse("privmsg", f.accept(parse(":bad!u@spam.example.com PRIVMSG #c :buy")));
+		assertFalse("notice", f.accept(parse(":bad!u@spam.example.com NOTICE #c :buy")));
+		assertFalse("ctcp", f.accept(parse(":bad!u@spam.example.com PRIVMSG me :\u0001VERSION\u0001")));
+		assertTrue("other host", f.accept(parse(":good!u@example.com PRIVMSG #c :hi")));
+		assertEquals("dropped", 3, f.getDroppedCount());
+	}
+	
+	public void testMaskKeepsStateChanges() {
+		MessageFilter f = new MessageFilter();
+		f.addIgnoreMask("bad!*@*");
+		
+		assertTrue("join", f.accept(parse(":bad!u@h JOIN :#c")));
+		assertTrue("part", f.accept(parse(":bad!u@h PART #c")));
+		assertTrue("quit", f.accept(parse(":bad!u@h QUIT :bye")));
+		assertTrue("nick", f.accept(parse(":bad!u@h NICK :worse")));
+		assertTrue("kick", f.accept(parse(":bad!u@h KICK #c someone :out")));
+		assertTrue("mode", f.accept(parse(":bad!u@h MODE #c +o bad")));
+		assertEquals("dropped", 0, f.getDroppedCount());
+	}
+	
+	public void testIgnoredCommands() {
+		MessageFilter f = new MessageFilter();
+		f.addIgnoredCommand(Message.CMD_NOTICE);
+		f.addIgnoredCommand(Message.CMD_JOIN);
+		
+		assertFalse("notice", f.accept(parse(":a!u@h NOTICE #c :hi")));
+		assertTrue("privmsg", f.accept(parse(":a!u@h PRIVMSG #c :hi")));
+		assertTrue("join is never dropped", f.accept(parse(":a!u@h JOIN :#c")));
+	}
+	
+	public void testRateLimit() {
+		MessageFilter f = new MessageFilter();
+		f.setChannelRateLimit(2, 60000);
+		
+		assertTrue("first", f.accept(parse(":a!u@h PRIVMSG #c :1")));
+		assertTrue("second", f.accept(parse(":a!u@h PRIVMSG #c :2")));
+		assertFalse("third", f.accept(parse(":a!u@h PRIVMSG #c :3")));
+		assertTrue("other channel", f.accept(parse(":a!u@h PRIVMSG #d :1")));
+		assertTrue("private", f.accept(parse(":a!u@h PRIVMSG me :1")));
+	}
+	
+	public void testIdleRateWindowsAreForgotten() throws Exception {
+		MessageFilter f = new MessageFilter();
+		f.setChannelRateLimit(5, 20);
+		
+		for (int i = 0; i < 100; i++) {
+			f.accept(parse(":a!u@h PRIVMSG #c" + i + " :hi"));
+		}
+		
+		Thread.sleep(50);
+		f.accept(parse(":a!u@h PRIVMSG #new :hi"));
+		assertEquals("windows", 1, f.getRateWindowCount());
+	}
+	
+	public void testMatches() {
+		assertTrue("star", MessageFilter.matches("*!*@*.example.com", "a!b@c.example.com"));
+		assertTrue("question", MessageFilter.matches("a?c!*", "abc!x"));
+		assertFalse("no match", MessageFilter.matches("*!*@example.org", "a!b@example.com"));
+	}
+}
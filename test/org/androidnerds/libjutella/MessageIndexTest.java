@@ -0,0 +1,110 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.List;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class MessageIndexTest extends TestCase {
+	
+	private MessageIndex index = new MessageIndex();
+	
+	private Message add(String sender, String text, long time, String target) {
+		Message m = new Message();
+		m.setCommand(Message.CMD_PRIVMSG);
+		m.setSender(sender);
+		m.setText(text);
+		m.setTimestamp(time);
+		index.add(m, target);
+		return m;
+	}
+	
+	private String texts(List<MessageIndex.Hit> hits) {
+		StringBuilder s = new StringBuilder();
+		
+		for (MessageIndex.Hit hit : hits) {
+			if (s.length() > 0) {
+				s.append(',');
+			}
+			
+			s.append(hit.getMessage().getText());
+		}
+		
+		return s.toString();
+	}
+	
+	public void testDisabledUntilCapacitySet() {
+		add("bob", "hello world", 1, "#chan");
+		assertEquals("not indexed", 0, index.size());
+	}
+	
+	public void testQueryWordsSenderAndTime() {
+		index.setCapacity(100);
+		add("bob", "Hello world", 10, "#chan");
+		add("carol", "hello, again", 20, "#chan");
+		add("Bob", "the world is round", 30, "carol");
+		add("bob", "no text here", 40, "#other");
+		
+		assertEquals("one word", "Hello world,hello, again", texts(index.search("HELLO", null, 0, 0)));
+		assertEquals("all words", "Hello world", texts(index.search("world hello", null, 0, 0)));
+		assertEquals("unknown word", "", texts(index.search("missing", null, 0, 0)));
+		assertEquals("sender folded", "Hello world,the world is round", texts(index.search("world", "BOB", 0, 0)));
+		assertEquals("sender only", "hello, again", texts(index.search(null, "carol", 0, 0)));
+		assertEquals("time range", "the world is round", texts(index.search("world", null, 20, 40)));
+		
+		List<MessageIndex.Hit> hits = index.search("round", null, 0, 0);
+		assertEquals("target", "carol", hits.get(0).getTarget());
+	}
+	
+	public void testOldestEvicted() {
+		index.setCapacity(3);
+		
+		for (int i = 0; i < 5; i++) {
+			add("bob", "message " + i, i, "#chan");
+		}
+		
+		assertEquals("size", 3, index.size());
+		assertEquals("oldest gone", "message 2,message 3,message 4", texts(index.search("message", null, 0, 0)));
+		assertEquals("its terms gone", "", texts(index.search("0", null, 0, 0)));
+		
+		index.setCapacity(1);
+		assertEquals("shrunk", "message 4", texts(index.search("message", "bob", 0, 0)));
+		
+		index.setCapacity(0);
+		assertEquals("disabled", 0, index.size());
+	}
+	
+	public void testRemoveTarget() {
+		index.setCapacity(100);
+		add("bob", "hello one", 1, "#chan");
+		add("bob", "hello two", 2, "#other");
+		add("carol", "hello three", 3, "#Chan");
+		
+		index.remove("#CHAN");
+		
+		assertEquals("size", 1, index.size());
+		assertEquals("other kept", "hello two", texts(index.search("hello", null, 0, 0)));
+		assertEquals("sender postings", "", texts(index.search(null, "carol", 0, 0)));
+		
+		add("carol", "hello four", 4, "#chan");
+		assertEquals("still ordered", "hello two,hello four", texts(index.search("hello", null, 0, 0)));
+		
+		index.clear();
+		assertEquals("cleared", "", texts(index.search("hello", null, 0, 0)));
+	}
+}
@@ -0,0 +1,63 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class NameTableTest extends TestCase {
+	
+	public void testSharesNames() throws Exception {
+		NameTable names = new NameTable();
+		String line = ":bob!b@h PRIVMSG #chan :bob";
+		String first = names.intern(line, 1, 4);
+		
+		assertTrue("shared", first == names.intern(line, line.length() - 3, line.length()));
+		assertEquals("hits", 1, names.getHits());
+	}
+	
+	public void testOnlyStoredCopiesCount() throws Exception {
+		NameTable names = new NameTable();
+		String bob = names.intern("bob");
+		names.intern("bob");
+		names.intern("bob");
+		assertEquals("lookups alone save nothing", 0, names.getSavedBytes());
+		
+		names.stored(bob);
+		assertEquals("the first stored copy is the table's own", 0, names.getSavedBytes());
+		
+		names.stored(bob);
+		assertTrue("a second stored copy is saved", names.getSavedBytes() > 0);
+		
+		long saved = names.getSavedBytes();
+		names.stored(new String("bob"));
+		assertEquals("a private copy saves nothing", saved, names.getSavedBytes());
+	}
+	
+	public void testHistoryCountsSenders() throws Exception {
+		Server server = new Server("test", "me", null, 6667, null);
+		Channel channel = new Channel(server);
+		channel.setName("#chan");
+		server.addChannel(channel);
+		
+		Parser.parse(":bob!b@h PRIVMSG #chan :one", server);
+		long one = server.getNameTable().getSavedBytes();
+		Parser.parse(":bob!b@h PRIVMSG #chan :two", server);
+		
+		assertEquals("stored", 2, channel.getMessages().size());
+		assertTrue("sender and channel shared", server.getNameTable().getSavedBytes() > one);
+	}
+}
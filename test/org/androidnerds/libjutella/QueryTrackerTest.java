@@ -0,0 +1,174 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.androidnerds.libjutella.QueryTracker.ListEntry;
+import org.androidnerds.libjutella.QueryTracker.WhoEntry;
+import org.androidnerds.libjutella.QueryTracker.Whois;
+import org.androidnerds.libjutella.net.Connection.ConnectionListener;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class QueryTrackerTest extends TestCase {
+	
+	private LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+	
+	private Server server = new Server("irc.example.com", "me", null, 6667, new ConnectionListener() {
+		public void onSendMessage(Server serv, Message msg) {
+			lines.add(msg.getText());
+		}
+	});
+	
+	private QueryTracker queries = server.getQueryTracker();
+	
+	private static Throwable failure(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get(2, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		
+		fail("the query did not fail");
+		return null;
+	}
+	
+	public void testWhoisCollectsReply() throws Exception {
+		CompletableFuture<Whois> future = queries.whois("Bob");
+		assertEquals("sent", "/WHOIS Bob", lines.poll());
+		
+		Parser.parse(":irc 311 me Bob bob example.com * :Bob Smith", server);
+		Parser.parse(":irc 319 me Bob :@#a #b", server);
+		Parser.parse(":irc 317 me Bob 42 1200000000 :seconds idle", server);
+		assertFalse("waits for 318", future.isDone());
+		Parser.parse(":irc 318 me bob :End of /WHOIS list.", server);
+		
+		Whois w = future.get(2, TimeUnit.SECONDS);
+		assertEquals("host", "example.com", w.getHost());
+		assertEquals("realname", "Bob Smith", w.getRealname());
+		assertEquals("idle", 42, w.getIdle());
+		assertEquals("channels", 2, w.getChannels().size());
+	}
+	
+	public void testWhoisUnknownNickFails() throws Exception {
+		CompletableFuture<Whois> future = queries.whois("ghost");
+		Parser.parse(":irc 401 me ghost :No such nick/channel", server);
+		assertTrue("query exception", failure(future) instanceof QueryTracker.QueryException);
+	}
+	
+	public void testWhoCollectsEntries() throws Exception {
+		CompletableFuture<List<WhoEntry>> future = queries.who("#chan");
+		Parser.parse(":irc 352 me #chan bob example.com irc Bob H@ :0 Bob Smith", server);
+		Parser.parse(":irc 352 me #chan amy example.org irc Amy G :0 Amy", server);
+		Parser.parse(":irc 315 me #chan :End of /WHO list.", server);
+		
+		List<WhoEntry> entries = future.get(2, TimeUnit.SECONDS);
+		assertEquals("entries", 2, entries.size());
+		assertEquals("flags", "H@", entries.get(0).getFlags());
+		assertEquals("realname", "Bob Smith", entries.get(0).getRealname());
+	}
+	
+	public void testModeReply() throws Exception {
+		CompletableFuture<String> future = queries.mode("#chan");
+		assertTrue("coalesced", future == queries.mode("#CHAN"));
+		assertEquals("sent once", 1, lines.size());
+		
+		Parser.parse(":irc 324 me #chan +kl secret 10", server);
+		assertEquals("modes", "+kl secret 10", future.get(2, TimeUnit.SECONDS));
+	}
+	
+	public void testModeOfMissingChannelFails() throws Exception {
+		CompletableFuture<String> future = queries.mode("#nowhere");
+		Parser.parse(":irc 403 me #nowhere :No such channel", server);
+		assertTrue("query exception", failure(future) instanceof QueryTracker.QueryException);
+		
+		CompletableFuture<String> again = queries.mode("#nowhere");
+		assertTrue("a new query", again != future);
+		assertFalse("waits again", again.isDone());
+	}
+	
+	public void testWhoRefusedFails() throws Exception {
+		CompletableFuture<List<WhoEntry>> future = queries.who("#secret");
+		Parser.parse(":irc 482 me #secret :You're not channel operator", server);
+		assertTrue("query exception", failure(future) instanceof QueryTracker.QueryException);
+	}
+	
+	public void testDisconnectFailsPending() throws Exception {
+		CompletableFuture<Whois> whois = queries.whois("Bob");
+		CompletableFuture<String> mode = queries.mode("#chan");
+		
+		server.disconnected();
+		assertTrue("whois failed", failure(whois) instanceof IOException);
+		assertTrue("mode failed", failure(mode) instanceof IOException);
+		assertTrue("sent again", queries.mode("#chan") != mode);
+	}
+	
+	public void testTimeout() throws Exception {
+		queries.setTimeout(50);
+		CompletableFuture<String> future = queries.mode("#slow");
+		assertTrue("timed out", failure(future) instanceof TimeoutException);
+		assertTrue("forgotten", queries.mode("#slow") != future);
+	}
+	
+	public void testPlainListWithoutElist() throws Exception {
+		final List<String> names = new ArrayList<String>();
+		CompletableFuture<Integer> future = queries.list(new QueryTracker.ListListener() {
+			public void onListEntry(ListEntry entry) {
+				names.add(entry.getChannel());
+			}
+		}, 5, "#j*");
+		assertEquals("no filters sent", "/LIST", lines.poll());
+		
+		Parser.parse(":irc 321 me Channel :Users  Name", server);
+		Parser.parse(":irc 322 me #java 12 :talk", server);
+		Parser.parse(":irc 322 me #jazz 2 :quiet", server);
+		Parser.parse(":irc 322 me #perl 40 :other", server);
+		Parser.parse(":irc 323 me :End of /LIST", server);
+		
+		assertEquals("count", 1, future.get(2, TimeUnit.SECONDS).intValue());
+		assertEquals("filtered locally", "[#java]", names.toString());
+	}
+	
+	public void testElistFilters() throws Exception {
+		Parser.parse(":irc 005 me ELIST=MU NETWORK=Example :are supported by this server", server);
+		queries.list(new QueryTracker.ListListener() {
+			public void onListEntry(ListEntry entry) {
+				
+			}
+		}, 5, "#j*");
+		assertEquals("filters sent", "/LIST >4,#j*", lines.poll());
+	}
+	
+	public void testListAggregateShared() throws Exception {
+		CompletableFuture<List<ListEntry>> first = queries.list();
+		CompletableFuture<List<ListEntry>> second = queries.list();
+		assertTrue("joined the LIST in flight", first == second);
+		assertEquals("sent once", 1, lines.size());
+		
+		Parser.parse(":irc 322 me #java 12 :talk", server);
+		Parser.parse(":irc 323 me :End of /LIST", server);
+		assertEquals("entries", 1, first.get(2, TimeUnit.SECONDS).size());
+	}
+}
@@ -0,0 +1,170 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.androidnerds.libjutella.net.Connection.ConnectionListener;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ServerSnapshotTest extends TestCase {
+	
+	private LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+	
+	private Server restored = new Server("irc.example.com", "me", null, 6667, new ConnectionListener() {
+		public void onSendMessage(Server serv, Message msg) {
+			lines.add(msg.getText());
+		}
+	});
+	
+	private File file;
+	
+	protected void tearDown() throws Exception {
+		if (file != null) {
+			file.delete();
+			new File(file.getPath() + ".tmp").delete();
+		}
+	}
+	
+	private static Server populated() {
+		Server server = new Server("irc.example.com", "me", null, 6667, null);
+		Parser.parse(":me!u@h JOIN :#chan", server);
+		Parser.parse(":irc 332 me #chan :the topic", server);
+		Parser.parse(":irc 333 me #chan bob 1268560800", server);
+		Parser.parse(":irc 353 me = #chan :@me +bob carol", server);
+		Parser.parse(":irc 366 me #chan :End of /NAMES list.", server);
+		Parser.parse(":bob!b@example.com MODE #chan +ntk secret", server);
+		Parser.parse(":bob!b@example.com PRIVMSG #chan :\u0001ACTION waves\u0001", server);
+		Parser.parse(":bob!b@example.com PRIVMSG #chan :hey me, look", server);
+		Parser.parse(":carol!c@example.com PRIVMSG me :private hi", server);
+		Parser.parse(":irc.example.com NOTICE * :server notice", server);
+		return server;
+	}
+	
+	private static void assertSame(String what, Message a, Message b) {
+		assertEquals(what + " type", a.getType(), b.getType());
+		assertEquals(what + " command", a.getCommand(), b.getCommand());
+		assertEquals(what + " raw command", a.getRawCommand(), b.getRawCommand());
+		assertEquals(what + " time", a.rawTimestamp(), b.rawTimestamp());
+		assertEquals(what + " sender", a.getSender(), b.getSender());
+		assertEquals(what + " user", a.getUser(), b.getUser());
+		assertEquals(what + " host", a.getHost(), b.getHost());
+		assertEquals(what + " text", a.getText(), b.getText());
+		assertEquals(what + " ctcp", a.getCtcpCommand(), b.getCtcpCommand());
+		assertEquals(what + " params", Arrays.toString(a.getParams()), Arrays.toString(b.getParams()));
+		assertEquals(what + " highlights", Arrays.toString(a.getHighlights()), Arrays.toString(b.getHighlights()));
+	}
+	
+	private static void assertSameHistory(String what, List<Message> a, List<Message> b) {
+		assertEquals(what + " size", a.size(), b.size());
+		
+		for (int i = 0; i < a.size(); i++) {
+			assertSame(what + " " + i, a.get(i), b.get(i));
+		}
+	}
+	
+	public void testRoundTrip() throws Exception {
+		Server original = populated();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ServerSnapshot.write(original, out, 100);
+		
+		long taken = ServerSnapshot.read(restored, new ByteArrayInputStream(out.toByteArray()));
+		assertTrue("taken", taken > 0);
+		
+		Channel a = original.getChannels().get("#chan");
+		Channel b = restored.getChannels().get("#chan");
+		assertEquals("topic", a.getTopic(), b.getTopic());
+		assertEquals("topic setter", "bob", b.getTopicSetBy());
+		assertEquals("topic time", 1268560800000L, b.getTopicTime());
+		assertEquals("users", a.getUsers().toString(), b.getUsers().toString());
+		assertEquals("modes", a.getModes().toString(), b.getModes().toString());
+		assertEquals("key", "secret", b.getModes().getParam('k'));
+		assertSameHistory("channel", a.getMessages(), b.getMessages());
+		assertTrue("action", b.getMessages().get(b.getMessages().size() - 2).isCtcp("ACTION"));
+		
+		assertSameHistory("chat", original.getPrivateChats().get("carol").getMessages(), restored.getPrivateChats().get("carol").getMessages());
+		assertSameHistory("server", original.getMessages(), restored.getMessages());
+	}
+	
+	public void testHistoryLimit() throws Exception {
+		Server original = populated();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ServerSnapshot.write(original, out, 1);
+		ServerSnapshot.read(restored, new ByteArrayInputStream(out.toByteArray()));
+		
+		List<Message> history = restored.getChannels().get("#chan").getMessages();
+		assertEquals("one kept", 1, history.size());
+		assertEquals("the latest", "hey me, look", history.get(0).getText());
+	}
+	
+	public void testFileReplacedAtomically() throws Exception {
+		file = File.createTempFile("snapshot", ".bin");
+		ServerSnapshot.write(populated(), file, 100);
+		ServerSnapshot.write(populated(), file, 100);
+		
+		assertFalse("no temporary file", new File(file.getPath() + ".tmp").exists());
+		ServerSnapshot.read(restored, file);
+		assertEquals("channel", "the topic", restored.getChannels().get("#chan").getTopic());
+	}
+	
+	public void testRestoredChannelsRejoinedAndResynced() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ServerSnapshot.write(populated(), out, 100);
+		ServerSnapshot.read(restored, new ByteArrayInputStream(out.toByteArray()));
+		
+		assertEquals("nothing sent offline", null, lines.poll());
+		Parser.parse(":irc 001 me :Welcome", restored);
+		assertEquals("rejoined", "/join #chan", lines.poll(2, TimeUnit.SECONDS));
+		
+		Parser.parse(":me!u@h JOIN :#chan", restored);
+		assertEquals("modes asked for", "/MODE #chan", lines.poll(2, TimeUnit.SECONDS));
+		assertEquals("users cleared for names", 0, restored.getChannels().get("#chan").getUsers().size());
+		
+		Parser.parse(":irc 324 me #chan +s", restored);
+		assertEquals("modes replaced", "+s", restored.getChannels().get("#chan").getModes().toString());
+	}
+	
+	public void testCorruptSnapshotRejected() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ServerSnapshot.write(populated(), out, 100);
+		byte[] bytes = out.toByteArray();
+		
+		try {
+			ServerSnapshot.read(restored, new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length / 2)));
+			fail("truncated snapshot read");
+		} catch (IOException e) {
+			
+		}
+		
+		bytes[0] = 0;
+		
+		try {
+			ServerSnapshot.read(restored, new ByteArrayInputStream(bytes));
+			fail("bad magic read");
+		} catch (IOException e) {
+			
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ServerTest extends TestCase {
+	
+	private Server server = new Server("test", "me", null, 6667, null);
+	private List<String> loaded = new ArrayList<String>();
+	
+	private Channel join(String name) {
+		server.setServerListener(new ListenerAdapter() {
+			public void onUsersLoaded(Channel chan) {
+				loaded.add(chan.getName() + " " + chan.getUsers());
+			}
+		});
+		
+		Parser.parse(":me!u@h JOIN :" + name, server);
+		return server.getChannels().get(name);
+	}
+	
+	public void testNamesSwappedInOnEnd() {
+		Channel chan = join("#chan");
+		chan.addUser("old");
+		
+		Parser.parse(":irc 353 me = #chan :@me +bob", server);
+		Parser.parse(":irc 353 me = #chan :carol dave", server);
+		
+		//the members already known stay until the reply is complete.
+		assertEquals("not swapped yet", "[old]", chan.getUsers().toString());
+		assertEquals("no callback yet", 0, loaded.size());
+		
+		Parser.parse(":irc 366 me #chan :End of /NAMES list.", server);
+		
+		assertEquals("swapped", "[@me, +bob, carol, dave]", chan.getUsers().toString());
+		assertEquals("one callback", "[#chan [@me, +bob, carol, dave]]", loaded.toString());
+		
+		//a second reply starts from scratch.
+		Parser.parse(":irc 353 me = #chan :erin", server);
+		Parser.parse(":irc 366 me #chan :End of /NAMES list.", server);
+		assertEquals("replaced", "[erin]", chan.getUsers().toString());
+	}
+	
+	public void testEndOfNamesWithoutNames() {
+		Channel chan = join("#empty");
+		chan.addUser("old");
+		
+		Parser.parse(":irc 366 me #empty :End of /NAMES list.", server);
+		
+		assertEquals("emptied", "[]", chan.getUsers().toString());
+		assertEquals("callback", "[#empty []]", loaded.toString());
+	}
+	
+	public void testNamesOfUnknownChannelDropped() {
+		Parser.parse(":irc 353 me = #other :bob", server);
+		Parser.parse(":irc 366 me #other :End of /NAMES list.", server);
+		
+		assertEquals("no channel", null, server.getChannels().get("#other"));
+		assertEquals("no callback", 0, loaded.size());
+		
+		//nothing is left over for a later reply.
+		Channel chan = join("#other");
+		Parser.parse(":irc 366 me #other :End of /NAMES list.", server);
+		assertEquals("empty", "[]", chan.getUsers().toString());
+	}
+	
+	public void testTopicRepliesGuarded() {
+		Channel chan = join("#chan");
+		
+		Parser.parse(":irc 332 me #unknown :no such channel", server);
+		Parser.parse(":irc 333 me #unknown bob 1268560800", server);
+		Parser.parse(":irc 333 me #chan bob", server);
+		
+		Parser.parse(":irc 333 me #chan bob soon", server);
+		assertEquals("setter kept", "bob", chan.getTopicSetBy());
+		assertEquals("time unknown", 0, chan.getTopicTime());
+		
+		Parser.parse(":irc 333 me #chan carol 1268560800", server);
+		assertEquals("setter", "carol", chan.getTopicSetBy());
+		assertEquals("time", 1268560800000L, chan.getTopicTime());
+	}
+}
@@ -0,0 +1,94 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * The base of the library's unit tests. Every public no argument method
+ * whose name starts with test is run on a fresh instance, a test fails by
+ * throwing, usually through one of the assert methods.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public abstract class TestCase {
+	
+	/**
+	 * runs every test method of the class and prints the failures.
+	 *
+	 * @param type the test class
+	 * @return the number of failed tests
+	 * @since 1
+	 */
+	public static int run(Class<? extends TestCase> type) throws Exception {
+		int failed = 0;
+		
+		for (Method m : type.getMethods()) {
+			if (!m.getName().startsWith("test") || m.getParameterCount() != 0 || Modifier.isStatic(m.getModifiers())) {
+				continue;
+			}
+			
+			TestCase test = type.getDeclaredConstructor().newInstance();
+			
+			try {
+				m.invoke(test);
+			} catch (InvocationTargetException e) {
+				failed++;
+				System.out.println("FAIL " + type.getSimpleName() + "." + m.getName() + ": " + e.getCause());
+				e.getCause().printStackTrace(System.out);
+			} finally {
+				test.tearDown();
+			}
+		}
+		
+		return failed;
+	}
+	
+	/**
+	 * called after each test, whether it passed or not.
+	 */
+	protected void tearDown() throws Exception {
+		
+	}
+	
+	protected static void assertTrue(String what, boolean condition) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+	
+	protected static void assertFalse(String what, boolean condition) {
+		assertTrue(what, !condition);
+	}
+	
+	protected static void assertEquals(String what, Object expected, Object actual) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+		}
+	}
+	
+	protected static void assertEquals(String what, long expected, long actual) {
+		if (expected != actual) {
+			throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+		}
+	}
+	
+	protected static void fail(String what) {
+		throw new AssertionError(what);
+	}
+}
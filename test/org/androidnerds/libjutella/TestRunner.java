@@ -0,0 +1,69 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs every class named *Test found under the compiled test directory,
+ * exits with a non zero status if any test failed. The build's test target
+ * runs it.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class TestRunner {
+	
+	public static void main(String[] args) throws Exception {
+		File root = new File(args.length > 0 ? args[0] : "bin-test");
+		List<String> names = new ArrayList<String>();
+		find(root, "", names);
+		Collections.sort(names);
+		
+		int failed = 0;
+		
+		for (String name : names) {
+			Class<?> type = Class.forName(name);
+			
+			if (TestCase.class.isAssignableFrom(type)) {
+				int f = TestCase.run(type.asSubclass(TestCase.class));
+				System.out.println((f == 0 ? "ok   " : "FAIL ") + name);
+				failed += f;
+			}
+		}
+		
+		System.out.println(failed == 0 ? "all tests passed" : failed + " tests failed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+	
+	private static void find(File dir, String pkg, List<String> names) {
+		File[] files = dir.listFiles();
+		
+		if (files == null) {
+			return;
+		}
+		
+		for (File f : files) {
+			if (f.isDirectory()) {
+				find(f, pkg + f.getName() + ".", names);
+			} else if (f.getName().endsWith("Test.class")) {
+				names.add(pkg + f.getName().substring(0, f.getName().length() - 6));
+			}
+		}
+	}
+}
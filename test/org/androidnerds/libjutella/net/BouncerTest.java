@@ -0,0 +1,119 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.androidnerds.libjutella.Channel;
+import org.androidnerds.libjutella.Message;
+import org.androidnerds.libjutella.Parser;
+import org.androidnerds.libjutella.Server;
+import org.androidnerds.libjutella.TestCase;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class BouncerTest extends TestCase {
+	
+	private Server server = new Server("irc.example.com", "me", null, 6667, null);
+	private Bouncer bouncer;
+	private Socket socket;
+	private BufferedReader in;
+	
+	protected void tearDown() throws Exception {
+		if (socket != null) {
+			socket.close();
+		}
+		
+		if (bouncer != null) {
+			bouncer.close();
+		}
+	}
+	
+	private void attach() throws Exception {
+		bouncer = new Bouncer(server, null, 0);
+		bouncer.start();
+		
+		socket = new Socket(InetAddress.getLoopbackAddress(), bouncer.getPort());
+		socket.setSoTimeout(5000);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		OutputStream out = socket.getOutputStream();
+		out.write("NICK me\r\nUSER me 0 * :me\r\n".getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+	
+	private String next(String command) throws Exception {
+		String line;
+		
+		while ((line = in.readLine()) != null) {
+			if (line.indexOf(" " + command + " ") != -1) {
+				return line;
+			}
+		}
+		
+		fail("no " + command + " line");
+		return null;
+	}
+	
+	public void testReplaysSupportAndHistory() throws Exception {
+		Parser.parse(":irc 001 me :Welcome", server);
+		Parser.parse(":irc 005 me CHANTYPES=# PREFIX=(ov)@+ NETWORK=Example :are supported by this server", server);
+		
+		Channel channel = new Channel(server);
+		channel.setName("#chan");
+		server.addChannel(channel);
+		Parser.parse(":bob!b@example.com PRIVMSG #chan :hello there", server);
+		
+		Message stored = channel.getMessages().get(0);
+		assertEquals("line dropped once stored", null, stored.getRawLine());
+		assertEquals("rebuilt", ":bob!b@example.com PRIVMSG #chan :hello there", stored.toLine());
+		
+		attach();
+		assertEquals("005", ":libjutella 005 me CHANTYPES=# PREFIX=(ov)@+ NETWORK=Example :are supported by this server",
+				next("005"));
+		assertEquals("history", ":bob!b@example.com PRIVMSG #chan :hello there", next("PRIVMSG"));
+		
+		while (bouncer.getClientCount() == 0) {
+			Thread.sleep(10);
+		}
+		
+		Parser.parse(":amy!a@example.com PRIVMSG #chan :live", server);
+		Parser.parse(":amy!a@example.com PRIVMSG #chan :after", server);
+		assertEquals("live", ":amy!a@example.com PRIVMSG #chan :live", next("PRIVMSG"));
+		assertEquals("sent once", ":amy!a@example.com PRIVMSG #chan :after", next("PRIVMSG"));
+	}
+	
+	public void testClientThreadsAreDaemons() throws Exception {
+		attach();
+		next("001");
+		
+		int found = 0;
+		
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith("libjutella-bouncer-client-" + socket.getLocalPort())) {
+				assertTrue(t.getName() + " daemon", t.isDaemon());
+				found++;
+			}
+		}
+		
+		assertEquals("reader and writer", 2, found);
+	}
+}
@@ -0,0 +1,231 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.androidnerds.libjutella.Message;
+import org.androidnerds.libjutella.Server;
+import org.androidnerds.libjutella.ServerEvent;
+import org.androidnerds.libjutella.TestCase;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ConnectionShardTest extends TestCase {
+	
+	private LoopbackServer remote;
+	private LoopbackServer other;
+	
+	protected void tearDown() throws Exception {
+		if (remote != null) {
+			remote.close();
+		}
+		
+		if (other != null) {
+			other.close();
+		}
+	}
+	
+	public void testStableAssignment() {
+		ConnectionManager manager = new ConnectionManager(4);
+		Server a = new Server("a", "irc.example.com", "me", null, 6667, manager);
+		Server b = new Server("a", "irc.example.com", "me", null, 6667, manager);
+		
+		assertEquals("same shard", manager.getShard(a).getId(), manager.getShard(b).getId());
+		assertEquals("shards", 4, manager.getShards().size());
+	}
+	
+	public void testLinesProcessedOnDispatchThreads() throws Exception {
+		remote = new LoopbackServer();
+		ConnectionManager manager = new ConnectionManager(2, 1);
+		final List<String> texts = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(200);
+		
+		Server server = new Server("127.0.0.1", "me", null, remote.getPort(), manager) {
+			protected void receiveMessage(Message m) {
+				if (m.getCommand() == Message.CMD_PRIVMSG) {
+					texts.add(m.getText());
+					threads.add(Thread.currentThread().getName());
+					done.countDown();
+				}
+				
+				super.receiveMessage(m);
+			}
+		};
+		
+		manager.createNewConnection(server);
+		remote.accept();
+		assertTrue("registered", remote.next("USER") != null);
+		
+		for (int i = 0; i < 200; i++) {
+			remote.send(":x!u@h PRIVMSG me :" + i);
+		}
+		
+		assertTrue("all processed", done.await(5, TimeUnit.SECONDS));
+		
+		for (int i = 0; i < 200; i++) {
+			assertEquals("order", String.valueOf(i), texts.get(i));
+			assertTrue("dispatch thread " + threads.get(i), threads.get(i).contains("-dispatch-"));
+		}
+		
+		ConnectionShard shard = manager.getShard(server);
+		manager.closeConnection(server);
+		
+		assertEquals("removed", 0, shard.getConnectionCount());
+		assertTrue("counts kept", shard.getLinesReceived() >= 200);
+		assertTrue("sent kept", shard.getLinesSent() >= 3);
+	}
+	
+	/**
+	 * returns a subscriber putting the text of every PRIVMSG on the queue,
+	 * and "complete" once the stream ends.
+	 */
+	private static Flow.Subscriber<ServerEvent> collect(final LinkedBlockingQueue<String> queue) {
+		return new Flow.Subscriber<ServerEvent>() {
+			public void onSubscribe(Flow.Subscription s) {
+				s.request(Long.MAX_VALUE);
+			}
+			
+			public void onNext(ServerEvent event) {
+				if (event.getMessage().getCommand() == Message.CMD_PRIVMSG) {
+					queue.add(event.getMessage().getText());
+				}
+			}
+			
+			public void onError(Throwable t) {
+				queue.add("error");
+			}
+			
+			public void onComplete() {
+				queue.add("complete");
+			}
+		};
+	}
+	
+	public void testEventsSurviveReconnect() throws Exception {
+		remote = new LoopbackServer();
+		ConnectionManager manager = new ConnectionManager(1, 1);
+		Server server = new Server("127.0.0.1", "me", null, remote.getPort(), manager);
+		LinkedBlockingQueue<String> own = new LinkedBlockingQueue<String>();
+		LinkedBlockingQueue<String> merged = new LinkedBlockingQueue<String>();
+		server.getEventPublisher().subscribe(collect(own));
+		manager.getEventPublisher().subscribe(collect(merged));
+		
+		manager.createNewConnection(server);
+		remote.accept();
+		assertTrue("registered", remote.next("USER") != null);
+		remote.send(":x!u@h PRIVMSG me :first");
+		
+		assertEquals("server stream", "first", own.poll(5, TimeUnit.SECONDS));
+		assertEquals("merged stream", "first", merged.poll(5, TimeUnit.SECONDS));
+		
+		manager.closeConnection(server);
+		manager.createNewConnection(server);
+		remote.accept();
+		assertTrue("registered again", remote.next("USER") != null);
+		remote.send(":x!u@h PRIVMSG me :second");
+		
+		assertEquals("server stream after reconnect", "second", own.poll(5, TimeUnit.SECONDS));
+		assertEquals("merged stream after reconnect", "second", merged.poll(5, TimeUnit.SECONDS));
+		
+		manager.removeServer(server);
+		assertEquals("completed", "complete", own.poll(5, TimeUnit.SECONDS));
+	}
+	
+	public void testSlowSubscriberHoldsBackOnlyItsServer() throws Exception {
+		remote = new LoopbackServer();
+		other = new LoopbackServer();
+		ConnectionManager manager = new ConnectionManager(1, 1);
+		final CountDownLatch fastDone = new CountDownLatch(10);
+		final CountDownLatch slowDone = new CountDownLatch(1000);
+		
+		Server slow = new Server("127.0.0.1", "me", null, remote.getPort(), manager) {
+			protected void receiveMessage(Message m) {
+				super.receiveMessage(m);
+				
+				if (m.getCommand() == Message.CMD_PRIVMSG) {
+					slowDone.countDown();
+				}
+			}
+		};
+		
+		Server fast = new Server("localhost", "me", null, other.getPort(), manager) {
+			protected void receiveMessage(Message m) {
+				super.receiveMessage(m);
+				
+				if (m.getCommand() == Message.CMD_PRIVMSG) {
+					fastDone.countDown();
+				}
+			}
+		};
+		
+		//a subscriber that requests nothing until it is told to.
+		final Flow.Subscription[] held = new Flow.Subscription[1];
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		slow.getEventPublisher().subscribe(new Flow.Subscriber<ServerEvent>() {
+			public void onSubscribe(Flow.Subscription s) {
+				held[0] = s;
+				subscribed.countDown();
+			}
+			
+			public void onNext(ServerEvent event) {
+				
+			}
+			
+			public void onError(Throwable t) {
+				
+			}
+			
+			public void onComplete() {
+				
+			}
+		});
+		assertTrue("subscribed", subscribed.await(5, TimeUnit.SECONDS));
+		
+		manager.createNewConnection(slow);
+		remote.accept();
+		assertTrue("slow registered", remote.next("USER") != null);
+		
+		for (int i = 0; i < 1000; i++) {
+			remote.send(":x!u@h PRIVMSG me :" + i);
+		}
+		
+		manager.createNewConnection(fast);
+		other.accept();
+		assertTrue("fast registered", other.next("USER") != null);
+		
+		for (int i = 0; i < 10; i++) {
+			other.send(":x!u@h PRIVMSG me :" + i);
+		}
+		
+		assertTrue("other server processed", fastDone.await(5, TimeUnit.SECONDS));
+		assertTrue("slow server held back", slowDone.getCount() > 0);
+		
+		held[0].request(Long.MAX_VALUE);
+		assertTrue("slow server caught up", slowDone.await(10, TimeUnit.SECONDS));
+		
+		manager.closeConnection(slow);
+		manager.closeConnection(fast);
+	}
+}
@@ -0,0 +1,115 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.androidnerds.libjutella.Message;
+import org.androidnerds.libjutella.Server;
+import org.androidnerds.libjutella.TestCase;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class ConnectionTest extends TestCase {
+	
+	private LoopbackServer remote;
+	private Connection connection;
+	
+	protected void tearDown() throws Exception {
+		remote.close();
+	}
+	
+	private void connect() throws Exception {
+		connect(new Server("127.0.0.1", "me", null, remote.getPort(), null));
+	}
+	
+	private void connect(Server server) throws Exception {
+		connection = new Connection(server);
+		Thread t = new Thread(connection, "connection-test");
+		t.setDaemon(true);
+		t.start();
+		remote.accept();
+		assertTrue("registered", remote.next("USER") != null);
+	}
+	
+	public void testSendCompletesWhenWritten() throws Exception {
+		remote = new LoopbackServer();
+		connect();
+		CompletableFuture<Void> sent = connection.sendMessageAsync("PRIVMSG #c :hello");
+		
+		sent.get(5, TimeUnit.SECONDS);
+		assertEquals("received", "PRIVMSG #c :hello", remote.next());
+	}
+	
+	public void testSendFailsAfterServerHangsUp() throws Exception {
+		remote = new LoopbackServer();
+		connect();
+		remote.hangUp();
+		
+		//writes may still succeed until the writer notices the reader is gone,
+		//from then on every send fails at once.
+		long deadline = System.currentTimeMillis() + 5000;
+		
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				connection.sendMessageAsync("PING :x").get(5, TimeUnit.SECONDS);
+				Thread.sleep(50);
+			} catch (ExecutionException e) {
+				assertTrue("io failure", e.getCause() instanceof IOException);
+				
+				CompletableFuture<Void> later = connection.sendMessageAsync("PING :y");
+				assertTrue("fails at once", later.isCompletedExceptionally());
+				return;
+			}
+		}
+		
+		fail("sends never failed");
+	}
+	
+	public void testDisconnectSendsQuitAndCloses() throws Exception {
+		remote = new LoopbackServer();
+		connect();
+		connection.disconnect();
+		
+		assertTrue("quit", remote.next("QUIT") != null);
+		assertEquals("socket closed", null, remote.next());
+	}
+	
+	public void testBadLineSkippedInline() throws Exception {
+		remote = new LoopbackServer();
+		final LinkedBlockingQueue<String> texts = new LinkedBlockingQueue<String>();
+		
+		connect(new Server("127.0.0.1", "me", null, remote.getPort(), null) {
+			protected void receiveMessage(Message m) {
+				if ("boom".equals(m.getText())) {
+					throw new IllegalStateException("boom");
+				}
+				
+				texts.add(m.getText());
+			}
+		});
+		
+		remote.send(":x!u@h PRIVMSG me :boom");
+		remote.send(":x!u@h PRIVMSG me :after");
+		
+		assertEquals("next line processed", "after", texts.poll(5, TimeUnit.SECONDS));
+	}
+}
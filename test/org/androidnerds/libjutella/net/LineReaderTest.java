@@ -0,0 +1,118 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.androidnerds.libjutella.TestCase;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class LineReaderTest extends TestCase {
+	
+	private static LineReader reader(byte[] data) {
+		return new LineReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1);
+	}
+	
+	private static LineReader reader(String data) {
+		return reader(data.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	public void testSplitsLines() throws IOException {
+		LineReader r = reader("PING :a\r\nPING :b\n\r\nlast");
+		
+		assertEquals("crlf", "PING :a", r.readLine());
+		assertEquals("lf", "PING :b", r.readLine());
+		assertEquals("empty", "", r.readLine());
+		assertEquals("unterminated", "last", r.readLine());
+		assertEquals("end", null, r.readLine());
+	}
+	
+	public void testDecodesWithFallback() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("caf\u00e9\n".getBytes(StandardCharsets.UTF_8));
+		out.write("caf\u00e9\n".getBytes(StandardCharsets.ISO_8859_1));
+		LineReader r = reader(out.toByteArray());
+		
+		assertEquals("utf-8", "caf\u00e9", r.readLine());
+		assertEquals("latin-1", "caf\u00e9", r.readLine());
+	}
+	
+	public void testLinesAcrossReads() throws IOException {
+		StringBuilder all = new StringBuilder();
+		
+		for (int i = 0; i < 2000; i++) {
+			all.append(":nick!u@h PRIVMSG #c :message ").append(i).append("\r\n");
+		}
+		
+		//a stream handing out a few bytes at a time splits lines everywhere.
+		InputStream trickle = new ByteArrayInputStream(all.toString().getBytes(StandardCharsets.UTF_8)) {
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 7));
+			}
+		};
+		
+		LineReader r = new LineReader(trickle, StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1);
+		
+		for (int i = 0; i < 2000; i++) {
+			assertEquals("line " + i, ":nick!u@h PRIVMSG #c :message " + i, r.readLine());
+		}
+		
+		assertEquals("end", null, r.readLine());
+	}
+	
+	public void testLongLineIsDiscarded() throws IOException {
+		byte[] huge = new byte[LineReader.MAX_LINE * 5];
+		Arrays.fill(huge, (byte) 'x');
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write("first\r\n".getBytes(StandardCharsets.US_ASCII));
+		out.write(huge);
+		out.write("\r\nnext\r\n".getBytes(StandardCharsets.US_ASCII));
+		LineReader r = reader(out.toByteArray());
+		
+		assertEquals("before", "first", r.readLine());
+		assertEquals("resynced", "next", r.readLine());
+		assertEquals("end", null, r.readLine());
+		assertEquals("discarded", 1, r.getDiscardedCount());
+	}
+	
+	public void testLongLineWithoutEnd() throws IOException {
+		byte[] huge = new byte[LineReader.MAX_LINE * 3];
+		Arrays.fill(huge, (byte) 'x');
+		
+		assertEquals("end", null, reader(huge).readLine());
+	}
+	
+	public void testRejectsNonAsciiCharsets() {
+		assertTrue("utf-8", LineReader.isAsciiCompatible(StandardCharsets.UTF_8));
+		assertTrue("latin-1", LineReader.isAsciiCompatible(StandardCharsets.ISO_8859_1));
+		assertFalse("utf-16", LineReader.isAsciiCompatible(StandardCharsets.UTF_16));
+		
+		try {
+			new LineReader(new ByteArrayInputStream(new byte[0]), StandardCharsets.UTF_16BE, StandardCharsets.ISO_8859_1);
+			fail("utf-16 accepted");
+		} catch (IllegalArgumentException e) {
+			
+		}
+	}
+}
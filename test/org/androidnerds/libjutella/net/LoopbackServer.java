@@ -0,0 +1,124 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal IRC server on the loopback interface for tests. It accepts a
+ * single client, collects the lines the client sends and writes whatever
+ * the test asks it to.
+ *
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class LoopbackServer {
+	
+	private ServerSocket listener;
+	private Socket client;
+	private OutputStream out;
+	private LinkedBlockingQueue<String> received;
+	
+	public LoopbackServer() throws IOException {
+		listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		received = new LinkedBlockingQueue<String>();
+	}
+	
+	public int getPort() {
+		return listener.getLocalPort();
+	}
+	
+	/**
+	 * waits for the client to connect and starts collecting its lines.
+	 */
+	public void accept() throws IOException {
+		listener.setSoTimeout(5000);
+		client = listener.accept();
+		out = client.getOutputStream();
+		
+		final BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					String line;
+					
+					while ((line = in.readLine()) != null) {
+						received.add(line);
+					}
+				} catch (IOException e) {
+					
+				}
+			}
+		}, "loopback-server");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	public void send(String line) throws IOException {
+		out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+	
+	public void sendBytes(byte[] data) throws IOException {
+		out.write(data);
+		out.flush();
+	}
+	
+	/**
+	 * returns the next line sent by the client, null if none arrives in
+	 * time.
+	 */
+	public String next() throws InterruptedException {
+		return received.poll(5, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * returns the next line starting with the prefix, skipping the others.
+	 */
+	public String next(String prefix) throws InterruptedException {
+		String line;
+		
+		while ((line = next()) != null) {
+			if (line.startsWith(prefix)) {
+				return line;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * drops the client connection.
+	 */
+	public void hangUp() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+	}
+	
+	public void close() throws IOException {
+		hangUp();
+		listener.close();
+	}
+}
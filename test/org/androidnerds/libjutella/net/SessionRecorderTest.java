@@ -0,0 +1,94 @@
+/* Copyright (C) 2009, 2010 Android Nerds Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.androidnerds.libjutella.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.androidnerds.libjutella.ListenerAdapter;
+import org.androidnerds.libjutella.Message;
+import org.androidnerds.libjutella.Server;
+import org.androidnerds.libjutella.TestCase;
+
+/**
+ * @author mike novak, matheiu agopian
+ * @since 1
+ */
+public class SessionRecorderTest extends TestCase {
+	
+	private List<String> texts = new ArrayList<String>();
+	
+	private Server server = new Server("test", "me", null, 6667, SessionReplay.DISCARD) {
+		protected void receiveMessage(Message m) {
+			texts.add(m.getText());
+			super.receiveMessage(m);
+		}
+	};
+	
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	public void testRecordsBytesAndReplaysThroughDecoder() throws Exception {
+		//a latin-1 line a UTF-8 server only reads through its fallback.
+		byte[] wire = bytes(":irc NOTICE me :plain\r\n:irc NOTICE me :caf\u00e9\n");
+		ByteArrayOutputStream recording = new ByteArrayOutputStream();
+		SessionRecorder recorder = new SessionRecorder(recording);
+		
+		LineReader reader = new LineReader(new ByteArrayInputStream(wire), StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1);
+		reader.setRecorder(recorder);
+		
+		while (reader.readLine() != null) {
+			
+		}
+		
+		recorder.close();
+		assertEquals("lines", 2, recorder.getLineCount());
+		
+		byte[] data = recording.toByteArray();
+		String tail = new String(data, data.length - 13, 13, StandardCharsets.ISO_8859_1);
+		assertEquals("bytes kept as received", "me :caf\u00e9\n", tail.substring(tail.length() - 9));
+		
+		SessionReplay.Result result = SessionReplay.replay(new ByteArrayInputStream(data), server, false);
+		assertEquals("replayed", 2, result.getLines());
+		assertEquals("bytes", wire.length, result.getBytes());
+		assertEquals("plain", "plain", texts.get(0));
+		assertEquals("decoded by the fallback", "caf\u00e9", texts.get(1));
+	}
+	
+	public void testLatencyIncludesCallbacks() throws Exception {
+		server.setServerListener(new ListenerAdapter() {
+			public void onNewNotice(Message msg, Server serv) {
+				try {
+					Thread.sleep(30);
+				} catch (InterruptedException e) {
+					
+				}
+			}
+		});
+		server.setDispatchThreads(2);
+		
+		ByteArrayOutputStream recording = new ByteArrayOutputStream();
+		SessionRecorder recorder = new SessionRecorder(recording);
+		recorder.record(":irc NOTICE me :slow");
+		recorder.close();
+		
+		SessionReplay.Result result = SessionReplay.replay(new ByteArrayInputStream(recording.toByteArray()), server, false);
+		assertTrue("latency " + result.getMaxLatency(), result.getMaxLatency() >= 30000000L);
+	}
+}